@@ -2,24 +2,88 @@ package photopack;
 
 
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
 
 /**
- * The "Album" class represents a collection of photos stored in an ArrayList.
+ * The "Album" class represents a collection of photos kept in insertion order.
  * It implements the Serializable interface and contains methods to add, delete,
  * and check for duplicate photos.
  * It also has methods to retrieve and modify the name of the album and its
  * photo collection.
+ * The photos are held in a LinkedHashSet, which keeps them in the order they
+ * were added and, since photos are compared by identity, checks and removes a
+ * photo in constant time. A count of the captions of the photos makes checking
+ * for a caption constant time as well.
+ * The album also keeps track of its earliest and latest photos as photos are
+ * added, removed or redated, and only looks through all of its photos again
+ * when one of them is removed or redated. These statistics are available as
+ * read-only JavaFX properties for the views to bind to.
  */
 
 public class Album implements Serializable {
     /**
      * The private instance variable "album" is an ArrayList of Photo objects
-     * representing the collection of photos stored in an Album.
+     * listing the collection of photos stored in an Album, in display order. It
+     * is rebuilt from "photos" when it is asked for after a photo was removed,
+     * and is the form the collection is serialized in.
      */
     private ArrayList<Photo> album;
+    /**
+     * The private instance variable "photos" is the collection of photos stored
+     * in an Album, in insertion order. It is not serialized and is rebuilt from
+     * "album" when the Album is deserialized.
+     */
+    private transient LinkedHashSet<Photo> photos;
+    /**
+     * The private instance variable "captions" counts the photos of the Album
+     * having each caption, or is null until it is first needed. It is not
+     * serialized.
+     */
+    private transient HashMap<String, Integer> captions;
+    /**
+     * The private instance variable "earliest" is the photo of the Album with the
+     * earliest date, or null if no photo has a date. Only valid while
+     * "statsCurrent" is true.
+     */
+    private transient Photo earliest;
+    /**
+     * The private instance variable "latest" is the photo of the Album with the
+     * latest date, or null if no photo has a date. Only valid while
+     * "statsCurrent" is true.
+     */
+    private transient Photo latest;
+    /**
+     * The private instance variable "statsCurrent" tells whether "earliest" and
+     * "latest" are up to date. It is false until they are first computed.
+     */
+    private transient boolean statsCurrent;
+    /**
+     * The number of photos of the Album as a property, or null until it is first
+     * asked for.
+     */
+    private transient ReadOnlyIntegerWrapper photoCount;
+    /**
+     * The earliest date of the photos of the Album as a property, or null until
+     * it is first asked for.
+     */
+    private transient ReadOnlyObjectWrapper<Calendar> earliestDate;
+    /**
+     * The latest date of the photos of the Album as a property, or null until it
+     * is first asked for.
+     */
+    private transient ReadOnlyObjectWrapper<Calendar> latestDate;
     /**
      * The private instance variable "name" is an String representing the name of an
      * Album.
@@ -33,6 +97,18 @@ public class Album implements Serializable {
      * This value is set to 1L in this class.
      */
     static final long serialVersionUID = 1L;
+    /**
+     * The private instance variable "id" identifies the Album among the albums
+     * of its owner and is used by the PhotoJournal. It is zero until the album
+     * is added to a User.
+     */
+    private long id;
+    /**
+     * The private instance variable "owner" is the User the Album belongs to, or
+     * null if it has not been added to a User yet. It is not serialized and is
+     * restored when the UserApp is loaded.
+     */
+    private transient User owner;
 
     /**
      * This constructor creates a new Album object with a specified name and an
@@ -46,7 +122,8 @@ public class Album implements Serializable {
      * @param photo an ArrayList of Photo objects to be added to the album
      */
     public Album(String name, ArrayList<Photo> photo) {
-        this.album = photo;
+        this.photos = new LinkedHashSet<Photo>(photo);
+        this.album = photo.size() == photos.size() ? photo : new ArrayList<Photo>(photos);
         this.name = name;
     }
 
@@ -60,6 +137,7 @@ public class Album implements Serializable {
      */
     public Album(String name) {
         this.album = new ArrayList<Photo>();
+        this.photos = new LinkedHashSet<Photo>();
         this.name = name;
     }
 
@@ -72,6 +150,9 @@ public class Album implements Serializable {
      */
     public void setName(String name) {
         this.name = name;
+        PhotoJournal journal = journal();
+        if (journal != null)
+            journal.renameAlbum(this);
     }
 
     /**
@@ -88,37 +169,96 @@ public class Album implements Serializable {
      * This method sets the collection of photos for the Album object.
      * The "photo" parameter represents the new ArrayList of Photo objects to be set
      * as the album's collection of photos.
-     * It updates the "album" instance variable with the provided parameter.
+     * It replaces the album's photos with the provided ones, a photo listed more
+     * than once being kept only at its first position.
      * 
      * @param photo the ArrayList of Photo objects to set as the new album list
      */
     public void setAlbum(ArrayList<Photo> photo) {
-        this.album = photo;
+        LinkedHashSet<Photo> replacement = new LinkedHashSet<Photo>(photo);
+        if (owner != null) {
+            for (Photo p : replacement)
+                owner.adopt(p);
+        }
+        LinkedHashSet<Photo> previous = this.photos;
+        if (owner != null) {
+            for (Photo p : replacement) {
+                owner.retain(p);
+                owner.linkBlob(p);
+            }
+            for (Photo p : previous)
+                owner.release(p);
+        }
+        this.photos = replacement;
+        this.album = photo.size() == replacement.size() ? photo : new ArrayList<Photo>(replacement);
+        this.captions = null;
+        this.statsCurrent = false;
+        statsChanged();
+        PhotoJournal journal = journal();
+        if (journal != null)
+            journal.setPhotos(this);
+        if (owner != null) {
+            for (Photo p : previous)
+                owner.unlinkBlob(p);
+        }
     }
 
     /**
      * This method retrieves the collection of photos of the Album object.
-     * It returns the current value of the "album" instance variable, which is an
-     * ArrayList of Photo objects representing the collection of photos in the
-     * album.
+     * It returns an ArrayList of Photo objects listing the photos in the album in
+     * the order they were added, rebuilt first if a photo was removed since it
+     * was last asked for. The list must not be modified; use addPhoto,
+     * deletePhoto or setAlbum instead.
      * 
      * @return the ArrayList of Photo objects in the album
      */
     public ArrayList<Photo> getAlbum() {
+        if (this.album == null)
+            this.album = new ArrayList<Photo>(photos);
         return this.album;
     }
 
+    /**
+     * This method returns the number of photos in the Album object.
+     * 
+     * @return the number of photos in the album
+     */
+    public int size() {
+        return photos.size();
+    }
+
     /**
      * This method adds a new Photo object to the collection of photos in the Album
      * object.
      * The "photo" parameter represents the new Photo object to be added to the
      * album's collection of photos.
-     * It adds the provided Photo object to the "album" ArrayList instance variable.
+     * It adds the provided Photo object at the end of the album, unless the album
+     * already contains it.
+     * If the album belongs to a User, the photo is adopted by that User first,
+     * the album takes a reference to the photo's stored image and the addition
+     * is recorded in the User's journal.
      * 
      * @param photo the Photo object to add to the album list
      */
     public void addPhoto(Photo photo) {
-        this.album.add(photo);
+        if (photos.contains(photo))
+            return;
+        if (owner != null)
+            owner.adopt(photo);
+        this.photos.add(photo);
+        if (this.album != null)
+            this.album.add(photo);
+        countCaption(photo, 1);
+        if (statsCurrent)
+            extend(photo);
+        statsChanged();
+        if (owner != null) {
+            owner.retain(photo);
+            owner.linkBlob(photo);
+        }
+        PhotoJournal journal = journal();
+        if (journal != null)
+            journal.addPhoto(this, photo);
     }
 
     /**
@@ -126,81 +266,312 @@ public class Album implements Serializable {
      * the Album object.
      * The "photo" parameter represents the Photo object to be removed from the
      * album's collection of photos.
-     * It searches through the "album" ArrayList instance variable for the provided
-     * Photo object and removes it from the collection if it is found.
+     * It removes the provided Photo object from the collection if it is found.
+     * If the album belongs to a User, the removal is recorded in the User's
+     * journal before the reference the album held to the photo's stored image
+     * is released.
      * 
      * @param photo the Photo object to remove from the album list
      */
     public void deletePhoto(Photo photo) {
-        for (int i = 0; i < album.size(); i++) {
-            if (album.get(i) == photo)
-                album.remove(i);
+        boolean removed = photos.remove(photo);
+        if (removed) {
+            this.album = null;
+            countCaption(photo, -1);
+            if (photo == earliest || photo == latest)
+                statsCurrent = false;
+            statsChanged();
+            if (owner != null)
+                owner.release(photo);
         }
+        PhotoJournal journal = journal();
+        if (journal != null)
+            journal.removePhoto(this, photo);
+        if (removed && owner != null)
+            owner.unlinkBlob(photo);
     }
 
     /**
      * This method checks whether the album's collection of photos contains a Photo
      * object with a specific caption.
      * The "str" parameter represents the caption to be searched for.
-     * It searches through the "album" ArrayList instance variable for a Photo
-     * object with a matching caption and returns true if found, otherwise false.
+     * It looks the caption up in the count of captions of the album, which is
+     * built the first time it is needed and kept up to date afterwards.
      * 
      * @param str the caption to search for
      * @return true if a photo with the given caption exists in the album, false
      *         otherwise
      */
     public boolean duplicate(String str) {
-        for (int i = 0; i < album.size(); i++) {
-            if (album.get(i).getCaption().equals(str))
-                return true;
+        if (captions == null) {
+            captions = new HashMap<String, Integer>();
+            for (Photo photo : photos)
+                captions.merge(photo.getCaption(), 1, Integer::sum);
         }
-        return false;
+        return captions.containsKey(str);
+    }
+
+    /**
+     * This method updates the count of captions of the album for a photo added
+     * or removed.
+     * 
+     * @param photo the Photo object added or removed
+     * @param delta 1 if the photo was added, -1 if it was removed
+     */
+    private void countCaption(Photo photo, int delta) {
+        countCaption(photo.getCaption(), delta);
+    }
+
+    /**
+     * This method updates the count of captions of the album by one caption,
+     * if the count has been built.
+     * 
+     * @param caption the caption counted
+     * @param delta   1 if a photo with the caption was added, -1 if one was
+     *                removed
+     */
+    private void countCaption(String caption, int delta) {
+        if (captions != null)
+            captions.merge(caption, delta, (count, d) -> count + d == 0 ? null : count + d);
+    }
+
+    /**
+     * This method records that the caption of a photo changed, so that the
+     * count of captions of the Album object stays up to date. It is called by
+     * the owner of the album for each of its albums.
+     * 
+     * @param photo the Photo object whose caption changed
+     * @param old   the previous caption of the photo
+     */
+    void captionChanged(Photo photo, String old) {
+        if (!photos.contains(photo))
+            return;
+        countCaption(old, -1);
+        countCaption(photo.getCaption(), 1);
     }
 
     /**
      * This method checks whether the album's collection of photos contains a
      * specific Photo object.
      * The "photo" parameter represents the Photo object to be searched for.
-     * It searches through the "album" ArrayList instance variable for the provided
-     * Photo object and returns true if found, otherwise false.
+     * It returns true if the album contains the provided Photo object, otherwise
+     * false.
      * 
      * @param photo the Photo object to search for
      * @return true if the given photo exists in the album, false otherwise
      */
     public boolean duplicatePhoto(Photo photo) {
-        for (int i = 0; i < album.size(); i++) {
-            if (album.get(i) == photo)
-                return true;
-        }
-        return false;
+        return photos.contains(photo);
+    }
+
+    /**
+     * This method returns the earliest date of the photos of the Album object.
+     * 
+     * @return the earliest date, or null if no photo of the album has a date
+     */
+    public Calendar getEarliestDate() {
+        computeStats();
+        return earliest == null ? null : earliest.getCal();
+    }
+
+    /**
+     * This method returns the latest date of the photos of the Album object.
+     * 
+     * @return the latest date, or null if no photo of the album has a date
+     */
+    public Calendar getLatestDate() {
+        computeStats();
+        return latest == null ? null : latest.getCal();
+    }
+
+    /**
+     * This method returns the number of photos of the Album object as a
+     * property that follows photos being added and removed.
+     * 
+     * @return the number of photos property
+     */
+    public ReadOnlyIntegerProperty photoCountProperty() {
+        if (photoCount == null)
+            photoCount = new ReadOnlyIntegerWrapper(this, "photoCount", size());
+        return photoCount.getReadOnlyProperty();
+    }
+
+    /**
+     * This method returns the earliest date of the photos of the Album object as
+     * a property that follows photos being added, removed and redated.
+     * 
+     * @return the earliest date property
+     */
+    public ReadOnlyObjectProperty<Calendar> earliestDateProperty() {
+        if (earliestDate == null)
+            earliestDate = new ReadOnlyObjectWrapper<Calendar>(this, "earliestDate", getEarliestDate());
+        return earliestDate.getReadOnlyProperty();
+    }
+
+    /**
+     * This method returns the latest date of the photos of the Album object as a
+     * property that follows photos being added, removed and redated.
+     * 
+     * @return the latest date property
+     */
+    public ReadOnlyObjectProperty<Calendar> latestDateProperty() {
+        if (latestDate == null)
+            latestDate = new ReadOnlyObjectWrapper<Calendar>(this, "latestDate", getLatestDate());
+        return latestDate.getReadOnlyProperty();
+    }
+
+    /**
+     * This method records that the date of a photo changed, so that the earliest
+     * and latest dates of the Album object stay up to date. It is called by the
+     * owner of the album for each of its albums.
+     * 
+     * @param photo the Photo object whose date changed
+     */
+    void dateChanged(Photo photo) {
+        if (!photos.contains(photo))
+            return;
+        if (photo == earliest || photo == latest)
+            statsCurrent = false;
+        else if (statsCurrent)
+            extend(photo);
+        statsChanged();
+    }
+
+    /**
+     * This method finds the earliest and latest photos of the Album object if
+     * they are not up to date.
+     */
+    private void computeStats() {
+        if (statsCurrent)
+            return;
+        earliest = null;
+        latest = null;
+        for (Photo photo : photos)
+            extend(photo);
+        statsCurrent = true;
+    }
+
+    /**
+     * This method makes a photo the earliest or latest photo of the Album
+     * object if its date is before the earliest or after the latest date.
+     * 
+     * @param photo the Photo object
+     */
+    private void extend(Photo photo) {
+        Calendar cal = photo.getCal();
+        if (cal == null)
+            return;
+        if (earliest == null || cal.compareTo(earliest.getCal()) < 0)
+            earliest = photo;
+        if (latest == null || cal.compareTo(latest.getCal()) > 0)
+            latest = photo;
+    }
+
+    /**
+     * This method updates the properties of the Album object that have been
+     * asked for after its photos or their dates changed.
+     */
+    private void statsChanged() {
+        if (photoCount != null)
+            photoCount.set(size());
+        if (earliestDate != null)
+            earliestDate.set(getEarliestDate());
+        if (latestDate != null)
+            latestDate.set(getLatestDate());
+    }
+
+    /**
+     * This method retrieves the id of the Album object among the albums of its
+     * owner.
+     * 
+     * @return the id of the album, or zero if it has not been added to a User
+     */
+    long getId() {
+        return this.id;
+    }
+
+    /**
+     * This method sets the id of the Album object among the albums of its owner.
+     * 
+     * @param id the new id of the album
+     */
+    void setId(long id) {
+        this.id = id;
+    }
+
+    /**
+     * This method retrieves the User the Album object belongs to.
+     * 
+     * @return the owner of the album, or null if it has not been added to a User
+     */
+    User getOwner() {
+        return this.owner;
+    }
+
+    /**
+     * This method sets the User the Album object belongs to. The count of
+     * captions is dropped, since caption changes made while the album had no
+     * owner did not reach it, and is rebuilt when it is next needed.
+     * 
+     * @param owner the owner of the album
+     */
+    void setOwner(User owner) {
+        this.owner = owner;
+        this.captions = null;
+    }
+
+    /**
+     * This method returns the journal changes to the Album object are recorded
+     * in.
+     * 
+     * @return the owner's journal, or null if changes are not recorded
+     */
+    private PhotoJournal journal() {
+        return owner == null ? null : owner.getJournal();
+    }
+
+    /**
+     * This method writes the Album object, with its photos listed in the "album"
+     * instance variable.
+     * 
+     * @param out the stream to write to
+     * @throws IOException if the album cannot be written
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getAlbum();
+        out.defaultWriteObject();
+    }
+
+    /**
+     * This method reads the Album object and rebuilds the collection of photos
+     * from the "album" instance variable.
+     * 
+     * @param in the stream to read from
+     * @throws IOException            if the album cannot be read
+     * @throws ClassNotFoundException if a class of the album cannot be found
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.photos = new LinkedHashSet<Photo>(album);
+        if (photos.size() != album.size())
+            this.album = new ArrayList<Photo>(photos);
     }
 
     /**
      * This method returns a string representation of the Album object.
      * It includes the name of the album, the number of photos in its collection,
-     * and the earliest and latest dates of the photos.
-     * If the album's collection of photos is empty, it returns a string with only
-     * the album's name and the number of photos.
+     * and the earliest and latest dates of the photos, which are kept up to date
+     * by the album rather than searched for on every call.
+     * If the album's collection of photos is empty, or none of its photos has a
+     * date, it returns a string with only the album's name and the number of
+     * photos.
      */
     public String toString() {
-
-        int size = album.size();
-        if (size == 0)
+        int size = size();
+        Calendar EDate = getEarliestDate();
+        Calendar LDate = getLatestDate();
+        if (size == 0 || EDate == null)
             return (name + " \n" + "#ofPhotos: " + size);
-
-        Calendar EDate = album.get(0).getCal();
-        Calendar LDate = album.get(0).getCal();
-
-        for (int i = 1; i < size; i++) {
-            Photo photo = album.get(i);
-            Calendar currentDate = photo.getCal();
-            if (currentDate.compareTo(LDate) > 0) {
-                LDate = currentDate;
-            }
-            if (currentDate.compareTo(EDate) < 0) {
-                EDate = currentDate;
-            }
-        }
         return (name + " \n" + "#ofPhotos: " + size + "\nEarliest date: " + EDate.getTime() + " \nLatest date: "
                 + LDate.getTime());
     }
@@ -0,0 +1,1046 @@
+package photopack;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StreamCorruptedException;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The BlobStore class keeps the encoded images of photos packed in a single
+ * append-only data file, next to an index of where each of them starts and how
+ * long it is. The data file is memory-mapped, so reading an image is a lookup
+ * in the index followed by a slice of the mapping handed to the decoder,
+ * without opening a stream or copying a byte.
+ * A photo whose image lives in the store has a path of the form "blob:id".
+ * Deleting an image only appends a tombstone to the index; the space it took
+ * is reclaimed when the store is compacted.
+ * Images added with intern are stored once per content: they are looked up by
+ * the SHA-256 digest of their bytes, and every album of every user containing a
+ * photo of the image holds a reference to its entry. The entry is deleted when
+ * the last reference is released. Intern also pins the entry for its caller
+ * until the photo is added to an album and the caller unpins it, so that the
+ * entry is not deleted in between by the removal of another photo of the same
+ * content. Pins are kept in memory only. Reference counts are appended to a list of
+ * their own rather than to the index, so that they survive a rebuild of the
+ * index. An interned entry no reference was ever taken to, such as the image
+ * of an import that failed or was cancelled before its photo was added, is
+ * deleted the next time the store is opened. Entries added otherwise, such as
+ * imported serialized images, are not reference counted and are never deleted
+ * automatically.
+ * Both files start with the same generation number, increased on every
+ * compaction. If they disagree, or the index is missing, the index is rebuilt
+ * from the data file. Entries appended to the data file but not to the index
+ * before a crash are recovered the same way, and a torn entry at the end of
+ * the data file is cut off.
+ */
+public class BlobStore implements Closeable {
+    /**
+     * The prefix of the path of a photo whose image lives in the store.
+     */
+    public static final String SCHEME = "blob:";
+    /**
+     * The directory holding the store.
+     */
+    public static final String blobDir = "data" + File.separator + "blobs";
+    /**
+     * The filename of the data file.
+     */
+    public static final String dataFile = "blobs.dat";
+    /**
+     * The filename of the index file.
+     */
+    public static final String indexFile = "blobs.idx";
+    /**
+     * The filename of the list of files imported into the store, one
+     * "blob:id", tab, canonical file path per line.
+     */
+    public static final String importsFile = "imports.lst";
+    /**
+     * The filename of the list of the digests of interned entries, one "blob:id",
+     * tab, hexadecimal SHA-256 digest per line.
+     */
+    public static final String digestsFile = "digests.lst";
+    /**
+     * The filename of the list of reference counts, one "blob:id", tab, count
+     * per change; the last line of an entry holds its count.
+     */
+    public static final String refsFile = "refs.lst";
+    /**
+     * The magic number at the start of the data file and of the index file.
+     */
+    private static final int MAGIC = 0x50424C42;
+    /**
+     * The version of the file format. Version 2 added reference count records to
+     * the index, which are now only read to carry the counts of older stores
+     * over to the list of reference counts; files of version 1 are read as they
+     * are and upgraded.
+     */
+    private static final int VERSION = 2;
+    /**
+     * The length of the header of both files: magic, version and generation.
+     */
+    private static final int HEADER_LENGTH = 16;
+    /**
+     * The length of the header of each entry of the data file: id and length.
+     */
+    private static final int ENTRY_HEADER_LENGTH = 12;
+    /**
+     * The length of each record of the index file: id, offset and length.
+     */
+    private static final int INDEX_RECORD_LENGTH = 20;
+    /**
+     * The length written to the index to mark an entry as deleted.
+     */
+    private static final int TOMBSTONE = -1;
+    /**
+     * The length written to the index by earlier versions to record the
+     * reference count of an entry, which is written in place of its offset.
+     */
+    private static final int REFS = -2;
+    /**
+     * The shared instance, opened the first time it is asked for.
+     */
+    private static BlobStore instance;
+
+    /**
+     * The directory holding the store.
+     */
+    private final File dir;
+    /**
+     * The channel entries are appended to and mapped from.
+     */
+    private FileChannel data;
+    /**
+     * The channel index records are appended to.
+     */
+    private FileChannel index;
+    /**
+     * The read-only mapping of the data file, covering its first mappedLength
+     * bytes.
+     */
+    private MappedByteBuffer mapped;
+    /**
+     * The number of bytes of the data file covered by the mapping.
+     */
+    private long mappedLength;
+    /**
+     * The generation of the files, increased on every compaction.
+     */
+    private long generation;
+    /**
+     * The offset and length of the data of every live entry, by id.
+     */
+    private final HashMap<Long, long[]> entries = new HashMap<Long, long[]>();
+    /**
+     * The entry every imported file was stored in, by canonical file path.
+     */
+    private final HashMap<String, Long> imports = new HashMap<String, Long>();
+    /**
+     * The number of references to every reference counted entry, by id.
+     */
+    private final HashMap<Long, Integer> refs = new HashMap<Long, Integer>();
+    /**
+     * The number of pins taken by intern and not given back yet, by id.
+     */
+    private final HashMap<Long, Integer> pins = new HashMap<Long, Integer>();
+    /**
+     * The interned entry holding every content, by hexadecimal SHA-256 digest.
+     */
+    private final HashMap<String, Long> digests = new HashMap<String, Long>();
+    /**
+     * The highest id handed out so far.
+     */
+    private long lastId;
+    /**
+     * The number of bytes of the data file taken by deleted entries.
+     */
+    private long garbage;
+
+    /**
+     * Opens the store in the given directory, creating it if it does not exist
+     * yet and recovering from a crash if needed.
+     *
+     * @param dir the directory holding the store
+     * @throws IOException if the store cannot be opened
+     */
+    public BlobStore(File dir) throws IOException {
+        this.dir = dir;
+        dir.mkdirs();
+        open();
+    }
+
+    /**
+     * Returns the store shared by the whole application, opening it in the
+     * blobDir directory the first time.
+     *
+     * @return the shared BlobStore
+     * @throws IOException if the store cannot be opened
+     */
+    public static synchronized BlobStore getInstance() throws IOException {
+        if (instance == null)
+            instance = new BlobStore(new File(blobDir));
+        return instance;
+    }
+
+    /**
+     * Checks whether a photo path names an entry of the store.
+     *
+     * @param path the path of the photo
+     * @return true if the path starts with SCHEME, false otherwise
+     */
+    public static boolean isBlob(String path) {
+        return path != null && path.startsWith(SCHEME);
+    }
+
+    /**
+     * Returns the photo path naming an entry of the store.
+     *
+     * @param id the id of the entry
+     * @return the path "blob:id"
+     */
+    public static String path(long id) {
+        return SCHEME + id;
+    }
+
+    /**
+     * Returns the id of the entry named by a photo path.
+     *
+     * @param path the path of the photo
+     * @return the id of the entry
+     * @throws IllegalArgumentException if the path does not name an entry
+     */
+    public static long id(String path) {
+        if (!isBlob(path))
+            throw new IllegalArgumentException("Not a blob path: " + path);
+        return Long.parseLong(path.substring(SCHEME.length()));
+    }
+
+    /**
+     * Appends the encoded image to the store.
+     *
+     * @param bytes the encoded image
+     * @return the id of the new entry
+     * @throws IOException if the entry cannot be written
+     */
+    public synchronized long add(byte[] bytes) throws IOException {
+        long id = ++lastId;
+        long offset = data.size();
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER_LENGTH + bytes.length);
+        entry.putLong(id).putInt(bytes.length).put(bytes).flip();
+        writeFully(data, entry, offset);
+        appendIndex(id, offset + ENTRY_HEADER_LENGTH, bytes.length);
+        entries.put(id, new long[] { offset + ENTRY_HEADER_LENGTH, bytes.length });
+        return id;
+    }
+
+    /**
+     * Returns a read-only view of the bytes of an entry. The view shares the
+     * mapping of the data file and stays valid after the entry is deleted or the
+     * store compacted.
+     *
+     * @param id the id of the entry
+     * @return the bytes of the entry, or null if there is no such entry
+     * @throws IOException if the data file cannot be mapped
+     */
+    public synchronized ByteBuffer get(long id) throws IOException {
+        long[] entry = entries.get(id);
+        if (entry == null)
+            return null;
+        long end = entry[0] + entry[1];
+        if (end > mappedLength && data.size() <= Integer.MAX_VALUE) {
+            mappedLength = data.size();
+            mapped = data.map(FileChannel.MapMode.READ_ONLY, 0, mappedLength);
+        }
+        if (end > mappedLength)
+            return data.map(FileChannel.MapMode.READ_ONLY, entry[0], entry[1]).asReadOnlyBuffer();
+        return mapped.slice((int) entry[0], (int) entry[1]).asReadOnlyBuffer();
+    }
+
+    /**
+     * Opens a stream over the bytes of the entry named by a photo path, to be
+     * handed to an image decoder.
+     *
+     * @param path the path of the photo
+     * @return a stream reading the entry straight from the mapping
+     * @throws IOException if there is no such entry or it cannot be mapped
+     */
+    public InputStream open(String path) throws IOException {
+        ByteBuffer buffer = get(id(path));
+        if (buffer == null)
+            throw new FileNotFoundException(path);
+        return new BufferInputStream(buffer);
+    }
+
+    /**
+     * Checks whether the store holds a live entry with the given id.
+     *
+     * @param id the id of the entry
+     * @return true if the entry exists and has not been deleted
+     */
+    public synchronized boolean contains(long id) {
+        return entries.containsKey(id);
+    }
+
+    /**
+     * Deletes an entry by appending a tombstone to the index. The space it takes
+     * in the data file is reclaimed by the next compaction.
+     *
+     * @param id the id of the entry
+     * @return true if the entry existed, false otherwise
+     * @throws IOException if the tombstone cannot be written
+     */
+    public synchronized boolean delete(long id) throws IOException {
+        long[] entry = entries.get(id);
+        if (entry == null)
+            return false;
+        appendIndex(id, entry[0], TOMBSTONE);
+        entries.remove(id);
+        pins.remove(id);
+        if (refs.remove(id) != null)
+            appendRefs(id, 0);
+        garbage += ENTRY_HEADER_LENGTH + entry[1];
+        return true;
+    }
+
+    /**
+     * Stores an encoded image once per content. If an interned entry with the
+     * same bytes exists it is returned, otherwise a new entry is added. The
+     * returned entry holds no reference for the caller yet, but is pinned for
+     * it: the caller adds a photo of it to an album, which takes a reference,
+     * and then unpins it, or unpins it straight away if the photo is not added.
+     *
+     * The digest is computed before the store is locked, so that several threads
+     * can intern images at once.
+     *
+     * @param bytes the encoded image
+     * @return the id of the entry holding the bytes
+     * @throws IOException if the entry or its digest cannot be written
+     */
+    public long intern(byte[] bytes) throws IOException {
+        return intern(bytes, digest(bytes));
+    }
+
+    /**
+     * Stores an encoded image of a known digest once per content.
+     *
+     * @param bytes  the encoded image
+     * @param digest the SHA-256 digest of the image, in hexadecimal
+     * @return the id of the pinned entry holding the bytes
+     * @throws IOException if the entry or its digest cannot be written
+     */
+    private synchronized long intern(byte[] bytes, String digest) throws IOException {
+        Long existing = digests.get(digest);
+        if (existing != null && entries.containsKey(existing)) {
+            pins.merge(existing, 1, Integer::sum);
+            return existing;
+        }
+        long id = add(bytes);
+        pins.put(id, 1);
+        refs.put(id, 0);
+        appendRefs(id, 0);
+        digests.put(digest, id);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(dir, digestsFile), true), StandardCharsets.UTF_8))) {
+            out.write(path(id) + "\t" + digest + "\n");
+        }
+        return id;
+    }
+
+    /**
+     * Reads a file and stores its bytes once per content, as intern does,
+     * pinning the entry for the caller.
+     *
+     * @param file the image file
+     * @return the photo path of the pinned entry holding the bytes of the file
+     * @throws IOException if the file cannot be read or the entry cannot be
+     *                     written
+     */
+    public String intern(File file) throws IOException {
+        return path(intern(Files.readAllBytes(file.toPath())));
+    }
+
+    /**
+     * Gives back a pin intern took, deleting the entry if no pin and no
+     * reference is left, as when the photo of an interned image is not added
+     * to any album after all.
+     *
+     * @param id the id of the entry
+     * @return true if the entry was deleted, false otherwise
+     * @throws IOException if the tombstone cannot be written
+     */
+    public synchronized boolean unpin(long id) throws IOException {
+        Integer count = pins.get(id);
+        if (count == null)
+            return false;
+        if (count > 1) {
+            pins.put(id, count - 1);
+            return false;
+        }
+        pins.remove(id);
+        Integer references = refs.get(id);
+        return references != null && references == 0 && delete(id);
+    }
+
+    /**
+     * Adds a reference to a reference counted entry. Entries that are not
+     * reference counted are left alone.
+     *
+     * @param id the id of the entry
+     * @throws IOException if the reference count cannot be written, or if the
+     *                     entry no longer exists
+     */
+    public synchronized void retain(long id) throws IOException {
+        Integer count = refs.get(id);
+        if (count == null) {
+            if (!entries.containsKey(id))
+                throw new IOException("Cannot reference deleted entry " + path(id));
+            return;
+        }
+        refs.put(id, count + 1);
+        appendRefs(id, count + 1);
+    }
+
+    /**
+     * Releases a reference to a reference counted entry, deleting the entry once
+     * no reference and no pin is left. Entries that are not reference counted
+     * are left alone.
+     *
+     * @param id the id of the entry
+     * @return true if the entry was deleted, false otherwise
+     * @throws IOException if the reference count or the tombstone cannot be
+     *                     written
+     */
+    public synchronized boolean release(long id) throws IOException {
+        Integer count = refs.get(id);
+        if (count == null || count == 0)
+            return false;
+        if (count > 1 || pins.containsKey(id)) {
+            refs.put(id, count - 1);
+            appendRefs(id, count - 1);
+            return false;
+        }
+        return delete(id);
+    }
+
+    /**
+     * Returns the number of references to an entry.
+     *
+     * @param id the id of the entry
+     * @return the number of references, or -1 if the entry is not reference
+     *         counted
+     */
+    public synchronized int refCount(long id) {
+        Integer count = refs.get(id);
+        return count == null ? -1 : count;
+    }
+
+    /**
+     * Returns the number of bytes of the data file taken by deleted entries.
+     *
+     * @return the reclaimable bytes
+     */
+    public synchronized long getGarbage() {
+        return garbage;
+    }
+
+    /**
+     * Returns the size of the data file.
+     *
+     * @return the size in bytes
+     * @throws IOException if the size cannot be read
+     */
+    public synchronized long getSize() throws IOException {
+        return data.size();
+    }
+
+    /**
+     * Rewrites the data file with the live entries only, keeping their ids, and
+     * writes a fresh index for it. The highest id is kept in the new index as a
+     * tombstone if its entry is gone, so ids are never reused. The list of
+     * reference counts is rewritten with one line per counted entry. All three
+     * files are written under temporary names and moved into place, the data
+     * file before the index; a crash between the two moves leaves an index of
+     * the previous generation, which is then rebuilt from the new data file.
+     *
+     * @throws IOException if the files cannot be rewritten
+     */
+    public synchronized void compact() throws IOException {
+        long next = generation + 1;
+        ArrayList<Map.Entry<Long, long[]>> live = new ArrayList<Map.Entry<Long, long[]>>(entries.entrySet());
+        live.sort((a, b) -> Long.compare(a.getValue()[0], b.getValue()[0]));
+        File dataTmp = File.createTempFile(dataFile, ".tmp", dir);
+        File indexTmp = File.createTempFile(indexFile, ".tmp", dir);
+        File refsTmp = File.createTempFile(refsFile, ".tmp", dir);
+        try {
+            try (Writer out = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(refsTmp), StandardCharsets.UTF_8))) {
+                for (Map.Entry<Long, Integer> count : refs.entrySet())
+                    out.write(path(count.getKey()) + "\t" + count.getValue() + "\n");
+            }
+            try (FileChannel out = FileChannel.open(dataTmp.toPath(), StandardOpenOption.WRITE);
+                    FileChannel idx = FileChannel.open(indexTmp.toPath(), StandardOpenOption.WRITE)) {
+                writeFully(out, header(next), 0);
+                writeFully(idx, header(next), 0);
+                long position = HEADER_LENGTH;
+                ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_LENGTH);
+                for (Map.Entry<Long, long[]> entry : live) {
+                    long id = entry.getKey();
+                    long length = entry.getValue()[1];
+                    ByteBuffer head = ByteBuffer.allocate(ENTRY_HEADER_LENGTH);
+                    head.putLong(id).putInt((int) length).flip();
+                    writeFully(out, head, position);
+                    out.position(position + ENTRY_HEADER_LENGTH);
+                    long copied = 0;
+                    while (copied < length)
+                        copied += data.transferTo(entry.getValue()[0] + copied, length - copied, out);
+                    long offset = position + ENTRY_HEADER_LENGTH;
+                    record.clear();
+                    record.putLong(id).putLong(offset).putInt((int) length).flip();
+                    writeFully(idx, record, idx.size());
+                    position = offset + length;
+                }
+                if (!entries.containsKey(lastId)) {
+                    record.clear();
+                    record.putLong(lastId).putLong(0).putInt(TOMBSTONE).flip();
+                    writeFully(idx, record, idx.size());
+                }
+                out.force(true);
+                idx.force(true);
+            }
+            closeChannels();
+            Files.move(refsTmp.toPath(), new File(dir, refsFile).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Files.move(dataTmp.toPath(), new File(dir, dataFile).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Files.move(indexTmp.toPath(), new File(dir, indexFile).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            dataTmp.delete();
+            indexTmp.delete();
+            refsTmp.delete();
+            if (data == null)
+                open();
+        }
+    }
+
+    /**
+     * Imports every serialized image of a directory into the store. A file
+     * imported before is not imported again as long as its entry still exists.
+     * Each file is read without holding the lock of the store, which is only
+     * taken to look the file up and to append its entry, so that the store
+     * stays usable while a large directory is imported.
+     * Stops early if the calling thread is interrupted; the files left are
+     * imported the next time.
+     *
+     * @param source the directory holding .ser files
+     * @return the photo path of the entry of every serialized image, by
+     *         canonical file path
+     * @throws IOException if an entry or the list of imports cannot be written
+     */
+    public Map<String, String> importDirectory(File source) throws IOException {
+        LinkedHashMap<String, String> result = new LinkedHashMap<String, String>();
+        File[] files = source.listFiles((d, name) -> name.endsWith(".ser"));
+        if (files == null)
+            return result;
+        Arrays.sort(files);
+        for (File file : files) {
+            if (Thread.currentThread().isInterrupted())
+                break;
+            String key = file.getCanonicalPath();
+            Long id = imported(key);
+            if (id == null) {
+                byte[] png;
+                try {
+                    png = SerializableImage.readEncoded(file);
+                } catch (IOException e) {
+                    continue;
+                }
+                id = addImport(key, png);
+            }
+            result.put(key, path(id));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entry an imported file was stored in.
+     *
+     * @param key the canonical path of the file
+     * @return the id of the entry, or null if the file was not imported or its
+     *         entry no longer exists
+     */
+    private synchronized Long imported(String key) {
+        Long id = imports.get(key);
+        return id != null && entries.containsKey(id) ? id : null;
+    }
+
+    /**
+     * Stores the encoded image of an imported file and records the import,
+     * unless the file was imported in the meantime.
+     *
+     * @param key   the canonical path of the file
+     * @param bytes the encoded image
+     * @return the id of the entry holding the image
+     * @throws IOException if the entry or the list of imports cannot be written
+     */
+    private synchronized long addImport(String key, byte[] bytes) throws IOException {
+        Long existing = imported(key);
+        if (existing != null)
+            return existing;
+        long id = add(bytes);
+        imports.put(key, id);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(dir, importsFile), true), StandardCharsets.UTF_8))) {
+            out.write(path(id) + "\t" + key + "\n");
+        }
+        return id;
+    }
+
+    /**
+     * Points every photo whose image was imported into the store at its entry
+     * instead of the original file.
+     *
+     * @param photos the photos to relink
+     * @return the number of photos relinked
+     */
+    public int relink(Collection<Photo> photos) {
+        int count = 0;
+        for (Photo photo : photos) {
+            String path = photo.getPath();
+            if (path == null || isBlob(path))
+                continue;
+            String key;
+            try {
+                File file = path.startsWith("file:") ? new File(URI.create(path)) : new File(path);
+                key = file.getCanonicalPath();
+            } catch (IOException | IllegalArgumentException e) {
+                continue;
+            }
+            Long id = imported(key);
+            if (id != null) {
+                photo.setThumbnail(path(id));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes the store. Compacts it first if deleted entries take more than half
+     * of the data file.
+     *
+     * @throws IOException if the store cannot be compacted or closed
+     */
+    public synchronized void close() throws IOException {
+        if (data == null)
+            return;
+        if (garbage > data.size() / 2)
+            compact();
+        closeChannels();
+    }
+
+    /**
+     * Opens both files and reads the index, rebuilding or completing it from the
+     * data file when needed, then reads the reference counts and deletes the
+     * interned entries no reference is held to.
+     *
+     * @throws IOException if the files cannot be opened or read
+     */
+    private void open() throws IOException {
+        entries.clear();
+        refs.clear();
+        garbage = 0;
+        lastId = 0;
+        File dataPath = new File(dir, dataFile);
+        data = FileChannel.open(dataPath.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (data.size() < HEADER_LENGTH) {
+            data.truncate(0);
+            writeFully(data, header(0), 0);
+        }
+        generation = readHeader(data, "data file");
+        index = FileChannel.open(new File(dir, indexFile).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long indexed = readIndex();
+        if (indexed < 0) {
+            index.truncate(0);
+            writeFully(index, header(generation), 0);
+            entries.clear();
+            garbage = 0;
+            indexed = HEADER_LENGTH;
+        }
+        recover(indexed);
+        mapped = null;
+        mappedLength = 0;
+        readRefs();
+        sweep();
+        readImports();
+        readDigests();
+    }
+
+    /**
+     * Reads the index into the table of entries. A torn record at its end is cut
+     * off.
+     *
+     * @return the end of the last entry of the data file the index knows about,
+     *         or -1 if the index has to be rebuilt
+     * @throws IOException if the index cannot be read
+     */
+    private long readIndex() throws IOException {
+        if (index.size() < HEADER_LENGTH)
+            return -1;
+        try {
+            if (readHeader(index, "index") != generation)
+                return -1;
+        } catch (StreamCorruptedException e) {
+            return -1;
+        }
+        long records = (index.size() - HEADER_LENGTH) / INDEX_RECORD_LENGTH;
+        index.truncate(HEADER_LENGTH + records * INDEX_RECORD_LENGTH);
+        ByteBuffer all = ByteBuffer.allocate((int) (records * INDEX_RECORD_LENGTH));
+        readFully(index, all, HEADER_LENGTH);
+        all.flip();
+        long end = HEADER_LENGTH;
+        for (long i = 0; i < records; i++) {
+            long id = all.getLong();
+            long offset = all.getLong();
+            int length = all.getInt();
+            lastId = Math.max(lastId, id);
+            if (length == TOMBSTONE) {
+                long[] entry = entries.remove(id);
+                refs.remove(id);
+                if (entry != null)
+                    garbage += ENTRY_HEADER_LENGTH + entry[1];
+            } else if (length == REFS) {
+                if (entries.containsKey(id))
+                    refs.put(id, (int) offset);
+            } else {
+                if (offset + length > data.size())
+                    return -1;
+                entries.put(id, new long[] { offset, length });
+                end = Math.max(end, offset + length);
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Adds the entries of the data file after the given position to the index
+     * and cuts off a torn entry at its end.
+     *
+     * @param from the position of the first entry the index does not know about
+     * @throws IOException if the files cannot be read or written
+     */
+    private void recover(long from) throws IOException {
+        long size = data.size();
+        long position = from;
+        ByteBuffer head = ByteBuffer.allocate(ENTRY_HEADER_LENGTH);
+        while (position + ENTRY_HEADER_LENGTH <= size) {
+            head.clear();
+            readFully(data, head, position);
+            head.flip();
+            long id = head.getLong();
+            int length = head.getInt();
+            long offset = position + ENTRY_HEADER_LENGTH;
+            if (id <= 0 || length < 0 || offset + length > size)
+                break;
+            lastId = Math.max(lastId, id);
+            entries.put(id, new long[] { offset, length });
+            appendIndex(id, offset, length);
+            position = offset + length;
+        }
+        if (position < size)
+            data.truncate(position);
+    }
+
+    /**
+     * Reads the list of reference counts, keeping the last count of every entry
+     * that still exists. An entry deleted before the index was rebuilt comes
+     * back from the data file with a count of 0. If the list does not exist yet,
+     * it is written from the counts an earlier version kept in the index.
+     *
+     * @throws IOException if the list cannot be read or written
+     */
+    private void readRefs() throws IOException {
+        File file = new File(dir, refsFile);
+        if (!file.isFile()) {
+            for (Map.Entry<Long, Integer> count : refs.entrySet())
+                appendRefs(count.getKey(), count.getValue());
+            return;
+        }
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            int tab = line.indexOf('\t');
+            if (tab < 0 || !isBlob(line.substring(0, tab)))
+                continue;
+            try {
+                long id = id(line.substring(0, tab));
+                int count = Integer.parseInt(line.substring(tab + 1));
+                if (entries.containsKey(id) && count >= 0)
+                    refs.put(id, count);
+            } catch (NumberFormatException e) {
+            }
+        }
+    }
+
+    /**
+     * Deletes every reference counted entry no reference and no pin is held to.
+     * Such an entry was interned by an import that failed, was cancelled or
+     * crashed before its photo was added to an album. Pinned entries are kept,
+     * since the store is also reopened after a compaction, while an import may
+     * be in progress.
+     *
+     * @throws IOException if a tombstone cannot be written
+     */
+    private void sweep() throws IOException {
+        ArrayList<Long> unreferenced = new ArrayList<Long>();
+        for (Map.Entry<Long, Integer> count : refs.entrySet())
+            if (count.getValue() == 0 && !pins.containsKey(count.getKey()))
+                unreferenced.add(count.getKey());
+        for (long id : unreferenced)
+            delete(id);
+    }
+
+    /**
+     * Reads the list of imported files. Lines naming an entry that no longer
+     * exists are ignored when looking an import up, but their ids are never
+     * handed out again.
+     *
+     * @throws IOException if the list cannot be read
+     */
+    private void readImports() throws IOException {
+        imports.clear();
+        File file = new File(dir, importsFile);
+        if (!file.isFile())
+            return;
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            int tab = line.indexOf('\t');
+            if (tab < 0 || !isBlob(line.substring(0, tab)))
+                continue;
+            try {
+                long id = id(line.substring(0, tab));
+                imports.put(line.substring(tab + 1), id);
+                lastId = Math.max(lastId, id);
+            } catch (NumberFormatException e) {
+            }
+        }
+    }
+
+    /**
+     * Reads the list of digests of interned entries. Lines naming an entry that
+     * no longer exists are ignored.
+     *
+     * @throws IOException if the list cannot be read
+     */
+    private void readDigests() throws IOException {
+        digests.clear();
+        File file = new File(dir, digestsFile);
+        if (!file.isFile())
+            return;
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            int tab = line.indexOf('\t');
+            if (tab < 0 || !isBlob(line.substring(0, tab)))
+                continue;
+            try {
+                long id = id(line.substring(0, tab));
+                if (entries.containsKey(id))
+                    digests.put(line.substring(tab + 1), id);
+            } catch (NumberFormatException e) {
+            }
+        }
+    }
+
+    /**
+     * Returns the SHA-256 digest of some bytes.
+     *
+     * @param bytes the bytes
+     * @return the digest, in hexadecimal
+     */
+    static String digest(byte[] bytes) {
+        try {
+            StringBuilder sb = new StringBuilder(64);
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes))
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Appends the reference count of an entry to the list of reference counts.
+     *
+     * @param id    the id of the entry
+     * @param count the number of references
+     * @throws IOException if the count cannot be written
+     */
+    private void appendRefs(long id, int count) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(dir, refsFile), true), StandardCharsets.UTF_8))) {
+            out.write(path(id) + "\t" + count + "\n");
+        }
+    }
+
+    /**
+     * Appends a record to the index.
+     *
+     * @param id     the id of the entry
+     * @param offset the offset of its data in the data file
+     * @param length the length of its data or TOMBSTONE
+     * @throws IOException if the record cannot be written
+     */
+    private void appendIndex(long id, long offset, int length) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_LENGTH);
+        record.putLong(id).putLong(offset).putInt(length).flip();
+        writeFully(index, record, index.size());
+    }
+
+    /**
+     * Closes both files and drops the mapping.
+     *
+     * @throws IOException if a file cannot be closed
+     */
+    private void closeChannels() throws IOException {
+        mapped = null;
+        mappedLength = 0;
+        if (index != null)
+            index.close();
+        if (data != null)
+            data.close();
+        index = null;
+        data = null;
+    }
+
+    /**
+     * Returns the header of a file of the given generation.
+     *
+     * @param generation the generation
+     * @return the header, ready to be written
+     */
+    private static ByteBuffer header(long generation) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(VERSION).putLong(generation).flip();
+        return header;
+    }
+
+    /**
+     * Reads and checks the header of a file, upgrading it to the current version
+     * if it was written by an earlier one.
+     *
+     * @param channel the file
+     * @param name    the name of the file in error messages
+     * @return the generation of the file
+     * @throws IOException if the file cannot be read or has no valid header
+     */
+    private static long readHeader(FileChannel channel, String name) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(channel, header, 0);
+        header.flip();
+        int version;
+        if (header.getInt() != MAGIC || (version = header.getInt()) < 1 || version > VERSION)
+            throw new StreamCorruptedException("Not a blob store " + name);
+        long generation = header.getLong();
+        if (version < VERSION)
+            writeFully(channel, header(generation), 0);
+        return generation;
+    }
+
+    /**
+     * Writes a whole buffer at the given position of a file.
+     *
+     * @param channel  the file
+     * @param buffer   the bytes to write
+     * @param position the position to write them at
+     * @throws IOException if the bytes cannot be written
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    /**
+     * Fills a buffer from the given position of a file.
+     *
+     * @param channel  the file
+     * @param buffer   the buffer to fill
+     * @param position the position to read from
+     * @throws IOException if the file ends before the buffer is full
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0)
+                throw new StreamCorruptedException("Unexpected end of blob store file");
+            position += n;
+        }
+    }
+
+    /**
+     * An InputStream reading a ByteBuffer, so that an entry can be decoded
+     * straight from the mapping of the data file.
+     */
+    private static class BufferInputStream extends InputStream {
+        /**
+         * The bytes left to read.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * Constructs a stream over the remaining bytes of a buffer.
+         *
+         * @param buffer the buffer
+         */
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package photopack;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+
+/**
+ * The DateIndex class keeps the photos of one User sorted by the day they were
+ * taken, as two parallel arrays of epoch days and photo ids ordered by day and
+ * then by id. A range of days resolves by binary search to a contiguous slice
+ * of those arrays, returned as a BitSet of photo ids so that it can be
+ * intersected with the results of the TagIndex.
+ * Only photos contained in at least one of the User's albums are indexed; the
+ * User adds and removes them as they enter and leave its albums, and moves them
+ * when their date changes. Photos without a date are not indexed.
+ */
+public class DateIndex {
+    /**
+     * The number of milliseconds in a day.
+     */
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    /**
+     * The epoch day of every indexed photo, in ascending order.
+     */
+    private long[] days = new long[64];
+    /**
+     * The id of every indexed photo, in the order of days.
+     */
+    private int[] ids = new int[64];
+    /**
+     * The number of indexed photos.
+     */
+    private int size;
+    /**
+     * The epoch day every indexed photo is filed under, by photo id.
+     */
+    private long[] dayOf = new long[64];
+    /**
+     * The ids of the indexed photos.
+     */
+    private final BitSet indexed = new BitSet();
+
+    /**
+     * Returns the day a Calendar falls on, counted from 1970-01-01 in the time
+     * zone of the Calendar.
+     *
+     * @param cal the Calendar
+     * @return the epoch day
+     */
+    public static long epochDay(Calendar cal) {
+        long millis = cal.getTimeInMillis();
+        return Math.floorDiv(millis + cal.getTimeZone().getOffset(millis), DAY_MILLIS);
+    }
+
+    /**
+     * Adds a photo to the index. A photo already indexed or without a date is
+     * left alone.
+     *
+     * @param photo the photo
+     */
+    void add(Photo photo) {
+        int id = Math.toIntExact(photo.getId());
+        if (indexed.get(id) || photo.getCal() == null)
+            return;
+        long day = epochDay(photo.getCal());
+        if (id >= dayOf.length)
+            dayOf = Arrays.copyOf(dayOf, Math.max(id + 1, dayOf.length * 2));
+        if (size == days.length) {
+            days = Arrays.copyOf(days, size * 2);
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        int at = -search(day, id) - 1;
+        System.arraycopy(days, at, days, at + 1, size - at);
+        System.arraycopy(ids, at, ids, at + 1, size - at);
+        days[at] = day;
+        ids[at] = id;
+        size++;
+        dayOf[id] = day;
+        indexed.set(id);
+    }
+
+    /**
+     * Removes a photo from the index, if it is indexed.
+     *
+     * @param photo the photo
+     */
+    void remove(Photo photo) {
+        int id = Math.toIntExact(photo.getId());
+        if (!indexed.get(id))
+            return;
+        int at = search(dayOf[id], id);
+        System.arraycopy(days, at + 1, days, at, size - at - 1);
+        System.arraycopy(ids, at + 1, ids, at, size - at - 1);
+        size--;
+        indexed.clear(id);
+    }
+
+    /**
+     * Files a photo under its new date, or stops indexing it if its date was
+     * cleared.
+     *
+     * @param photo the photo whose date changed
+     */
+    void update(Photo photo) {
+        remove(photo);
+        add(photo);
+    }
+
+    /**
+     * Returns the ids of the photos taken between two days, both included.
+     *
+     * @param fromDay the first epoch day
+     * @param toDay   the last epoch day
+     * @return the ids of the matching photos, empty if toDay is before fromDay
+     */
+    public BitSet range(long fromDay, long toDay) {
+        BitSet result = new BitSet();
+        if (toDay < fromDay)
+            return result;
+        int from = -search(fromDay, -1) - 1;
+        int to = -search(toDay, Integer.MAX_VALUE) - 1;
+        for (int i = from; i < to; i++)
+            result.set(ids[i]);
+        return result;
+    }
+
+    /**
+     * Returns the number of photos taken between two days, both included,
+     * without collecting their ids.
+     *
+     * @param fromDay the first epoch day
+     * @param toDay   the last epoch day
+     * @return the number of matching photos
+     */
+    public int count(long fromDay, long toDay) {
+        if (toDay < fromDay)
+            return 0;
+        return search(fromDay, -1) - search(toDay, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the number of indexed photos.
+     *
+     * @return the number of photos
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Searches the sorted arrays for a day and id.
+     *
+     * @param day the epoch day
+     * @param id  the photo id
+     * @return the position of the entry if it is present, otherwise
+     *         (-(insertion point) - 1)
+     */
+    private int search(long day, int id) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = days[mid] != day ? Long.compare(days[mid], day) : Integer.compare(ids[mid], id);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+}
@@ -0,0 +1,487 @@
+package photopack;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+
+/**
+ * The ImageDecodeService class decodes photo images on a bounded pool of
+ * background threads so that the JavaFX Application Thread never blocks on
+ * file reads or image decoding.
+ * Every request returns a Future; when the image is decoded it is handed to a
+ * callback on the JavaFX Application Thread unless the request was cancelled in
+ * the meantime. Cancelled requests that have not started yet are removed from
+ * the work queue, so recycled list cells do not leave dead decodes behind.
+ * Requests for images in view are served before prefetches of images about to
+ * scroll into view, and requests of the same priority in the order they were
+ * made.
+ * An ImageView loaded through loadInto or loadThumbnailInto holds a lease of
+ * the PixelBufferPool on the image it shows, so that the ThumbnailCache evicting
+ * the image does not hand its buffer to another image while it is on screen.
+ * The lease is released when the view is loaded with another image or
+ * unloaded; a leased image whose request is cancelled before it is shown is
+ * released straight away.
+ */
+public class ImageDecodeService {
+    /**
+     * The priority of requests for images in view.
+     */
+    public static final int PRIORITY_VISIBLE = 0;
+    /**
+     * The priority of prefetches, served once no image in view is waiting.
+     */
+    public static final int PRIORITY_PREFETCH = 1;
+    /**
+     * The width of the placeholder shown while an image is being decoded.
+     */
+    private static final int PLACEHOLDER_WIDTH = 200;
+    /**
+     * The height of the placeholder shown while an image is being decoded.
+     */
+    private static final int PLACEHOLDER_HEIGHT = 150;
+    /**
+     * The key of the image an ImageView holds a lease on, in the properties of
+     * the view.
+     */
+    private static final String LEASE_KEY = ImageDecodeService.class.getName() + ".lease";
+    /**
+     * The shared instance used by every controller of the application.
+     */
+    private static final ImageDecodeService instance = new ImageDecodeService(
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+    /**
+     * The placeholder image, created lazily on the JavaFX Application Thread.
+     */
+    private static Image placeholder;
+    /**
+     * The pool of worker threads doing the decoding.
+     */
+    private final ThreadPoolExecutor executor;
+    /**
+     * The number of requests made so far, ordering requests of the same
+     * priority.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Constructs an ImageDecodeService backed by the given number of daemon
+     * worker threads.
+     *
+     * @param threads the number of worker threads
+     */
+    public ImageDecodeService(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, "image-decode-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), factory);
+    }
+
+    /**
+     * Returns the decode service shared by the whole application.
+     *
+     * @return the shared ImageDecodeService
+     */
+    public static ImageDecodeService getInstance() {
+        return instance;
+    }
+
+    /**
+     * Decodes the image of the given photo path in the background.
+     * The image is taken from the shared ThumbnailCache if it is there, and
+     * stored in it otherwise. When the image is ready, the callback is run on
+     * the JavaFX Application Thread unless the returned Future was cancelled.
+     *
+     * @param path     the path of the photo to decode
+     * @param onLoaded the callback receiving the decoded image, may be null
+     * @return a Future for the decoded image
+     */
+    public Future<Image> submit(String path, Consumer<Image> onLoaded) {
+        return submit(path, 0, 0, onLoaded);
+    }
+
+    /**
+     * Decodes the image of the given photo path in the background, at the
+     * smallest size covering a box, the same way submit does for the full-size
+     * image.
+     *
+     * @param path     the path of the photo to decode
+     * @param width    the width of the box, or 0 for the full-size image
+     * @param height   the height of the box, or 0 for the full-size image
+     * @param onLoaded the callback receiving the decoded image, may be null
+     * @return a Future for the decoded image
+     */
+    public Future<Image> submit(String path, int width, int height, Consumer<Image> onLoaded) {
+        return submit(() -> ThumbnailCache.getInstance().load(path, width, height), onLoaded);
+    }
+
+    /**
+     * Decodes the image of the given photo path in the background without going
+     * through the ThumbnailCache, for callers such as the slideshow that manage
+     * the lifetime of their images themselves. The callback receives null if
+     * the image cannot be decoded, and an image decoded for a request cancelled
+     * before it was handed over is released to the PixelBufferPool.
+     *
+     * @param path     the path of the photo to decode
+     * @param onLoaded the callback receiving the decoded image, or null if it
+     *                 cannot be decoded; may be null
+     * @return a Future for the decoded image
+     */
+    public Future<Image> submitUncached(String path, Consumer<Image> onLoaded) {
+        return submitUncached(path, 0, 0, onLoaded);
+    }
+
+    /**
+     * Decodes the image of the given photo path in the background without going
+     * through the ThumbnailCache, at the smallest size covering a box, the same
+     * way submitUncached does for the full-size image.
+     *
+     * @param path     the path of the photo to decode
+     * @param width    the width of the box, or 0 for the full-size image
+     * @param height   the height of the box, or 0 for the full-size image
+     * @param onLoaded the callback receiving the decoded image, or null if it
+     *                 cannot be decoded; may be null
+     * @return a Future for the decoded image
+     */
+    public Future<Image> submitUncached(String path, int width, int height, Consumer<Image> onLoaded) {
+        DecodeTask task = new DecodeTask(() -> SerializableImage.load(path, width, height), onLoaded,
+                PixelBufferPool.getInstance()::release, true, PRIORITY_VISIBLE, sequence.getAndIncrement());
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Loads the thumbnail of the given photo path in the background, the same
+     * way submit does for the full-size image.
+     *
+     * @param path     the path of the photo
+     * @param onLoaded the callback receiving the thumbnail, may be null
+     * @return a Future for the thumbnail
+     */
+    public Future<Image> submitThumbnail(String path, Consumer<Image> onLoaded) {
+        return submit(() -> ThumbnailCache.getInstance().loadThumbnail(path), onLoaded);
+    }
+
+    /**
+     * Loads the thumbnail of the given photo path into the ThumbnailCache in the
+     * background, at prefetch priority, so that it is there by the time its
+     * photo scrolls into view. The thumbnail is leased and released straight
+     * away, so that one too large for the cache goes back to the
+     * PixelBufferPool instead of being left to the garbage collector.
+     *
+     * @param path the path of the photo
+     * @return a Future for the thumbnail, to be cancelled if the photo is no
+     *         longer expected to come into view; the thumbnail it holds must
+     *         not be shown
+     */
+    public Future<Image> prefetchThumbnail(String path) {
+        return submit(() -> {
+            Image image = ThumbnailCache.getInstance().leaseThumbnail(path);
+            PixelBufferPool.getInstance().release(image);
+            return image;
+        }, null, PRIORITY_PREFETCH);
+    }
+
+    /**
+     * Shows the image of the given photo path in an ImageView.
+     * The image is decoded at the smallest size covering the fit size of the
+     * view, or at full size if the view has none.
+     * If the image is already cached it is shown straight away; otherwise the
+     * placeholder is shown and the image is swapped in once it is decoded. The
+     * cache is only checked with contains here, so that a miss is counted once,
+     * by the lookup of the background load.
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @param view the ImageView to show the image in
+     * @param path the path of the photo to show
+     * @return a Future for the decoded image, to be cancelled if the view is
+     *         reused before the image arrives
+     */
+    public Future<Image> loadInto(ImageView view, String path) {
+        int width = (int) Math.ceil(view.getFitWidth());
+        int height = (int) Math.ceil(view.getFitHeight());
+        String key = ThumbnailCache.key(path, width, height);
+        ThumbnailCache cache = ThumbnailCache.getInstance();
+        Image cached = cache.contains(key) ? cache.lease(key) : null;
+        if (cached != null) {
+            show(view, cached);
+            return CompletableFuture.completedFuture(cached);
+        }
+        show(view, getPlaceholder());
+        return submitLeased(() -> cache.lease(path, width, height), view);
+    }
+
+    /**
+     * Shows the thumbnail of the given photo path in an ImageView, the same way
+     * loadInto does for the full-size image.
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @param view the ImageView to show the thumbnail in
+     * @param path the path of the photo to show
+     * @return a Future for the thumbnail, to be cancelled if the view is reused
+     *         before the thumbnail arrives
+     */
+    public Future<Image> loadThumbnailInto(ImageView view, String path) {
+        String key = path + ThumbnailCache.THUMBNAIL_SUFFIX;
+        ThumbnailCache cache = ThumbnailCache.getInstance();
+        Image cached = cache.contains(key) ? cache.lease(key) : null;
+        if (cached != null) {
+            show(view, cached);
+            return CompletableFuture.completedFuture(cached);
+        }
+        show(view, getPlaceholder());
+        return submitLeased(() -> cache.leaseThumbnail(path), view);
+    }
+
+    /**
+     * Clears an ImageView loaded through loadInto or loadThumbnailInto and
+     * releases its lease on the image it showed. Requests still loading into
+     * the view must be cancelled first.
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @param view the ImageView to clear
+     */
+    public void unload(ImageView view) {
+        show(view, null);
+    }
+
+    /**
+     * Shows an image in an ImageView, taking over the caller's lease on it, and
+     * releases the lease the view held on the image it showed before, which
+     * may be the same image shown again.
+     *
+     * @param view  the ImageView
+     * @param image the image to show, or null
+     */
+    private static void show(ImageView view, Image image) {
+        Object old = image == null ? view.getProperties().remove(LEASE_KEY)
+                : view.getProperties().put(LEASE_KEY, image);
+        view.setImage(image);
+        PixelBufferPool.getInstance().release((Image) old);
+    }
+
+    /**
+     * Cancels a pending request and removes it from the work queue if it has not
+     * started yet. Its callback will not be run. Null is ignored.
+     *
+     * @param future the Future returned by submit or loadInto
+     */
+    public void cancel(Future<?> future) {
+        if (future == null)
+            return;
+        future.cancel(false);
+        if (future instanceof Runnable)
+            executor.remove((Runnable) future);
+    }
+
+    /**
+     * Queues a decode of an image in view on the worker threads.
+     *
+     * @param decoder  the work decoding the image
+     * @param onLoaded the callback receiving the decoded image, may be null
+     * @return a Future for the decoded image
+     */
+    private Future<Image> submit(Callable<Image> decoder, Consumer<Image> onLoaded) {
+        return submit(decoder, onLoaded, PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Queues a decode on the worker threads.
+     *
+     * @param decoder  the work decoding the image
+     * @param onLoaded the callback receiving the decoded image, may be null
+     * @param priority PRIORITY_VISIBLE or PRIORITY_PREFETCH
+     * @return a Future for the decoded image
+     */
+    private Future<Image> submit(Callable<Image> decoder, Consumer<Image> onLoaded, int priority) {
+        DecodeTask task = new DecodeTask(decoder, onLoaded, null, false, priority, sequence.getAndIncrement());
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Queues a decode of an image in view whose result is leased for the view
+     * showing it. The image is shown in the view once decoded, and released if
+     * the request is cancelled instead.
+     *
+     * @param decoder the work decoding and leasing the image
+     * @param view    the ImageView to show the image in
+     * @return a Future for the decoded image
+     */
+    private Future<Image> submitLeased(Callable<Image> decoder, ImageView view) {
+        DecodeTask task = new DecodeTask(decoder, image -> show(view, image),
+                PixelBufferPool.getInstance()::release, false, PRIORITY_VISIBLE, sequence.getAndIncrement());
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Returns the number of requests waiting for a worker thread.
+     *
+     * @return the length of the work queue
+     */
+    public int getQueueLength() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops the worker threads. Pending requests are discarded.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the image shown while a photo is being decoded, a plain light grey
+     * rectangle the size of a list cell image.
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @return the placeholder image
+     */
+    public static Image getPlaceholder() {
+        if (placeholder == null) {
+            WritableImage image = new WritableImage(PLACEHOLDER_WIDTH, PLACEHOLDER_HEIGHT);
+            PixelWriter writer = image.getPixelWriter();
+            for (int y = 0; y < PLACEHOLDER_HEIGHT; y++)
+                for (int x = 0; x < PLACEHOLDER_WIDTH; x++)
+                    writer.setColor(x, y, Color.gray(0.9));
+            placeholder = image;
+        }
+        return placeholder;
+    }
+
+    /**
+     * A decode request. Once the image is decoded, the callback is posted to the
+     * JavaFX Application Thread, where it is dropped if the request was
+     * cancelled after the decode finished.
+     * Requests are ordered by priority, then by the order they were made in.
+     */
+    private static class DecodeTask extends FutureTask<Image> implements Comparable<DecodeTask> {
+        /**
+         * The callback receiving the decoded image, or null.
+         */
+        private final Consumer<Image> onLoaded;
+        /**
+         * The callback receiving the decoded image if the request is cancelled
+         * before it is handed to onLoaded, or null.
+         */
+        private final Consumer<Image> onDropped;
+        /**
+         * Whether onLoaded receives null when the image cannot be decoded.
+         */
+        private final boolean reportFailure;
+        /**
+         * The priority of the request, lower values being served first.
+         */
+        private final int priority;
+        /**
+         * The position of the request in the order requests were made.
+         */
+        private final long sequence;
+        /**
+         * Set once the request is cancelled, even if the decode already finished.
+         */
+        private volatile boolean stale;
+
+        /**
+         * Constructs a DecodeTask.
+         *
+         * @param decoder  the work decoding the image
+         * @param onLoaded  the callback receiving the decoded image, may be null
+         * @param onDropped     the callback receiving the decoded image if the
+         *                      request is cancelled, may be null
+         * @param reportFailure whether onLoaded receives null when the image
+         *                      cannot be decoded
+         * @param priority      the priority of the request
+         * @param sequence      the position of the request in the order
+         *                      requests were made
+         */
+        DecodeTask(Callable<Image> decoder, Consumer<Image> onLoaded, Consumer<Image> onDropped,
+                boolean reportFailure, int priority, long sequence) {
+            super(decoder);
+            this.onLoaded = onLoaded;
+            this.onDropped = onDropped;
+            this.reportFailure = reportFailure;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Orders requests by priority, then by the order they were made in.
+         *
+         * @param other the request to compare with
+         * @return a negative number if this request is served first
+         */
+        @Override
+        public int compareTo(DecodeTask other) {
+            if (priority != other.priority)
+                return Integer.compare(priority, other.priority);
+            return Long.compare(sequence, other.sequence);
+        }
+
+        /**
+         * Marks the request as stale before cancelling it.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            stale = true;
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        /**
+         * Stores the decoded image, or drops it if the request was cancelled
+         * while it was being decoded.
+         */
+        @Override
+        protected void set(Image image) {
+            super.set(image);
+            if (isCancelled() && image != null && onDropped != null)
+                onDropped.accept(image);
+        }
+
+        /**
+         * Posts the decoded image to the callback on the JavaFX Application
+         * Thread, or drops it there if the request was cancelled in the
+         * meantime. A failed decode is posted as null if the request reports
+         * failures, and dropped silently otherwise.
+         */
+        @Override
+        protected void done() {
+            if (onLoaded == null || isCancelled())
+                return;
+            Image decoded;
+            try {
+                decoded = get();
+            } catch (Exception e) {
+                decoded = null;
+            }
+            if (decoded == null && !reportFailure)
+                return;
+            Image image = decoded;
+            Platform.runLater(() -> {
+                if (!stale)
+                    onLoaded.accept(image);
+                else if (onDropped != null && image != null)
+                    onDropped.accept(image);
+            });
+        }
+    }
+}
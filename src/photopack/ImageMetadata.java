@@ -0,0 +1,460 @@
+package photopack;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * The ImageMetadata class reads the dimensions, orientation and capture time of
+ * an image from the headers of its file, without decoding a single pixel.
+ * JPEG, PNG, GIF and BMP files are understood, as well as PackedImage
+ * containers. The stream is read marker by marker or chunk by chunk and left
+ * as soon as the image data starts, so only the first few kilobytes of a file
+ * are ever read.
+ * The orientation and capture time come from the EXIF block of a JPEG (APP1)
+ * or PNG (eXIf) file. The capture time is the EXIF DateTimeOriginal, in the
+ * time zone of OffsetTimeOriginal if the camera recorded one and in the local
+ * time zone otherwise, falling back to DateTimeDigitized and DateTime.
+ */
+public class ImageMetadata {
+    /**
+     * The EXIF orientation of an image stored upright.
+     */
+    public static final int UPRIGHT = 1;
+    /**
+     * The largest EXIF block read, which is the largest JPEG segment.
+     */
+    private static final int MAX_EXIF_LENGTH = 0xFFFF;
+    /**
+     * The tag of the orientation in IFD0.
+     */
+    private static final int TAG_ORIENTATION = 0x0112;
+    /**
+     * The tag of the modification time in IFD0.
+     */
+    private static final int TAG_DATE_TIME = 0x0132;
+    /**
+     * The tag of the pointer to the EXIF IFD in IFD0.
+     */
+    private static final int TAG_EXIF_IFD = 0x8769;
+    /**
+     * The tag of the capture time in the EXIF IFD.
+     */
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    /**
+     * The tag of the digitization time in the EXIF IFD.
+     */
+    private static final int TAG_DATE_TIME_DIGITIZED = 0x9004;
+    /**
+     * The tag of the time zone offset of the capture time in the EXIF IFD.
+     */
+    private static final int TAG_OFFSET_TIME_ORIGINAL = 0x9011;
+    /**
+     * The width of the image in pixels.
+     */
+    private int width;
+    /**
+     * The height of the image in pixels.
+     */
+    private int height;
+    /**
+     * The EXIF orientation of the image, from 1 to 8.
+     */
+    private int orientation = UPRIGHT;
+    /**
+     * The time the image was captured, or null if it is not recorded.
+     */
+    private Calendar taken;
+
+    /**
+     * Constructs empty metadata, filled in by the readers.
+     */
+    private ImageMetadata() {
+    }
+
+    /**
+     * Reads the metadata of an image file.
+     *
+     * @param file the image file
+     * @return the metadata, or null if the file is not an image in a known
+     *         format
+     * @throws IOException if the file cannot be read
+     */
+    public static ImageMetadata read(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Reads the metadata of the image of a photo path: a "blob:" path of the
+     * BlobStore, a serialized image or a plain image file.
+     *
+     * @param path the path of the photo
+     * @return the metadata, or null if the image is not in a known format
+     * @throws IOException if the image cannot be read
+     */
+    public static ImageMetadata read(String path) throws IOException {
+        if (BlobStore.isBlob(path)) {
+            try (InputStream in = BlobStore.getInstance().open(path)) {
+                return read(in);
+            }
+        }
+        File file = new File(path);
+        if (path.endsWith(".ser"))
+            return read(new ByteArrayInputStream(SerializableImage.readEncoded(file)));
+        return read(file);
+    }
+
+    /**
+     * Reads the metadata of an image from the start of a stream. The stream is
+     * left positioned somewhere in the image and is not closed.
+     *
+     * @param stream the stream over the encoded image
+     * @return the metadata, or null if the image is not in a known format
+     * @throws IOException if the stream cannot be read
+     */
+    public static ImageMetadata read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 8192));
+        in.mark(2);
+        int b0 = in.read();
+        int b1 = in.read();
+        in.reset();
+        try {
+            if (b0 == 0xFF && b1 == 0xD8)
+                return readJpeg(in);
+            if (b0 == 0x89 && b1 == 'P')
+                return readPng(in);
+            if (b0 == 'G' && b1 == 'I')
+                return readGif(in);
+            if (b0 == 'B' && b1 == 'M')
+                return readBmp(in);
+            if (b0 == 'P' && b1 == 'P')
+                return readPacked(in);
+        } catch (EOFException e) {
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the capture time of an image file: the time recorded in its
+     * metadata, or else the time the file was last modified.
+     *
+     * @param file     the image file
+     * @param metadata the metadata of the file, or null if it has none
+     * @return the capture time, to the second
+     */
+    public static Calendar captureDate(File file, ImageMetadata metadata) {
+        if (metadata != null && metadata.taken != null)
+            return metadata.taken;
+        Calendar cal = Calendar.getInstance();
+        long modified = file.lastModified();
+        if (modified > 0)
+            cal.setTimeInMillis(modified);
+        cal.set(Calendar.MILLISECOND, 0);
+        return cal;
+    }
+
+    /**
+     * Returns the width of the image, as stored.
+     *
+     * @return the width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the image, as stored.
+     *
+     * @return the height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the EXIF orientation of the image. Orientations 5 to 8 are
+     * rotated by a quarter turn, so the image is shown with its width and
+     * height swapped.
+     *
+     * @return the orientation, from 1 to 8
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * Returns the time the image was captured, as recorded in its metadata.
+     *
+     * @return the capture time, or null if it is not recorded
+     */
+    public Calendar getTaken() {
+        return taken;
+    }
+
+    /**
+     * Reads the metadata of a JPEG image, from the segments before its frame
+     * header and the frame header itself.
+     *
+     * @param in the stream, at the start of the image
+     * @return the metadata, or null if there is no frame header
+     * @throws IOException if the stream cannot be read
+     */
+    private static ImageMetadata readJpeg(DataInputStream in) throws IOException {
+        ImageMetadata metadata = new ImageMetadata();
+        in.skipNBytes(2);
+        while (true) {
+            if (in.readUnsignedByte() != 0xFF)
+                continue;
+            int marker = in.readUnsignedByte();
+            while (marker == 0xFF)
+                marker = in.readUnsignedByte();
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7))
+                continue;
+            if (marker == 0xD9 || marker == 0xDA)
+                return null;
+            int length = in.readUnsignedShort() - 2;
+            if (length < 0)
+                return null;
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                in.readUnsignedByte();
+                metadata.height = in.readUnsignedShort();
+                metadata.width = in.readUnsignedShort();
+                return metadata;
+            }
+            if (marker == 0xE1 && length > 6) {
+                byte[] segment = new byte[length];
+                in.readFully(segment);
+                if (segment[0] == 'E' && segment[1] == 'x' && segment[2] == 'i' && segment[3] == 'f'
+                        && segment[4] == 0 && segment[5] == 0)
+                    metadata.readExif(ByteBuffer.wrap(segment, 6, length - 6).slice());
+            } else {
+                in.skipNBytes(length);
+            }
+        }
+    }
+
+    /**
+     * Reads the metadata of a PNG image, from its header chunk and the chunks
+     * before its image data.
+     *
+     * @param in the stream, at the start of the image
+     * @return the metadata, or null if the stream is not a PNG image
+     * @throws IOException if the stream cannot be read
+     */
+    private static ImageMetadata readPng(DataInputStream in) throws IOException {
+        if (in.readLong() != 0x89504E470D0A1A0AL)
+            return null;
+        ImageMetadata metadata = new ImageMetadata();
+        while (true) {
+            long length = in.readInt() & 0xFFFFFFFFL;
+            byte[] type = new byte[4];
+            in.readFully(type);
+            String chunk = new String(type, StandardCharsets.ISO_8859_1);
+            if (chunk.equals("IDAT") || chunk.equals("IEND"))
+                return metadata.width > 0 ? metadata : null;
+            if (chunk.equals("IHDR") && length >= 8) {
+                metadata.width = in.readInt();
+                metadata.height = in.readInt();
+                in.skipNBytes(length - 8 + 4);
+            } else if (chunk.equals("eXIf") && length <= MAX_EXIF_LENGTH) {
+                byte[] exif = new byte[(int) length];
+                in.readFully(exif);
+                metadata.readExif(ByteBuffer.wrap(exif));
+                in.skipNBytes(4);
+            } else {
+                in.skipNBytes(length + 4);
+            }
+        }
+    }
+
+    /**
+     * Reads the metadata of a GIF image from its logical screen descriptor.
+     *
+     * @param in the stream, at the start of the image
+     * @return the metadata, or null if the stream is not a GIF image
+     * @throws IOException if the stream cannot be read
+     */
+    private static ImageMetadata readGif(DataInputStream in) throws IOException {
+        byte[] header = new byte[10];
+        in.readFully(header);
+        if (header[2] != 'F' || header[3] != '8')
+            return null;
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        ImageMetadata metadata = new ImageMetadata();
+        metadata.width = buffer.getShort(6) & 0xFFFF;
+        metadata.height = buffer.getShort(8) & 0xFFFF;
+        return metadata;
+    }
+
+    /**
+     * Reads the metadata of a BMP image from its file and DIB headers.
+     *
+     * @param in the stream, at the start of the image
+     * @return the metadata
+     * @throws IOException if the stream cannot be read
+     */
+    private static ImageMetadata readBmp(DataInputStream in) throws IOException {
+        byte[] header = new byte[26];
+        in.readFully(header);
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        ImageMetadata metadata = new ImageMetadata();
+        if (buffer.getInt(14) == 12) {
+            metadata.width = buffer.getShort(18) & 0xFFFF;
+            metadata.height = buffer.getShort(20) & 0xFFFF;
+        } else {
+            metadata.width = Math.abs(buffer.getInt(18));
+            metadata.height = Math.abs(buffer.getInt(22));
+        }
+        return metadata;
+    }
+
+    /**
+     * Reads the metadata of a PackedImage container from its header, giving the
+     * size of its full-size level.
+     *
+     * @param in the stream, at the start of the container
+     * @return the metadata, or null if the stream is not a PackedImage
+     *         container
+     * @throws IOException if the stream cannot be read
+     */
+    private static ImageMetadata readPacked(DataInputStream in) throws IOException {
+        if (in.readInt() != PackedImage.MAGIC)
+            return null;
+        int version = in.readUnsignedByte();
+        in.skipNBytes(3);
+        ImageMetadata metadata = new ImageMetadata();
+        if (version != PackedImage.SINGLE_LEVEL_VERSION) {
+            int levels = in.readInt();
+            if (levels <= 0)
+                return null;
+            in.skipNBytes(16L * (levels - 1));
+        }
+        metadata.width = in.readInt();
+        metadata.height = in.readInt();
+        return metadata;
+    }
+
+    /**
+     * Reads the orientation and capture time from an EXIF block, a TIFF
+     * structure starting with its byte order mark. A malformed block leaves
+     * whatever was read before the error.
+     *
+     * @param tiff the EXIF block
+     */
+    private void readExif(ByteBuffer tiff) {
+        try {
+            if (tiff.getShort(0) == 0x4949)
+                tiff.order(ByteOrder.LITTLE_ENDIAN);
+            else if (tiff.getShort(0) != 0x4D4D)
+                return;
+            if (tiff.getShort(2) != 42)
+                return;
+            int ifd0 = tiff.getInt(4);
+            int exifIfd = -1;
+            String dateTime = null;
+            int entries = tiff.getShort(ifd0) & 0xFFFF;
+            for (int i = 0; i < entries; i++) {
+                int entry = ifd0 + 2 + 12 * i;
+                int tag = tiff.getShort(entry) & 0xFFFF;
+                if (tag == TAG_ORIENTATION) {
+                    int value = tiff.getShort(entry + 8) & 0xFFFF;
+                    if (value >= 1 && value <= 8)
+                        orientation = value;
+                } else if (tag == TAG_EXIF_IFD) {
+                    exifIfd = tiff.getInt(entry + 8);
+                } else if (tag == TAG_DATE_TIME) {
+                    dateTime = ascii(tiff, entry);
+                }
+            }
+            String original = null;
+            String digitized = null;
+            String offset = null;
+            if (exifIfd > 0) {
+                entries = tiff.getShort(exifIfd) & 0xFFFF;
+                for (int i = 0; i < entries; i++) {
+                    int entry = exifIfd + 2 + 12 * i;
+                    int tag = tiff.getShort(entry) & 0xFFFF;
+                    if (tag == TAG_DATE_TIME_ORIGINAL)
+                        original = ascii(tiff, entry);
+                    else if (tag == TAG_DATE_TIME_DIGITIZED)
+                        digitized = ascii(tiff, entry);
+                    else if (tag == TAG_OFFSET_TIME_ORIGINAL)
+                        offset = ascii(tiff, entry);
+                }
+            }
+            taken = parseDate(original, offset);
+            if (taken == null)
+                taken = parseDate(digitized, null);
+            if (taken == null)
+                taken = parseDate(dateTime, null);
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            return;
+        }
+    }
+
+    /**
+     * Reads the ASCII value of an IFD entry, which is stored in the entry if
+     * it fits in four bytes and at the offset the entry holds otherwise.
+     *
+     * @param tiff  the EXIF block
+     * @param entry the position of the entry
+     * @return the value, without its terminating NUL
+     */
+    private static String ascii(ByteBuffer tiff, int entry) {
+        int count = tiff.getInt(entry + 4);
+        if (count <= 0 || count > tiff.limit())
+            return null;
+        int at = count <= 4 ? entry + 8 : tiff.getInt(entry + 8);
+        byte[] value = new byte[count];
+        for (int i = 0; i < count; i++)
+            value[i] = tiff.get(at + i);
+        int end = 0;
+        while (end < count && value[end] != 0)
+            end++;
+        return new String(value, 0, end, StandardCharsets.US_ASCII).trim();
+    }
+
+    /**
+     * Parses an EXIF date, "yyyy:MM:dd HH:mm:ss", in the time zone of an EXIF
+     * offset, "+HH:mm", or in the local time zone if there is none. The date is
+     * returned in the local time zone either way, as photos are filed by day in
+     * the local time zone and their dates are read back from a snapshot in it.
+     *
+     * @param date   the date, or null
+     * @param offset the offset, or null
+     * @return the date, or null if it is missing or not a valid date
+     */
+    private static Calendar parseDate(String date, String offset) {
+        if (date == null || date.length() < 19)
+            return null;
+        try {
+            Calendar cal = Calendar.getInstance();
+            if (offset != null && offset.matches("[+-]\\d\\d:\\d\\d"))
+                cal.setTimeZone(TimeZone.getTimeZone("GMT" + offset));
+            cal.clear();
+            cal.setLenient(false);
+            cal.set(Integer.parseInt(date.substring(0, 4)), Integer.parseInt(date.substring(5, 7)) - 1,
+                    Integer.parseInt(date.substring(8, 10)), Integer.parseInt(date.substring(11, 13)),
+                    Integer.parseInt(date.substring(14, 16)), Integer.parseInt(date.substring(17, 19)));
+            Calendar local = Calendar.getInstance();
+            local.setTimeInMillis(cal.getTimeInMillis());
+            return local;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,646 @@
+package photopack;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import javafx.application.Platform;
+
+/**
+ * The ImportPipeline class imports every image under a directory tree into an
+ * album. Files go through a chain of stages connected by bounded queues, so a
+ * slow stage holds back the ones feeding it instead of filling memory:
+ * <ol>
+ * <li>discovery walks the tree for image files,</li>
+ * <li>storing reads each file and interns its bytes in the BlobStore, which
+ * hashes them and pins the entry until the photo is added; a file whose
+ * content is already in the album, or was met earlier in the import, is a
+ * duplicate and goes no further,</li>
+ * <li>metadata reads the capture date, dimensions and orientation of each
+ * photo from the headers of its file, and takes its caption from the file
+ * name,</li>
+ * <li>thumbnailing writes its thumbnail to the ThumbnailStore,</li>
+ * <li>and the photos are finally created and added to the album in batches on
+ * the JavaFX Application Thread, except those whose caption a photo of the
+ * album already has, which are duplicates too.</li>
+ * </ol>
+ * Storing, metadata and thumbnailing run on several threads each.
+ * The files done are appended to a checkpoint kept in the user's directory,
+ * one per album and directory, after their photos are added to the album. An
+ * interrupted import of the same directory into the same album resumes where
+ * it stopped, skipping the files of the checkpoint. A file whose image was
+ * stored but whose photo was never created is stored again under the same
+ * entry, since the BlobStore keeps one entry per content.
+ * Progress, including the throughput of the import, is reported on the JavaFX
+ * Application Thread after every batch and once more when the import ends.
+ */
+public class ImportPipeline {
+    /**
+     * The extensions of the files imported, in lower case.
+     */
+    public static final String[] EXTENSIONS = { ".jpg", ".jpeg", ".png", ".gif", ".bmp" };
+    /**
+     * The capacity of each queue between two stages.
+     */
+    static final int QUEUE_CAPACITY = 64;
+    /**
+     * The maximum number of photos added to the album in one batch.
+     */
+    static final int BATCH_SIZE = 100;
+    /**
+     * The number of milliseconds the last stage waits for more photos before
+     * adding an incomplete batch.
+     */
+    private static final long BATCH_WAIT_MILLIS = 250;
+    /**
+     * The marker passed down every queue after the last file.
+     */
+    private static final Item END = new Item(null, null);
+    /**
+     * The directory imported.
+     */
+    private final File root;
+    /**
+     * The album the photos are added to.
+     */
+    private final Album album;
+    /**
+     * The checkpoint listing the files already imported.
+     */
+    private final File checkpoint;
+    /**
+     * The callback receiving every batch of photos added to the album.
+     */
+    private final Consumer<List<Photo>> onPhotos;
+    /**
+     * The callback receiving the pipeline whenever its progress is reported.
+     */
+    private final Consumer<ImportPipeline> onProgress;
+    /**
+     * The number of threads of each of the parallel stages.
+     */
+    private final int threads;
+    /**
+     * The threads running the stages.
+     */
+    private final ExecutorService workers;
+    /**
+     * The paths of the images of the album, and of the images met so far.
+     */
+    private final Set<String> seen = ConcurrentHashMap.newKeySet();
+    /**
+     * The ids of the BlobStore entries pinned for photos not added yet.
+     */
+    private final Set<Long> pinned = ConcurrentHashMap.newKeySet();
+    /**
+     * The number of image files found that were not imported before.
+     */
+    private final AtomicInteger discovered = new AtomicInteger();
+    /**
+     * The number of image files skipped because the checkpoint lists them.
+     */
+    private final AtomicInteger skipped = new AtomicInteger();
+    /**
+     * The number of duplicate files.
+     */
+    private final AtomicInteger duplicates = new AtomicInteger();
+    /**
+     * The number of files that could not be read or stored.
+     */
+    private final AtomicInteger failed = new AtomicInteger();
+    /**
+     * The number of photos added to the album, only accessed on the JavaFX
+     * Application Thread.
+     */
+    private int imported;
+    /**
+     * The time the import started, in nanoseconds.
+     */
+    private long started;
+    /**
+     * The time the import ended, in nanoseconds, only accessed on the JavaFX
+     * Application Thread.
+     */
+    private long ended;
+    /**
+     * Whether the import ended, only accessed on the JavaFX Application
+     * Thread.
+     */
+    private boolean done;
+    /**
+     * Set once the import is cancelled.
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * Constructs a pipeline importing a directory into an album of a user.
+     *
+     * @param user       the User owning the album
+     * @param album      the album the photos are added to
+     * @param root       the directory imported
+     * @param onPhotos   the callback receiving every batch of photos added
+     * @param onProgress the callback receiving the pipeline whenever its
+     *                   progress is reported
+     */
+    public ImportPipeline(User user, Album album, File root, Consumer<List<Photo>> onPhotos,
+            Consumer<ImportPipeline> onProgress) {
+        this.root = root.getAbsoluteFile();
+        this.album = album;
+        this.onPhotos = onPhotos;
+        this.onProgress = onProgress;
+        String key = album.getId() + "\n" + this.root.getPath();
+        this.checkpoint = new File(UserApp.userDir(user.getUsername()),
+                "import-" + BlobStore.digest(key.getBytes(StandardCharsets.UTF_8)).substring(0, 16) + ".lst");
+        this.threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(3 * threads + 2, runnable -> {
+            Thread thread = new Thread(runnable, "import-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts the import in the background.
+     * Must be called on the JavaFX Application Thread, once.
+     */
+    public void start() {
+        started = System.nanoTime();
+        for (Photo photo : album.getAlbum())
+            seen.add(photo.getPath());
+        BlockingQueue<Item> found = new ArrayBlockingQueue<Item>(QUEUE_CAPACITY);
+        BlockingQueue<Item> stored = new ArrayBlockingQueue<Item>(QUEUE_CAPACITY);
+        BlockingQueue<Item> described = new ArrayBlockingQueue<Item>(QUEUE_CAPACITY);
+        BlockingQueue<Item> ready = new ArrayBlockingQueue<Item>(QUEUE_CAPACITY);
+        workers.execute(() -> discover(found));
+        stage(found, stored, this::store);
+        stage(stored, described, this::describe);
+        stage(described, ready, this::thumbnail);
+        workers.execute(() -> collect(ready));
+    }
+
+    /**
+     * Cancels the import. The photos already added stay in the album and the
+     * checkpoint, so that importing the directory again resumes the import.
+     * Must be called on the JavaFX Application Thread.
+     */
+    public void cancel() {
+        if (done)
+            return;
+        cancelled = true;
+        workers.shutdownNow();
+        finish();
+    }
+
+    /**
+     * Checks whether the import ended, because every file was imported or
+     * because it was cancelled.
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @return true if the import ended, false otherwise
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Returns the number of image files found that were not imported before.
+     *
+     * @return the number of files
+     */
+    public int getDiscovered() {
+        return discovered.get();
+    }
+
+    /**
+     * Returns the number of image files skipped because an earlier import of
+     * the directory already imported them.
+     *
+     * @return the number of files
+     */
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Returns the number of files skipped because their content is already in
+     * the album or was met earlier in the import, or because their name is
+     * already the caption of a photo of the album.
+     *
+     * @return the number of files
+     */
+    public int getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * Returns the number of files that could not be read or stored.
+     *
+     * @return the number of files
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the number of photos added to the album.
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @return the number of photos
+     */
+    public int getImported() {
+        return imported;
+    }
+
+    /**
+     * Returns the number of photos added to the album per second since the
+     * import started.
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @return the throughput of the import
+     */
+    public double getThroughput() {
+        long elapsed = (done ? ended : System.nanoTime()) - started;
+        return elapsed <= 0 ? 0 : imported * 1e9 / elapsed;
+    }
+
+    /**
+     * Returns a one line summary of the progress of the import.
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @return the summary
+     */
+    @Override
+    public String toString() {
+        String state = done ? (cancelled ? "Import cancelled" : "Import done") : "Importing";
+        return String.format(Locale.ROOT, "%s: %d of %d photos (%d duplicates, %d failed, %d skipped), %.1f photos/s",
+                state, imported, discovered.get(), duplicates.get(), failed.get(), skipped.get(), getThroughput());
+    }
+
+    /**
+     * Checks whether a file is an image the pipeline imports, by its extension.
+     *
+     * @param path the path of the file
+     * @return true if the file is imported, false otherwise
+     */
+    static boolean isImage(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        for (String extension : EXTENSIONS)
+            if (name.endsWith(extension))
+                return true;
+        return false;
+    }
+
+    /**
+     * Walks the directory tree and queues the image files not listed in the
+     * checkpoint, followed by the end marker. Runs on its own thread.
+     *
+     * @param out the queue of files found
+     */
+    private void discover(BlockingQueue<Item> out) {
+        Set<String> imported = readCheckpoint();
+        try (Stream<Path> paths = Files.walk(root.toPath())) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (cancelled)
+                    return;
+                if (!Files.isRegularFile(path) || !isImage(path))
+                    continue;
+                String key = path.toString();
+                if (imported.contains(key)) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                discovered.incrementAndGet();
+                out.put(new Item(path.toFile(), key));
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            return;
+        }
+        try {
+            out.put(END);
+        } catch (InterruptedException e) {
+            return;
+        }
+    }
+
+    /**
+     * Starts the threads of a parallel stage. Each of them applies the stage to
+     * the items it takes from the input queue and passes them on, until it
+     * takes the end marker, which it puts back for the other threads of the
+     * stage. The last thread of the stage to stop passes the end marker on.
+     * Items the stage marks duplicate or failed are passed on untouched.
+     *
+     * @param in   the input queue
+     * @param out  the output queue
+     * @param work the work of the stage
+     */
+    private void stage(BlockingQueue<Item> in, BlockingQueue<Item> out, Consumer<Item> work) {
+        AtomicInteger running = new AtomicInteger(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.execute(() -> {
+                try {
+                    while (!cancelled) {
+                        Item item = in.take();
+                        if (item == END) {
+                            in.put(END);
+                            if (running.decrementAndGet() == 0)
+                                out.put(END);
+                            return;
+                        }
+                        if (!item.duplicate && !item.failed)
+                            work.accept(item);
+                        out.put(item);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads a file and interns its bytes in the BlobStore, keeping the pin on
+     * its entry until the photo is added. A file whose content was met before
+     * is marked duplicate and gives its pin back, and a file that cannot be
+     * stored is marked failed.
+     *
+     * @param item the file
+     */
+    private void store(Item item) {
+        try {
+            long id = BlobStore.getInstance().intern(Files.readAllBytes(item.file.toPath()));
+            item.path = BlobStore.SCHEME + id;
+            if (!seen.add(item.path)) {
+                item.duplicate = true;
+                duplicates.incrementAndGet();
+                unpin(id);
+            } else {
+                item.pinned = true;
+                pinned.add(id);
+                if (cancelled && pinned.remove(id))
+                    unpin(id);
+            }
+        } catch (IOException | RuntimeException e) {
+            item.failed = true;
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Reads the capture date, dimensions and orientation of a photo from the
+     * headers of its file, and takes its caption from the file name. A file
+     * whose headers cannot be read is dated by its last modification.
+     *
+     * @param item the stored file
+     */
+    private void describe(Item item) {
+        try {
+            item.metadata = ImageMetadata.read(item.file);
+        } catch (IOException e) {
+            item.metadata = null;
+        }
+        item.cal = ImageMetadata.captureDate(item.file, item.metadata);
+        item.caption = item.file.getName();
+    }
+
+    /**
+     * Writes the thumbnail of a photo, unless it is up to date. A photo whose
+     * thumbnail cannot be written is still imported; its thumbnail is then
+     * written when it is first shown.
+     *
+     * @param item the stored file
+     */
+    private void thumbnail(Item item) {
+        ThumbnailStore.getInstance().ensure(item.path);
+    }
+
+    /**
+     * Gathers the items coming out of the last parallel stage into batches and
+     * hands each of them to the JavaFX Application Thread, waiting for it to
+     * be added before gathering the next one. Runs on its own thread.
+     *
+     * @param in the queue of items ready to be added
+     */
+    private void collect(BlockingQueue<Item> in) {
+        try {
+            boolean end = false;
+            while (!end && !cancelled) {
+                ArrayList<Item> batch = new ArrayList<Item>(BATCH_SIZE);
+                Item item = in.take();
+                while (item != null && item != END) {
+                    batch.add(item);
+                    if (batch.size() == BATCH_SIZE)
+                        break;
+                    item = in.poll(BATCH_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                end = item == END;
+                CountDownLatch added = new CountDownLatch(1);
+                boolean last = end;
+                Platform.runLater(() -> {
+                    commit(batch);
+                    if (last)
+                        finish();
+                    added.countDown();
+                });
+                added.await();
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+    }
+
+    /**
+     * Creates the photos of a batch and adds them to the album, then appends
+     * the files of the batch to the checkpoint and reports the progress. A file
+     * whose name is already the caption of a photo of the album is a duplicate,
+     * as it is when uploaded, so that captions stay unique in the album. Files
+     * that failed are left out of the checkpoint, so that they are tried again
+     * by the next import. Runs on the JavaFX Application Thread.
+     *
+     * @param batch the batch
+     */
+    private void commit(List<Item> batch) {
+        if (cancelled || batch.isEmpty())
+            return;
+        ArrayList<Photo> added = new ArrayList<Photo>(batch.size());
+        StringBuilder done = new StringBuilder();
+        for (Item item : batch) {
+            if (item.failed)
+                continue;
+            if (!item.duplicate && album.duplicate(item.caption)) {
+                item.duplicate = true;
+                duplicates.incrementAndGet();
+            }
+            if (!item.duplicate) {
+                Photo photo = new Photo(item.path, item.cal, item.caption);
+                if (item.metadata != null)
+                    photo.setDimensions(item.metadata.getWidth(), item.metadata.getHeight(),
+                            item.metadata.getOrientation());
+                album.addPhoto(photo);
+                added.add(photo);
+            }
+            long id = BlobStore.id(item.path);
+            if (item.pinned && pinned.remove(id))
+                unpin(id);
+            done.append(item.key).append('\n');
+        }
+        imported += added.size();
+        try {
+            appendCheckpoint(done.toString());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (!added.isEmpty())
+            onPhotos.accept(added);
+        onProgress.accept(this);
+    }
+
+    /**
+     * Marks the import as ended, stops its threads, gives back the pins of the
+     * photos that were not added and reports the progress a last time. Runs on
+     * the JavaFX Application Thread.
+     */
+    private void finish() {
+        if (done)
+            return;
+        done = true;
+        ended = System.nanoTime();
+        workers.shutdownNow();
+        for (Long id : pinned)
+            if (pinned.remove(id))
+                unpin(id);
+        onProgress.accept(this);
+    }
+
+    /**
+     * Gives back the pin on a BlobStore entry, deleting the entry if no album
+     * holds a reference to it.
+     *
+     * @param id the id of the entry
+     */
+    private static void unpin(long id) {
+        try {
+            BlobStore.getInstance().unpin(id);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads the files listed in the checkpoint.
+     *
+     * @return the paths of the files already imported, empty if there is no
+     *         checkpoint
+     */
+    private Set<String> readCheckpoint() {
+        HashSet<String> imported = new HashSet<String>();
+        if (!checkpoint.isFile())
+            return imported;
+        try {
+            for (String line : Files.readAllLines(checkpoint.toPath(), StandardCharsets.UTF_8))
+                if (!line.isEmpty())
+                    imported.add(line);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return imported;
+    }
+
+    /**
+     * Appends lines to the checkpoint, creating it if needed.
+     *
+     * @param lines the lines, each ending with a newline
+     * @throws IOException if the checkpoint cannot be written
+     */
+    private void appendCheckpoint(String lines) throws IOException {
+        if (lines.isEmpty())
+            return;
+        checkpoint.getAbsoluteFile().getParentFile().mkdirs();
+        try (Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(checkpoint, true), StandardCharsets.UTF_8))) {
+            writer.write(lines);
+        }
+    }
+
+    /**
+     * A file on its way through the pipeline. Each field is written by one
+     * stage and read by the stages after it; the queues between the stages
+     * make those writes visible.
+     */
+    private static class Item {
+        /**
+         * The file.
+         */
+        final File file;
+        /**
+         * The path of the file, as listed in the checkpoint.
+         */
+        final String key;
+        /**
+         * The path of the stored image.
+         */
+        String path;
+        /**
+         * The capture date of the photo.
+         */
+        Calendar cal;
+        /**
+         * The caption of the photo.
+         */
+        String caption;
+        /**
+         * The metadata read from the headers of the file, or null if there is
+         * none.
+         */
+        ImageMetadata metadata;
+        /**
+         * Whether the content of the file was met before, or its name is the
+         * caption of a photo of the album.
+         */
+        boolean duplicate;
+        /**
+         * Whether the item holds the pin on the entry of its image.
+         */
+        boolean pinned;
+        /**
+         * Whether the file could not be read or stored.
+         */
+        boolean failed;
+
+        /**
+         * Constructs an item for a file.
+         *
+         * @param file the file
+         * @param key  the path of the file, as listed in the checkpoint
+         */
+        Item(File file, String key) {
+            this.file = file;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package photopack;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The Lz4 class compresses and decompresses blocks in the LZ4 block format.
+ * A block is a sequence of literal runs, each followed by a match copying
+ * bytes from up to 64 KiB earlier in the output. Matches are found through a
+ * hash table of the positions of four byte sequences, trading compression
+ * ratio for speed: decompressing is little more than copying bytes, which
+ * makes it suited to images that are decoded far more often than they are
+ * written.
+ * Blocks are self-contained; the caller records the compressed and
+ * uncompressed length of each of them.
+ */
+public final class Lz4 {
+    /**
+     * The length of the shortest match.
+     */
+    private static final int MIN_MATCH = 4;
+    /**
+     * The number of bytes at the end of a block that are always literals.
+     */
+    private static final int LAST_LITERALS = 5;
+    /**
+     * The number of bytes at the end of a block in which no match may start.
+     */
+    private static final int MF_LIMIT = 12;
+    /**
+     * The largest distance back a match may copy from.
+     */
+    private static final int MAX_DISTANCE = 0xFFFF;
+    /**
+     * The number of bits of the hash of a four byte sequence.
+     */
+    private static final int HASH_LOG = 14;
+    /**
+     * The hash table of the compressor, reused by every block compressed on
+     * the same thread.
+     */
+    private static final ThreadLocal<int[]> tables = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+
+    /**
+     * Not instantiable.
+     */
+    private Lz4() {
+    }
+
+    /**
+     * Returns the largest compressed length of a block of the given length.
+     *
+     * @param length the uncompressed length
+     * @return the size of a buffer always large enough for the block
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses a block.
+     *
+     * @param src    the bytes to compress
+     * @param srcOff the offset of the first byte
+     * @param srcLen the number of bytes
+     * @param dst    the buffer receiving the block, with at least
+     *               maxCompressedLength(srcLen) bytes after dstOff
+     * @param dstOff the offset the block is written at
+     * @return the compressed length of the block
+     */
+    public static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        int end = srcOff + srcLen;
+        int anchor = srcOff;
+        int op = dstOff;
+        if (srcLen > MF_LIMIT) {
+            int[] table = tables.get();
+            Arrays.fill(table, -1);
+            int matchLimit = end - LAST_LITERALS;
+            int mfLimit = end - MF_LIMIT;
+            int ip = srcOff;
+            while (ip < mfLimit) {
+                int sequence = readInt(src, ip);
+                int h = hash(sequence);
+                int ref = table[h];
+                table[h] = ip;
+                if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                    ip += 1 + ((ip - anchor) >>> 6);
+                    continue;
+                }
+                while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int length = MIN_MATCH;
+                while (ip + length < matchLimit && src[ip + length] == src[ref + length])
+                    length++;
+                op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, length);
+                ip += length;
+                anchor = ip;
+            }
+        }
+        int literals = end - anchor;
+        int token = Math.min(literals, 15) << 4;
+        dst[op++] = (byte) token;
+        op = writeLength(dst, op, literals);
+        System.arraycopy(src, anchor, dst, op, literals);
+        return op + literals - dstOff;
+    }
+
+    /**
+     * Decompresses a block into a byte array.
+     *
+     * @param src    the buffer holding the block, read by absolute position
+     * @param srcOff the position of the block in the buffer
+     * @param srcLen the compressed length of the block
+     * @param dst    the array receiving the bytes
+     * @param dstOff the offset of the first byte
+     * @param dstLen the uncompressed length of the block
+     * @throws StreamCorruptedException if the block is malformed or does not
+     *                                  decompress to exactly dstLen bytes
+     */
+    public static void decompress(ByteBuffer src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+            throws StreamCorruptedException {
+        int ip = srcOff;
+        int end = srcOff + srcLen;
+        int op = dstOff;
+        int dstEnd = dstOff + dstLen;
+        try {
+            while (true) {
+                int token = src.get(ip++) & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src.get(ip++) & 0xFF;
+                        literals += b;
+                    } while (b == 0xFF);
+                }
+                if (literals > dstEnd - op || literals > end - ip)
+                    throw new StreamCorruptedException("LZ4 literals overrun");
+                src.get(ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == end)
+                    break;
+                int offset = (src.get(ip) & 0xFF) | (src.get(ip + 1) & 0xFF) << 8;
+                ip += 2;
+                if (offset == 0 || offset > op - dstOff)
+                    throw new StreamCorruptedException("LZ4 match offset out of range");
+                int length = token & 15;
+                if (length == 15) {
+                    int b;
+                    do {
+                        b = src.get(ip++) & 0xFF;
+                        length += b;
+                    } while (b == 0xFF);
+                }
+                length += MIN_MATCH;
+                if (length > dstEnd - op)
+                    throw new StreamCorruptedException("LZ4 match overrun");
+                int ref = op - offset;
+                if (offset >= length) {
+                    System.arraycopy(dst, ref, dst, op, length);
+                    op += length;
+                } else {
+                    for (int i = 0; i < length; i++)
+                        dst[op++] = dst[ref++];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new StreamCorruptedException("LZ4 block truncated");
+        }
+        if (op != dstEnd)
+            throw new StreamCorruptedException("LZ4 block shorter than expected");
+    }
+
+    /**
+     * Writes a literal run and the match following it.
+     *
+     * @param src      the bytes being compressed
+     * @param anchor   the offset of the literal run
+     * @param literals the length of the literal run
+     * @param dst      the buffer receiving the block
+     * @param op       the offset the sequence is written at
+     * @param offset   the distance back the match copies from
+     * @param length   the length of the match
+     * @return the offset following the sequence
+     */
+    private static int writeSequence(byte[] src, int anchor, int literals, byte[] dst, int op, int offset,
+            int length) {
+        int matchCode = length - MIN_MATCH;
+        dst[op++] = (byte) (Math.min(literals, 15) << 4 | Math.min(matchCode, 15));
+        op = writeLength(dst, op, literals);
+        System.arraycopy(src, anchor, dst, op, literals);
+        op += literals;
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        return writeLength(dst, op, matchCode);
+    }
+
+    /**
+     * Writes the bytes extending a length that does not fit in its four bits
+     * of the token.
+     *
+     * @param dst    the buffer receiving the block
+     * @param op     the offset the bytes are written at
+     * @param length the length held by the token and these bytes
+     * @return the offset following the bytes
+     */
+    private static int writeLength(byte[] dst, int op, int length) {
+        if (length < 15)
+            return op;
+        length -= 15;
+        while (length >= 0xFF) {
+            dst[op++] = (byte) 0xFF;
+            length -= 0xFF;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    /**
+     * Reads four bytes in little-endian order.
+     *
+     * @param src the bytes
+     * @param at  the offset of the first byte
+     * @return the bytes as an int
+     */
+    private static int readInt(byte[] src, int at) {
+        return (src[at] & 0xFF) | (src[at + 1] & 0xFF) << 8 | (src[at + 2] & 0xFF) << 16 | src[at + 3] << 24;
+    }
+
+    /**
+     * Hashes a four byte sequence into the hash table.
+     *
+     * @param sequence the sequence
+     * @return the slot of the sequence
+     */
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
@@ -0,0 +1,366 @@
+package photopack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.WritableImage;
+
+/**
+ * The PackedImage class reads and writes the packed image container, which
+ * holds decoded pixels compressed just enough to keep files reasonable, so that
+ * showing an image costs a fast decompression instead of a PNG inflate and the
+ * pixels go straight into a pooled buffer of the PixelBufferPool, shown as a
+ * JavaFX WritableImage.
+ * A container holds the image as a pyramid of levels: copies scaled down so
+ * that their longer side is 256 and 1024 pixels, when the image is larger than
+ * that, followed by the full-size image. Each view asks for the size of its
+ * ImageView and only the smallest level covering it is read and decompressed.
+ * A container starts with a header:
+ * <ul>
+ * <li>the magic number "PPKI" and the format version, one byte,</li>
+ * <li>the pixel format, one byte; only premultiplied BGRA bytes exist so
+ * far,</li>
+ * <li>the number of rows of a band, two bytes,</li>
+ * <li>the number of levels, four bytes,</li>
+ * <li>and for every level, from the smallest to the full-size one, its width,
+ * height, offset from the start of the container and length, four bytes
+ * each.</li>
+ * </ul>
+ * A level is the compressed length of each of its bands, four bytes each,
+ * followed by the bands, each of them an Lz4 block holding that many rows of
+ * pixels, fewer for the last one. All numbers are big-endian.
+ * Containers of version 1 hold the full-size image only, with its width and
+ * height in place of the number of levels; they are still read.
+ */
+public class PackedImage {
+    /**
+     * The magic number at the start of every container ("PPKI").
+     */
+    public static final int MAGIC = 0x50504B49;
+    /**
+     * The version of the container format.
+     */
+    public static final int VERSION = 2;
+    /**
+     * The version of containers holding a single level.
+     */
+    static final int SINGLE_LEVEL_VERSION = 1;
+    /**
+     * The pixel format of premultiplied BGRA bytes, the native format of the
+     * JavaFX image pipeline.
+     */
+    public static final int FORMAT_BGRA_PRE = 1;
+    /**
+     * The longer side of the levels scaled down from the full-size image, from
+     * the smallest one.
+     */
+    public static final int[] LEVEL_SIZES = { 256, 1024 };
+    /**
+     * The number of rows compressed together in one band.
+     */
+    static final int BAND_ROWS = 16;
+    /**
+     * The length of the header before the level table.
+     */
+    static final int HEADER_LENGTH = 12;
+    /**
+     * The length of an entry of the level table.
+     */
+    private static final int LEVEL_ENTRY_LENGTH = 16;
+
+    /**
+     * Not instantiable.
+     */
+    private PackedImage() {
+    }
+
+    /**
+     * Checks whether a buffer holds a packed image, from its magic number.
+     *
+     * @param buffer the buffer, from its position
+     * @return true if the buffer starts with a packed image header, false
+     *         otherwise
+     */
+    public static boolean isPacked(ByteBuffer buffer) {
+        return buffer.remaining() >= HEADER_LENGTH + 4 && buffer.getInt(buffer.position()) == MAGIC;
+    }
+
+    /**
+     * Checks whether an array holds a packed image, from its magic number.
+     *
+     * @param bytes the array
+     * @return true if the array starts with a packed image header, false
+     *         otherwise
+     */
+    public static boolean isPacked(byte[] bytes) {
+        return isPacked(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Checks whether an array holds a packed image of the current version.
+     *
+     * @param bytes the array
+     * @return true if the array holds a pyramid of the current version, false
+     *         otherwise
+     */
+    public static boolean isCurrent(byte[] bytes) {
+        return isPacked(bytes) && bytes[4] == VERSION;
+    }
+
+    /**
+     * Packs the pixels of an image into a pyramid.
+     *
+     * @param image the image, fully loaded
+     * @return the container
+     * @throws IOException if the pixels of the image cannot be read
+     */
+    public static byte[] encode(Image image) throws IOException {
+        PixelReader reader = image.getPixelReader();
+        if (reader == null)
+            throw new IOException("The image has no readable pixels");
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        byte[] full = new byte[width * height * 4];
+        reader.getPixels(0, 0, width, height, PixelFormat.getByteBgraPreInstance(), full, 0, width * 4);
+
+        ArrayList<int[]> sizes = new ArrayList<int[]>();
+        ArrayList<byte[]> pixels = new ArrayList<byte[]>();
+        int longer = Math.max(width, height);
+        for (int size : LEVEL_SIZES) {
+            if (size >= longer)
+                break;
+            int w = Math.max(1, (int) Math.round((double) width * size / longer));
+            int h = Math.max(1, (int) Math.round((double) height * size / longer));
+            sizes.add(new int[] { w, h });
+            pixels.add(scale(full, width, height, w, h));
+        }
+        sizes.add(new int[] { width, height });
+        pixels.add(full);
+
+        int levels = sizes.size();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(full.length / 2);
+        int[] offsets = new int[levels];
+        int[] lengths = new int[levels];
+        int start = HEADER_LENGTH + LEVEL_ENTRY_LENGTH * levels;
+        for (int i = 0; i < levels; i++) {
+            offsets[i] = start + body.size();
+            writeLevel(pixels.get(i), sizes.get(i)[0], sizes.get(i)[1], body);
+            lengths[i] = start + body.size() - offsets[i];
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(start + body.size());
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeByte(VERSION);
+        header.writeByte(FORMAT_BGRA_PRE);
+        header.writeShort(BAND_ROWS);
+        header.writeInt(levels);
+        for (int i = 0; i < levels; i++) {
+            header.writeInt(sizes.get(i)[0]);
+            header.writeInt(sizes.get(i)[1]);
+            header.writeInt(offsets[i]);
+            header.writeInt(lengths[i]);
+        }
+        body.writeTo(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Unpacks the full-size image of a container.
+     *
+     * @param buffer the buffer holding the container from its position, such as
+     *               a slice of the BlobStore's mapping
+     * @return the image
+     * @throws IOException if the container is malformed
+     */
+    public static WritableImage decode(ByteBuffer buffer) throws IOException {
+        return decode(buffer, 0, 0);
+    }
+
+    /**
+     * Unpacks the smallest level of a container that covers a box, that is the
+     * smallest level that still shows at least one pixel per pixel once fitted
+     * into the box keeping its aspect ratio: its width or its height reaches
+     * the box. The full-size image is unpacked if no smaller level does. Only
+     * the bytes of that level are read.
+     *
+     * @param buffer the buffer holding the container from its position, such as
+     *               a slice of the BlobStore's mapping
+     * @param width  the width of the box, or 0 if it is unbounded
+     * @param height the height of the box, or 0 if it is unbounded
+     * @return the image
+     * @throws IOException if the container is malformed
+     */
+    public static WritableImage decode(ByteBuffer buffer, int width, int height) throws IOException {
+        ByteBuffer in = buffer.slice();
+        if (!isPacked(in))
+            throw new StreamCorruptedException("Not a packed image");
+        int version = in.get(4);
+        if ((version != VERSION && version != SINGLE_LEVEL_VERSION) || in.get(5) != FORMAT_BGRA_PRE)
+            throw new StreamCorruptedException("Unsupported packed image version or pixel format");
+        int bandRows = in.getShort(6);
+        if (version == SINGLE_LEVEL_VERSION)
+            return readLevel(in, 16, in.limit(), in.getInt(8), in.getInt(12), bandRows);
+        int levels = in.getInt(8);
+        if (levels <= 0 || levels > (in.limit() - HEADER_LENGTH) / LEVEL_ENTRY_LENGTH)
+            throw new StreamCorruptedException("Invalid packed image header");
+        int level = 0;
+        while (level < levels - 1) {
+            int entry = HEADER_LENGTH + LEVEL_ENTRY_LENGTH * level;
+            if ((width > 0 && in.getInt(entry) >= width) || (height > 0 && in.getInt(entry + 4) >= height))
+                break;
+            level++;
+        }
+        int entry = HEADER_LENGTH + LEVEL_ENTRY_LENGTH * level;
+        int offset = in.getInt(entry + 8);
+        int length = in.getInt(entry + 12);
+        if (offset < 0 || length < 0 || offset > in.limit() - length)
+            throw new StreamCorruptedException("Packed image truncated");
+        return readLevel(in.slice(offset, length), 0, length, in.getInt(entry), in.getInt(entry + 4), bandRows);
+    }
+
+    /**
+     * Unpacks the full-size image of a container held in an array.
+     *
+     * @param bytes the container
+     * @return the image
+     * @throws IOException if the container is malformed
+     */
+    public static WritableImage decode(byte[] bytes) throws IOException {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Compresses the bands of one level.
+     *
+     * @param pixels the pixels of the level
+     * @param width  the width of the level
+     * @param height the height of the level
+     * @param out    the stream receiving the band lengths and bands
+     * @throws IOException never, the stream being in memory
+     */
+    private static void writeLevel(byte[] pixels, int width, int height, ByteArrayOutputStream out)
+            throws IOException {
+        int bands = (height + BAND_ROWS - 1) / BAND_ROWS;
+        int stride = width * 4;
+        byte[] block = new byte[Lz4.maxCompressedLength(stride * BAND_ROWS)];
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream(pixels.length / 2);
+        byte[] lengths = new byte[4 * bands];
+        for (int i = 0; i < bands; i++) {
+            int y = i * BAND_ROWS;
+            int rows = Math.min(BAND_ROWS, height - y);
+            int length = Lz4.compress(pixels, y * stride, rows * stride, block, 0);
+            ByteBuffer.wrap(lengths).putInt(4 * i, length);
+            blocks.write(block, 0, length);
+        }
+        out.write(lengths, 0, lengths.length);
+        blocks.writeTo(out);
+    }
+
+    /**
+     * Unpacks one level, band by band, straight into the buffer of an image
+     * acquired from the PixelBufferPool.
+     *
+     * @param in       the buffer holding the level
+     * @param table    the position of the band lengths in the buffer
+     * @param end      the position of the end of the level in the buffer
+     * @param width    the width of the level
+     * @param height   the height of the level
+     * @param bandRows the number of rows of a band
+     * @return the image
+     * @throws IOException if the level is malformed
+     */
+    private static WritableImage readLevel(ByteBuffer in, int table, int end, int width, int height,
+            int bandRows) throws IOException {
+        if (bandRows <= 0 || width <= 0 || height <= 0 || (long) width * bandRows * 4 > Integer.MAX_VALUE
+                || (long) width * height * 4 > Integer.MAX_VALUE)
+            throw new StreamCorruptedException("Invalid packed image header");
+        int bands = (height + bandRows - 1) / bandRows;
+        int stride = width * 4;
+        int at = table + 4 * bands;
+        if (at > end)
+            throw new StreamCorruptedException("Packed image truncated");
+        PixelBufferPool pool = PixelBufferPool.getInstance();
+        WritableImage image = pool.acquire(width, height);
+        ByteBuffer pixels = pool.buffer(image);
+        byte[] band = new byte[stride * Math.min(bandRows, height)];
+        try {
+            for (int i = 0; i < bands; i++) {
+                int y = i * bandRows;
+                int rows = Math.min(bandRows, height - y);
+                int size = in.getInt(table + 4 * i);
+                if (size <= 0 || size > end - at)
+                    throw new StreamCorruptedException("Packed image truncated");
+                Lz4.decompress(in, at, size, band, 0, rows * stride);
+                pixels.put(y * stride, band, 0, rows * stride);
+                at += size;
+            }
+        } catch (IOException e) {
+            pool.release(image);
+            throw e;
+        }
+        return image;
+    }
+
+    /**
+     * Scales premultiplied BGRA pixels down by averaging the source pixels
+     * each destination pixel covers. Averaging premultiplied values weighs
+     * colors by their opacity, so transparent pixels do not darken the edges.
+     *
+     * @param src    the source pixels
+     * @param width  the source width
+     * @param height the source height
+     * @param w      the destination width, at most the source width
+     * @param h      the destination height, at most the source height
+     * @return the destination pixels
+     */
+    static byte[] scale(byte[] src, int width, int height, int w, int h) {
+        byte[] dst = new byte[w * h * 4];
+        scale(ByteBuffer.wrap(src), width, height, ByteBuffer.wrap(dst), w, h);
+        return dst;
+    }
+
+    /**
+     * Scales premultiplied BGRA pixels down from one buffer into another, as
+     * scale(byte[], int, int, int, int) does.
+     *
+     * @param src    the source pixels, read by absolute position
+     * @param width  the source width
+     * @param height the source height
+     * @param dst    the buffer receiving the destination pixels, written by
+     *               absolute position
+     * @param w      the destination width, at most the source width
+     * @param h      the destination height, at most the source height
+     */
+    static void scale(ByteBuffer src, int width, int height, ByteBuffer dst, int w, int h) {
+        int[] sum = new int[4];
+        for (int y = 0; y < h; y++) {
+            int y0 = (int) ((long) y * height / h);
+            int y1 = Math.max(y0 + 1, (int) ((long) (y + 1) * height / h));
+            for (int x = 0; x < w; x++) {
+                int x0 = (int) ((long) x * width / w);
+                int x1 = Math.max(x0 + 1, (int) ((long) (x + 1) * width / w));
+                sum[0] = sum[1] = sum[2] = sum[3] = 0;
+                for (int sy = y0; sy < y1; sy++) {
+                    int row = (sy * width + x0) * 4;
+                    for (int sx = x0; sx < x1; sx++, row += 4) {
+                        sum[0] += src.get(row) & 0xFF;
+                        sum[1] += src.get(row + 1) & 0xFF;
+                        sum[2] += src.get(row + 2) & 0xFF;
+                        sum[3] += src.get(row + 3) & 0xFF;
+                    }
+                }
+                int count = (y1 - y0) * (x1 - x0);
+                int at = (y * w + x) * 4;
+                for (int c = 0; c < 4; c++)
+                    dst.put(at + c, (byte) ((sum[c] + count / 2) / count));
+            }
+        }
+    }
+}
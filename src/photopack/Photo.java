@@ -36,6 +36,26 @@ public class Photo implements Serializable{
      * A Map object representing the tags associated with the photo. The keys of the map represent the tag types and the values represent the tag values 
      */
     private Map<String, List<String>> tags;
+    /**
+     * A long value identifying the photo among the photos of its owner, used by the PhotoJournal. Zero until the photo is added to one of the owner's albums.
+     */
+    private long id;
+    /**
+     * The width of the photo's image in pixels, as stored, or zero if it is not known.
+     */
+    private int width;
+    /**
+     * The height of the photo's image in pixels, as stored, or zero if it is not known.
+     */
+    private int height;
+    /**
+     * The EXIF orientation of the photo's image, from 1 to 8, or zero if it is not known.
+     */
+    private int orientation;
+    /**
+     * The User whose albums contain the photo, or null if it has not been added to an album yet. Not serialized; restored when the UserApp is loaded.
+     */
+    private transient User owner;
     
     /**
      * Creates a new Photo object with the given path, date, and caption.
@@ -83,6 +103,9 @@ public class Photo implements Serializable{
      */
     public void setDate(Calendar date) {
         this.date = date;
+        if (owner != null) owner.dateChanged(this);
+        PhotoJournal journal = journal();
+        if (journal != null) journal.setDate(this);
     }
     /**
      * Returns the caption for the photo.
@@ -92,11 +115,15 @@ public class Photo implements Serializable{
         return this.caption;
     }
     /**
-     * Sets the caption for the photo to the given String.
+     * Sets the caption for the photo to the given String, and lets the albums containing the photo update their count of captions.
      * @param caption The new caption to set for the photo
      */
     public void setCaption(String caption){
+        String old = this.caption;
         this.caption = caption;
+        if (owner != null) owner.captionChanged(this, old);
+        PhotoJournal journal = journal();
+        if (journal != null) journal.setCaption(this);
     }
     /**
      * Returns the file path of the photo.
@@ -111,6 +138,42 @@ public class Photo implements Serializable{
      */
     public void setThumbnail(String path){
         this.path = path;
+        PhotoJournal journal = journal();
+        if (journal != null) journal.setPath(this);
+    }
+    /**
+     * Returns the width of the photo's image in pixels, as stored, so that layouts can be computed without decoding it.
+     * @return the width, or zero if it is not known
+     */
+    public int getWidth(){
+        return this.width;
+    }
+    /**
+     * Returns the height of the photo's image in pixels, as stored, so that layouts can be computed without decoding it.
+     * @return the height, or zero if it is not known
+     */
+    public int getHeight(){
+        return this.height;
+    }
+    /**
+     * Returns the EXIF orientation of the photo's image. Orientations 5 to 8 are shown with the width and height swapped.
+     * @return the orientation from 1 to 8, or zero if it is not known
+     */
+    public int getOrientation(){
+        return this.orientation;
+    }
+    /**
+     * Sets the dimensions and orientation of the photo's image, as read by ImageMetadata.
+     * @param width The width in pixels
+     * @param height The height in pixels
+     * @param orientation The EXIF orientation
+     */
+    public void setDimensions(int width, int height, int orientation){
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+        PhotoJournal journal = journal();
+        if (journal != null) journal.setDimensions(this);
     }
     /**
      * Checks if the given tag type and value are associated with the photo.
@@ -137,6 +200,7 @@ public class Photo implements Serializable{
      * @return true if the tag was successfully added, false otherwise.
      */
     public boolean addTag(String tagType, String tagValue) {
+        TagIndex index = tagIndex();
         if (tags.containsKey(tagType)) {
             List<String> tagValues = tags.get(tagType);
             for (int i = 0; i < tagValues.size(); i++){
@@ -147,7 +211,11 @@ public class Photo implements Serializable{
             List<String> tagValues = new ArrayList<>();
             tagValues.add(tagValue);
             tags.put(tagType, tagValues);
+            if (index != null) index.addType(this, tagType);
         }
+        if (index != null) index.add(this, tagType, tagValue);
+        PhotoJournal journal = journal();
+        if (journal != null) journal.tag(PhotoJournal.ADD_TAG, this, tagType, tagValue);
         return true;
     }
     /**
@@ -162,6 +230,10 @@ public class Photo implements Serializable{
             for (int i = 0; i < tagValues.size(); i++){
                 if(tagValues.get(i).equals(tagValue)) tagValues.remove(i);
             }
+            TagIndex index = tagIndex();
+            if (index != null) index.remove(this, tagType, tagValue);
+            PhotoJournal journal = journal();
+            if (journal != null) journal.tag(PhotoJournal.DELETE_TAG, this, tagType, tagValue);
         } 
     }
     /**
@@ -173,6 +245,10 @@ public class Photo implements Serializable{
         if (tags.containsKey(tagType)) return false; 
         List<String> tagValues = new ArrayList<>();
         tags.put(tagType, tagValues);
+        TagIndex index = tagIndex();
+        if (index != null) index.addType(this, tagType);
+        PhotoJournal journal = journal();
+        if (journal != null) journal.tag(PhotoJournal.ADD_TAG_TYPE, this, tagType, null);
         return true; 
     }
 
@@ -184,7 +260,14 @@ public class Photo implements Serializable{
         Map<String, List<String>> tagsCopy = new HashMap<>(tags);
         for (String key : tagsCopy.keySet()) {
             if (key.equals(tagType)) {
+                TagIndex index = tagIndex();
+                if (index != null) {
+                    for (String value : tags.get(key)) index.remove(this, key, value);
+                    index.removeType(this, key);
+                }
                 tags.remove(key);
+                PhotoJournal journal = journal();
+                if (journal != null) journal.tag(PhotoJournal.DELETE_TAG_TYPE, this, tagType, null);
             }
         }
     }
@@ -216,6 +299,48 @@ public class Photo implements Serializable{
     public Map<String, List<String>> getTags(){
         return this.tags;
     }
+    /**
+     * Returns the id of the photo among the photos of its owner.
+     * @return the id, or zero if the photo has not been added to an album yet
+     */
+    long getId(){
+        return this.id;
+    }
+    /**
+     * Sets the id of the photo among the photos of its owner.
+     * @param id the new id
+     */
+    void setId(long id){
+        this.id = id;
+    }
+    /**
+     * Returns the User whose albums contain the photo.
+     * @return the owner, or null if the photo has not been added to an album yet
+     */
+    User getOwner(){
+        return this.owner;
+    }
+    /**
+     * Sets the User whose albums contain the photo.
+     * @param owner the owner
+     */
+    void setOwner(User owner){
+        this.owner = owner;
+    }
+    /**
+     * Returns the journal changes to this photo are recorded in.
+     * @return the owner's journal, or null if changes are not recorded
+     */
+    private PhotoJournal journal(){
+        return owner == null ? null : owner.getJournal();
+    }
+    /**
+     * Returns the owner's tag index if it has been built, so that it can be kept up to date.
+     * @return the owner's tag index, or null if there is none to update
+     */
+    private TagIndex tagIndex(){
+        return owner == null ? null : owner.currentTagIndex();
+    }
     /**
      * Returns a string representation of this photo.
      * @return the photo's caption
@@ -0,0 +1,749 @@
+package photopack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The PhotoJournal class is an append-only log of the changes made to the
+ * albums and photos of one User since the last snapshot of that User was
+ * written.
+ * Every mutation of the model is appended as one compact record, so saving
+ * costs time proportional to the change instead of to the whole object graph,
+ * and a crash loses at most the record being written.
+ * Each record is framed by its length and a CRC32 checksum; a torn or corrupt
+ * tail is ignored on replay and cut off before new records are appended.
+ * The journal header carries the generation of the snapshot it applies to, so
+ * a journal left over from before the latest compaction is discarded.
+ * Replaying a record that is already reflected in the snapshot has no effect.
+ */
+public class PhotoJournal implements Closeable {
+    /**
+     * The magic number at the start of every journal file.
+     */
+    private static final int MAGIC = 0x504A4E4C;
+    /**
+     * The version of the record format. Version 1 journals hold the records of
+     * every user in one file, each record naming its user; they are only read
+     * when migrating to per-user storage.
+     */
+    private static final int VERSION = 2;
+    /**
+     * The version of the record format of the single journal shared by all users.
+     */
+    private static final int LEGACY_VERSION = 1;
+    /**
+     * The length of the journal header in bytes.
+     */
+    private static final int HEADER_LENGTH = 16;
+
+    /** Record type: a user was added. Only found in version 1 journals. */
+    static final byte ADD_USER = 1;
+    /** Record type: a user was deleted. Only found in version 1 journals. */
+    static final byte DELETE_USER = 2;
+    /** Record type: an album was added to a user. */
+    static final byte ADD_ALBUM = 3;
+    /** Record type: an album was deleted from a user. */
+    static final byte DELETE_ALBUM = 4;
+    /** Record type: an album was renamed. */
+    static final byte RENAME_ALBUM = 5;
+    /** Record type: the photos of an album were replaced. */
+    static final byte SET_PHOTOS = 6;
+    /** Record type: a photo became known to a user. */
+    static final byte NEW_PHOTO = 7;
+    /** Record type: a photo was added to an album. */
+    static final byte ADD_PHOTO = 8;
+    /** Record type: a photo was removed from an album. */
+    static final byte REMOVE_PHOTO = 9;
+    /** Record type: the caption of a photo changed. */
+    static final byte SET_CAPTION = 10;
+    /** Record type: the date of a photo changed. */
+    static final byte SET_DATE = 11;
+    /** Record type: the path of a photo changed. */
+    static final byte SET_PATH = 12;
+    /** Record type: a tag type was added to a photo. */
+    static final byte ADD_TAG_TYPE = 13;
+    /** Record type: a tag value was added to a photo. */
+    static final byte ADD_TAG = 14;
+    /** Record type: a tag value was removed from a photo. */
+    static final byte DELETE_TAG = 15;
+    /** Record type: a tag type was removed from a photo. */
+    static final byte DELETE_TAG_TYPE = 16;
+    /** Record type: the dimensions and orientation of a photo were set. */
+    static final byte SET_DIMENSIONS = 17;
+
+    /**
+     * The journal file.
+     */
+    private final File file;
+    /**
+     * The stream records are appended to.
+     */
+    private DataOutputStream out;
+    /**
+     * The number of records appended since the last compaction.
+     */
+    private int records;
+    /**
+     * The number of records after which the compactor is run.
+     */
+    private final int threshold;
+    /**
+     * The task writing a fresh snapshot and resetting the journal, run once
+     * the journal holds more than threshold records. May be null.
+     */
+    private Runnable compactor;
+    /**
+     * Set once a record could not be written, in which case only a full
+     * snapshot can save the session.
+     */
+    private boolean broken;
+
+    /**
+     * Opens a journal for appending. A journal written for another snapshot
+     * generation, or without a valid header, is reset; otherwise everything
+     * after the last intact record is cut off.
+     *
+     * @param file       the journal file
+     * @param generation the generation of the snapshot the journal applies to
+     * @param threshold  the number of records after which to compact
+     * @throws IOException if the journal cannot be opened
+     */
+    public PhotoJournal(File file, long generation, int threshold) throws IOException {
+        this.file = file;
+        this.threshold = threshold;
+        Scan scan = scan(file, VERSION, generation, null);
+        if (scan == null) {
+            reset(generation);
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(scan.validLength);
+        }
+        this.records = scan.records;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    /**
+     * Applies every intact record of a journal to a User loaded from the
+     * snapshot of the given generation. Nothing is applied if the journal
+     * belongs to another generation.
+     *
+     * @param file       the journal file
+     * @param generation the generation of the snapshot
+     * @param user       the User to apply the records to
+     * @return the number of records applied
+     * @throws IOException if the journal cannot be read
+     */
+    public static int replay(File file, long generation, User user) throws IOException {
+        Replay replay = new Replay(user);
+        Scan scan = scan(file, VERSION, generation, in -> replay.apply(in.readByte(), in));
+        return scan == null ? 0 : scan.records;
+    }
+
+    /**
+     * Applies every intact record of a version 1 journal, shared by all users, to
+     * the users of a UserApp snapshot of the given generation. Users added by the
+     * journal are appended to the list and users it deleted are removed from it.
+     *
+     * @param file       the journal file
+     * @param generation the generation of the snapshot
+     * @param users      the users of the snapshot
+     * @return the number of records applied
+     * @throws IOException if the journal cannot be read
+     */
+    public static int replayLegacy(File file, long generation, List<User> users) throws IOException {
+        HashMap<String, Replay> replays = new HashMap<String, Replay>();
+        for (User user : users)
+            replays.put(user.getUsername(), new Replay(user));
+        Scan scan = scan(file, LEGACY_VERSION, generation, in -> {
+            byte type = in.readByte();
+            String username = in.readUTF();
+            Replay replay = replays.get(username);
+            if (type == ADD_USER) {
+                if (replay == null) {
+                    User user = new User(username, new ArrayList<Album>());
+                    users.add(user);
+                    replays.put(username, new Replay(user));
+                }
+            } else if (type == DELETE_USER) {
+                if (replay != null) {
+                    users.remove(replay.user);
+                    replays.remove(username);
+                }
+            } else if (replay != null) {
+                replay.apply(type, in);
+            }
+        });
+        return scan == null ? 0 : scan.records;
+    }
+
+    /**
+     * Sets the task run once the journal holds more than its threshold of
+     * records.
+     *
+     * @param compactor the task writing a snapshot and resetting the journal
+     */
+    public void setCompactor(Runnable compactor) {
+        this.compactor = compactor;
+    }
+
+    /**
+     * Returns the number of records appended since the last compaction.
+     *
+     * @return the record count
+     */
+    public int getRecordCount() {
+        return records;
+    }
+
+    /**
+     * Checks whether a record failed to be written.
+     *
+     * @return true if the journal can no longer be trusted, false otherwise
+     */
+    public boolean isBroken() {
+        return broken;
+    }
+
+    /**
+     * Discards every record and starts an empty journal for the given snapshot
+     * generation.
+     *
+     * @param generation the generation of the snapshot just written
+     * @throws IOException if the journal cannot be rewritten
+     */
+    public void reset(long generation) throws IOException {
+        if (out != null)
+            out.close();
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, false)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(generation);
+        out.flush();
+        records = 0;
+        broken = false;
+    }
+
+    /**
+     * Flushes and closes the journal.
+     *
+     * @throws IOException if the journal cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (out != null)
+            out.close();
+        out = null;
+    }
+
+    /**
+     * Records that an album was added, together with the ids of its photos. The photos must already have been recorded with newPhoto.
+     *
+     * @param album the new album
+     */
+    public void addAlbum(Album album) {
+        append(ADD_ALBUM, rec -> {
+            rec.writeLong(album.getId());
+            rec.writeUTF(album.getName());
+            writePhotoIds(rec, album.getAlbum());
+        });
+    }
+
+    /**
+     * Records that an album was deleted.
+     *
+     * @param album the deleted album
+     */
+    public void deleteAlbum(Album album) {
+        append(DELETE_ALBUM, rec -> rec.writeLong(album.getId()));
+    }
+
+    /**
+     * Records that an album was renamed.
+     *
+     * @param album the renamed album
+     */
+    public void renameAlbum(Album album) {
+        append(RENAME_ALBUM, rec -> {
+            rec.writeLong(album.getId());
+            rec.writeUTF(album.getName());
+        });
+    }
+
+    /**
+     * Records that the photos of an album were replaced as a whole.
+     *
+     * @param album the album
+     */
+    public void setPhotos(Album album) {
+        append(SET_PHOTOS, rec -> {
+            rec.writeLong(album.getId());
+            writePhotoIds(rec, album.getAlbum());
+        });
+    }
+
+    /**
+     * Records a photo that just became known to the user, with all of its
+     * fields. Its dimensions and orientation come last, so that records
+     * written before photos had them still replay.
+     *
+     * @param photo the photo
+     */
+    public void newPhoto(Photo photo) {
+        append(NEW_PHOTO, rec -> {
+            rec.writeLong(photo.getId());
+            rec.writeUTF(photo.getPath());
+            rec.writeLong(photo.getCal().getTimeInMillis());
+            rec.writeUTF(photo.getCaption());
+            Map<String, List<String>> tags = photo.getTags();
+            rec.writeInt(tags.size());
+            for (Map.Entry<String, List<String>> entry : tags.entrySet()) {
+                rec.writeUTF(entry.getKey());
+                rec.writeInt(entry.getValue().size());
+                for (String value : entry.getValue())
+                    rec.writeUTF(value);
+            }
+            rec.writeInt(photo.getWidth());
+            rec.writeInt(photo.getHeight());
+            rec.writeInt(photo.getOrientation());
+        });
+    }
+
+    /**
+     * Records that a photo was added to an album.
+     *
+     * @param album the album
+     * @param photo the added photo
+     */
+    public void addPhoto(Album album, Photo photo) {
+        append(ADD_PHOTO, rec -> {
+            rec.writeLong(album.getId());
+            rec.writeLong(photo.getId());
+        });
+    }
+
+    /**
+     * Records that a photo was removed from an album.
+     *
+     * @param album the album
+     * @param photo the removed photo
+     */
+    public void removePhoto(Album album, Photo photo) {
+        append(REMOVE_PHOTO, rec -> {
+            rec.writeLong(album.getId());
+            rec.writeLong(photo.getId());
+        });
+    }
+
+    /**
+     * Records the new caption of a photo.
+     *
+     * @param photo the photo
+     */
+    public void setCaption(Photo photo) {
+        append(SET_CAPTION, rec -> {
+            rec.writeLong(photo.getId());
+            rec.writeUTF(photo.getCaption());
+        });
+    }
+
+    /**
+     * Records the new date of a photo.
+     *
+     * @param photo the photo
+     */
+    public void setDate(Photo photo) {
+        append(SET_DATE, rec -> {
+            rec.writeLong(photo.getId());
+            rec.writeLong(photo.getCal().getTimeInMillis());
+        });
+    }
+
+    /**
+     * Records the new path of a photo.
+     *
+     * @param photo the photo
+     */
+    public void setPath(Photo photo) {
+        append(SET_PATH, rec -> {
+            rec.writeLong(photo.getId());
+            rec.writeUTF(photo.getPath());
+        });
+    }
+
+    /**
+     * Records the new dimensions and orientation of a photo.
+     *
+     * @param photo the photo
+     */
+    public void setDimensions(Photo photo) {
+        append(SET_DIMENSIONS, rec -> {
+            rec.writeLong(photo.getId());
+            rec.writeInt(photo.getWidth());
+            rec.writeInt(photo.getHeight());
+            rec.writeInt(photo.getOrientation());
+        });
+    }
+
+    /**
+     * Records a tag change of a photo.
+     *
+     * @param type     one of ADD_TAG_TYPE, ADD_TAG, DELETE_TAG or
+     *                 DELETE_TAG_TYPE
+     * @param photo    the photo
+     * @param tagType  the tag type
+     * @param tagValue the tag value, or null for tag type records
+     */
+    public void tag(byte type, Photo photo, String tagType, String tagValue) {
+        append(type, rec -> {
+            rec.writeLong(photo.getId());
+            rec.writeUTF(tagType);
+            if (tagValue != null)
+                rec.writeUTF(tagValue);
+        });
+    }
+
+    /**
+     * Writes a list of photo ids.
+     *
+     * @param rec    the record being written
+     * @param photos the photos
+     * @throws IOException never, as records are written to memory
+     */
+    private static void writePhotoIds(DataOutputStream rec, List<Photo> photos) throws IOException {
+        rec.writeInt(photos.size());
+        for (Photo photo : photos)
+            rec.writeLong(photo.getId());
+    }
+
+    /**
+     * Frames and appends one record: its length, its CRC32, and a payload made of
+     * the record type and the fields written by the body.
+     * The compactor is run first if the journal has grown past its threshold.
+     *
+     * @param type the record type
+     * @param body the writer of the record fields
+     */
+    private void append(byte type, RecordBody body) {
+        if (out == null)
+            return;
+        if (records >= threshold && compactor != null)
+            compactor.run();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream rec = new DataOutputStream(bytes);
+            rec.writeByte(type);
+            body.write(rec);
+            rec.flush();
+            byte[] payload = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+            out.flush();
+            records++;
+        } catch (IOException e) {
+            broken = true;
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads a journal and hands the payload of every intact record to a
+     * consumer, if given.
+     *
+     * @param file       the journal file
+     * @param version    the expected record format version
+     * @param generation the expected snapshot generation
+     * @param consumer   the consumer of the records, or null to only scan
+     * @return where the intact records end, or null if the journal is missing,
+     *         has no valid header or belongs to another version or generation
+     * @throws IOException if the journal cannot be read
+     */
+    private static Scan scan(File file, int version, long generation, RecordConsumer consumer)
+            throws IOException {
+        if (!file.isFile())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != version || in.readLong() != generation)
+                    return null;
+            } catch (EOFException e) {
+                return null;
+            }
+            Scan scan = new Scan();
+            scan.validLength = HEADER_LENGTH;
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length < 0)
+                        break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != checksum)
+                        break;
+                } catch (EOFException e) {
+                    break;
+                }
+                if (consumer != null)
+                    consumer.accept(new DataInputStream(new ByteArrayInputStream(payload)));
+                scan.validLength += 8 + payload.length;
+                scan.records++;
+            }
+            return scan;
+        }
+    }
+
+    /**
+     * Writes the fields of a record.
+     */
+    private interface RecordBody {
+        /**
+         * Writes the fields of a record.
+         *
+         * @param rec the record being written
+         * @throws IOException if a field cannot be written
+         */
+        void write(DataOutputStream rec) throws IOException;
+    }
+
+    /**
+     * Consumes the payload of a record read back from a journal.
+     */
+    private interface RecordConsumer {
+        /**
+         * Consumes the payload of a record.
+         *
+         * @param in the payload of the record
+         * @throws IOException if the payload is malformed
+         */
+        void accept(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * The outcome of scanning a journal.
+     */
+    private static class Scan {
+        /**
+         * The length of the header and intact records in bytes.
+         */
+        long validLength;
+        /**
+         * The number of intact records.
+         */
+        int records;
+    }
+
+    /**
+     * Applies journal records to a User. Albums and photos are looked up by the
+     * ids the User gave them. Photos that are no longer in any album are kept,
+     * since later records may add them again.
+     */
+    private static class Replay {
+        /**
+         * The User the records are applied to.
+         */
+        private final User user;
+        /**
+         * The albums of the user by id.
+         */
+        private final HashMap<Long, Album> albumIds = new HashMap<Long, Album>();
+        /**
+         * The photos of the user by id.
+         */
+        private final HashMap<Long, Photo> photoIds = new HashMap<Long, Photo>();
+
+        /**
+         * Constructs a Replay over a User whose albums and photos already have
+         * their ids.
+         *
+         * @param user the User loaded from the snapshot
+         */
+        Replay(User user) {
+            this.user = user;
+            for (Album album : user.getAlbums()) {
+                albumIds.put(album.getId(), album);
+                for (Photo photo : album.getAlbum())
+                    photoIds.put(photo.getId(), photo);
+            }
+        }
+
+        /**
+         * Applies one record. Records about unknown albums or photos are ignored.
+         *
+         * @param type the record type
+         * @param in   the fields of the record
+         * @throws IOException if the fields are malformed
+         */
+        void apply(byte type, DataInputStream in) throws IOException {
+            switch (type) {
+                case ADD_ALBUM: {
+                    long id = in.readLong();
+                    String name = in.readUTF();
+                    ArrayList<Photo> list = readPhotos(in, photoIds);
+                    if (!albumIds.containsKey(id)) {
+                        Album album = new Album(name, list);
+                        album.setId(id);
+                        user.addAlbum(album);
+                        albumIds.put(id, album);
+                    }
+                    break;
+                }
+                case DELETE_ALBUM: {
+                    Album album = albumIds.remove(in.readLong());
+                    if (album != null)
+                        user.deleteAlbum(album);
+                    break;
+                }
+                case RENAME_ALBUM: {
+                    Album album = albumIds.get(in.readLong());
+                    String name = in.readUTF();
+                    if (album != null)
+                        album.setName(name);
+                    break;
+                }
+                case SET_PHOTOS: {
+                    Album album = albumIds.get(in.readLong());
+                    ArrayList<Photo> list = readPhotos(in, photoIds);
+                    if (album != null)
+                        album.setAlbum(list);
+                    break;
+                }
+                case NEW_PHOTO: {
+                    long id = in.readLong();
+                    String path = in.readUTF();
+                    Calendar cal = Calendar.getInstance();
+                    cal.setTimeInMillis(in.readLong());
+                    String caption = in.readUTF();
+                    Photo photo = new Photo(path, cal, caption);
+                    int types = in.readInt();
+                    for (int i = 0; i < types; i++) {
+                        String tagType = in.readUTF();
+                        photo.addTagType(tagType);
+                        int values = in.readInt();
+                        for (int j = 0; j < values; j++)
+                            photo.addTag(tagType, in.readUTF());
+                    }
+                    if (in.available() > 0)
+                        photo.setDimensions(in.readInt(), in.readInt(), in.readInt());
+                    if (!photoIds.containsKey(id)) {
+                        photo.setId(id);
+                        user.adopt(photo);
+                        photoIds.put(id, photo);
+                    }
+                    break;
+                }
+                case ADD_PHOTO: {
+                    Album album = albumIds.get(in.readLong());
+                    Photo photo = photoIds.get(in.readLong());
+                    if (album != null && photo != null && !album.duplicatePhoto(photo))
+                        album.addPhoto(photo);
+                    break;
+                }
+                case REMOVE_PHOTO: {
+                    Album album = albumIds.get(in.readLong());
+                    Photo photo = photoIds.get(in.readLong());
+                    if (album != null && photo != null)
+                        album.deletePhoto(photo);
+                    break;
+                }
+                case SET_CAPTION: {
+                    Photo photo = photoIds.get(in.readLong());
+                    String caption = in.readUTF();
+                    if (photo != null)
+                        photo.setCaption(caption);
+                    break;
+                }
+                case SET_DATE: {
+                    Photo photo = photoIds.get(in.readLong());
+                    long millis = in.readLong();
+                    if (photo != null) {
+                        Calendar cal = Calendar.getInstance();
+                        cal.setTimeInMillis(millis);
+                        photo.setDate(cal);
+                    }
+                    break;
+                }
+                case SET_PATH: {
+                    Photo photo = photoIds.get(in.readLong());
+                    String path = in.readUTF();
+                    if (photo != null)
+                        photo.setThumbnail(path);
+                    break;
+                }
+                case SET_DIMENSIONS: {
+                    Photo photo = photoIds.get(in.readLong());
+                    int width = in.readInt();
+                    int height = in.readInt();
+                    int orientation = in.readInt();
+                    if (photo != null)
+                        photo.setDimensions(width, height, orientation);
+                    break;
+                }
+                case ADD_TAG_TYPE:
+                case ADD_TAG:
+                case DELETE_TAG:
+                case DELETE_TAG_TYPE: {
+                    Photo photo = photoIds.get(in.readLong());
+                    String tagType = in.readUTF();
+                    String tagValue = (type == ADD_TAG || type == DELETE_TAG) ? in.readUTF() : null;
+                    if (photo == null)
+                        break;
+                    if (type == ADD_TAG_TYPE)
+                        photo.addTagType(tagType);
+                    else if (type == ADD_TAG)
+                        photo.addTag(tagType, tagValue);
+                    else if (type == DELETE_TAG)
+                        photo.deleteTag(tagType, tagValue);
+                    else
+                        photo.deleteTagType(tagType);
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown journal record type " + type);
+            }
+        }
+
+        /**
+         * Reads a list of photo ids and resolves them, skipping unknown ids.
+         *
+         * @param in       the payload of the record
+         * @param photoIds the photos of the user by id
+         * @return the resolved photos
+         * @throws IOException if the payload is malformed
+         */
+        private static ArrayList<Photo> readPhotos(DataInputStream in, Map<Long, Photo> photoIds)
+                throws IOException {
+            int count = in.readInt();
+            ArrayList<Photo> list = new ArrayList<Photo>(count);
+            for (int i = 0; i < count; i++) {
+                Photo photo = photoIds.get(in.readLong());
+                if (photo != null)
+                    list.add(photo);
+            }
+            return list;
+        }
+    }
+}
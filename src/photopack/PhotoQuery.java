@@ -0,0 +1,1000 @@
+package photopack;
+
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The PhotoQuery class is a boolean search over the photos of a User.
+ * A query is parsed from text such as
+ * <pre>
+ * (person=liz OR person=james) AND location=france AND date&gt;=2022-01-01 AND NOT event=work
+ * </pre>
+ * into a tree of predicates, or built from the factory methods. The grammar is
+ * <pre>
+ * query     := and ( OR and )*
+ * and       := unary ( AND unary )*
+ * unary     := NOT unary | ( query ) | predicate
+ * predicate := date op yyyy-mm-dd | tagType = tagValue | tagType != tagValue
+ * op        := = | != | &lt; | &lt;= | &gt; | &gt;=
+ * </pre>
+ * Keywords and the date field are case-insensitive; tag types and values are
+ * matched exactly. A word containing spaces or any of the characters ( ) = ! &lt;
+ * &gt; is written in double quotes, with \" and \\ as escapes; a quoted "date"
+ * names a tag type rather than the date field.
+ * Before it is run, a query is planned against the User's TagIndex and
+ * DateIndex: nested ANDs and ORs are flattened, the date predicates of an AND
+ * are merged into a single range, and the operands of an AND are ordered by
+ * their estimated number of matches so that the most selective one is
+ * evaluated first and the evaluation stops as soon as the result is empty.
+ * Every predicate is then evaluated as a BitSet of photo ids. A query can also
+ * be bound to the indexes and run in chunks of ids, which is how the
+ * SearchExecutor runs it in parallel.
+ */
+public class PhotoQuery {
+    /**
+     * The root of the query tree.
+     */
+    private final Node root;
+
+    /**
+     * Constructs a query from the root of its tree.
+     *
+     * @param root the root node
+     */
+    private PhotoQuery(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Parses a query.
+     *
+     * @param text the text of the query
+     * @return the parsed query
+     * @throws ParseException if the text is not a valid query; the error offset
+     *                        is the position of the offending token
+     */
+    public static PhotoQuery parse(String text) throws ParseException {
+        return new PhotoQuery(new Parser(text).parse());
+    }
+
+    /**
+     * Returns a query matching the photos carrying a tag.
+     *
+     * @param tagType  the tag type
+     * @param tagValue the tag value
+     * @return the query
+     */
+    public static PhotoQuery tag(String tagType, String tagValue) {
+        return new PhotoQuery(new Tag(tagType, tagValue));
+    }
+
+    /**
+     * Returns a query matching the photos taken between two days, both included.
+     *
+     * @param from the first day, or null for no lower bound
+     * @param to   the last day, or null for no upper bound
+     * @return the query
+     */
+    public static PhotoQuery dateRange(LocalDate from, LocalDate to) {
+        return new PhotoQuery(new DateRange(from == null ? Long.MIN_VALUE : from.toEpochDay(),
+                to == null ? Long.MAX_VALUE : to.toEpochDay()));
+    }
+
+    /**
+     * Returns a query matching the photos matched by both this query and another.
+     *
+     * @param other the other query
+     * @return the combined query
+     */
+    public PhotoQuery and(PhotoQuery other) {
+        return new PhotoQuery(new And(List.of(root, other.root)));
+    }
+
+    /**
+     * Returns a query matching the photos matched by this query or another.
+     *
+     * @param other the other query
+     * @return the combined query
+     */
+    public PhotoQuery or(PhotoQuery other) {
+        return new PhotoQuery(new Or(List.of(root, other.root)));
+    }
+
+    /**
+     * Returns a query matching the photos not matched by this query.
+     *
+     * @return the negated query
+     */
+    public PhotoQuery not() {
+        return new PhotoQuery(new Not(root));
+    }
+
+    /**
+     * Plans and runs the query over the photos in the User's albums.
+     *
+     * @param user the User
+     * @return the ids of the matching photos, to be resolved through the User's
+     *         TagIndex
+     */
+    public BitSet evaluate(User user) {
+        Context context = new Context(user.getTagIndex(), user.getDateIndex());
+        return root.plan(context).evaluate(context, 0, context.limit);
+    }
+
+    /**
+     * Plans and runs the query over the photos in the User's albums.
+     *
+     * @param user the User
+     * @return the matching photos, in id order
+     */
+    public List<Photo> execute(User user) {
+        Bound bound = bind(user);
+        return bound.run(0, bound.limit());
+    }
+
+    /**
+     * Plans the query for the given User and resolves every predicate against
+     * the User's indexes, so that the returned Bound no longer reads the indexes
+     * and can be run on other threads while the User is being changed.
+     * Must be called on the thread that changes the User.
+     *
+     * @param user the User
+     * @return the bound query
+     */
+    Bound bind(User user) {
+        Context context = new Context(user.getTagIndex(), user.getDateIndex());
+        return new Bound(context, root.plan(context).bind(context), user.getTagIndex().snapshot());
+    }
+
+    /**
+     * Returns the plan the query would be run with for the given User, with the
+     * estimated number of matches of every operand.
+     *
+     * @param user the User
+     * @return a textual form of the plan
+     */
+    public String explain(User user) {
+        Context context = new Context(user.getTagIndex(), user.getDateIndex());
+        StringBuilder sb = new StringBuilder();
+        root.plan(context).explain(context, sb, 0);
+        return sb.toString();
+    }
+
+    /**
+     * Returns the query in the syntax accepted by parse.
+     *
+     * @return the text of the query
+     */
+    public String toString() {
+        return root.toString();
+    }
+
+    /**
+     * The indexes a query is planned and evaluated against.
+     */
+    private static class Context {
+        /**
+         * The tag index of the User.
+         */
+        final TagIndex tags;
+        /**
+         * The date index of the User.
+         */
+        final DateIndex dates;
+        /**
+         * The ids of the photos in the User's albums when the context was
+         * created.
+         */
+        final BitSet present;
+        /**
+         * The number of photos in the User's albums.
+         */
+        final long total;
+        /**
+         * One more than the highest id of a photo in the User's albums.
+         */
+        final int limit;
+
+        /**
+         * Constructs a context over the indexes of a User.
+         *
+         * @param tags  the tag index
+         * @param dates the date index
+         */
+        Context(TagIndex tags, DateIndex dates) {
+            this.tags = tags;
+            this.dates = dates;
+            this.present = tags.all();
+            this.total = present.cardinality();
+            this.limit = present.length();
+        }
+    }
+
+    /**
+     * A query planned and bound to the indexes of a User, which can be run over
+     * any range of photo ids from any thread.
+     */
+    static class Bound {
+        /**
+         * The context the query was bound in.
+         */
+        private final Context context;
+        /**
+         * The root of the bound plan.
+         */
+        private final Node plan;
+        /**
+         * The photos of the User by id, when the query was bound.
+         */
+        private final Photo[] photos;
+
+        /**
+         * Constructs a bound query.
+         *
+         * @param context the context the query was bound in
+         * @param plan    the root of the bound plan
+         * @param photos  the photos of the User by id
+         */
+        Bound(Context context, Node plan, Photo[] photos) {
+            this.context = context;
+            this.plan = plan;
+            this.photos = photos;
+        }
+
+        /**
+         * Returns the end of the range of ids the query has to be run over.
+         *
+         * @return one more than the highest id of a photo of the User
+         */
+        int limit() {
+            return context.limit;
+        }
+
+        /**
+         * Runs the query over a range of photo ids.
+         *
+         * @param from the first id of the range
+         * @param to   the end of the range, exclusive
+         * @return the matching photos of the range, in id order
+         */
+        List<Photo> run(int from, int to) {
+            BitSet ids = plan.evaluate(context, from, to);
+            ArrayList<Photo> result = new ArrayList<Photo>(ids.cardinality());
+            for (int i = ids.nextSetBit(0); i >= 0; i = ids.nextSetBit(i + 1))
+                result.add(photos[from + i]);
+            return result;
+        }
+    }
+
+    /**
+     * A node of a query tree.
+     */
+    private abstract static class Node {
+        /**
+         * Returns the estimated number of photos the node matches.
+         *
+         * @param context the indexes
+         * @return the estimate
+         */
+        abstract long estimate(Context context);
+
+        /**
+         * Returns the node to evaluate in place of this one.
+         *
+         * @param context the indexes
+         * @return the planned node
+         */
+        Node plan(Context context) {
+            return this;
+        }
+
+        /**
+         * Returns a copy of the node in which every predicate has been resolved
+         * against the indexes.
+         *
+         * @param context the indexes
+         * @return the bound node
+         */
+        Node bind(Context context) {
+            return this;
+        }
+
+        /**
+         * Evaluates the node over a range of photo ids.
+         *
+         * @param context the indexes
+         * @param from    the first id of the range
+         * @param to      the end of the range, exclusive
+         * @return the matching ids of the range, bit 0 standing for id from
+         */
+        abstract BitSet evaluate(Context context, int from, int to);
+
+        /**
+         * Appends the plan of the node to a StringBuilder, one node per line.
+         *
+         * @param context the indexes
+         * @param sb      the StringBuilder
+         * @param depth   the depth of the node in the tree
+         */
+        void explain(Context context, StringBuilder sb, int depth) {
+            sb.append("  ".repeat(depth)).append(this).append(" ~").append(estimate(context)).append('\n');
+        }
+    }
+
+    /**
+     * A predicate matching the photos carrying a tag.
+     */
+    private static class Tag extends Node {
+        /**
+         * The tag type.
+         */
+        final String type;
+        /**
+         * The tag value.
+         */
+        final String value;
+
+        /**
+         * Constructs a tag predicate.
+         *
+         * @param type  the tag type
+         * @param value the tag value
+         */
+        Tag(String type, String value) {
+            this.type = type;
+            this.value = value;
+        }
+
+        @Override
+        long estimate(Context context) {
+            return context.tags.count(type, value);
+        }
+
+        @Override
+        Node bind(Context context) {
+            return new Bits(toString(), context.tags.find(type, value));
+        }
+
+        @Override
+        BitSet evaluate(Context context, int from, int to) {
+            return context.tags.find(type, value).get(from, to);
+        }
+
+        @Override
+        public String toString() {
+            return quote(type, true) + "=" + quote(value, false);
+        }
+    }
+
+    /**
+     * A predicate matching the photos taken between two epoch days, both
+     * included.
+     */
+    private static class DateRange extends Node {
+        /**
+         * The first epoch day, or Long.MIN_VALUE for no lower bound.
+         */
+        final long from;
+        /**
+         * The last epoch day, or Long.MAX_VALUE for no upper bound.
+         */
+        final long to;
+
+        /**
+         * Constructs a date predicate.
+         *
+         * @param from the first epoch day
+         * @param to   the last epoch day
+         */
+        DateRange(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        long estimate(Context context) {
+            return context.dates.count(from, to);
+        }
+
+        @Override
+        Node bind(Context context) {
+            return new Bits(toString(), context.dates.range(from, to));
+        }
+
+        @Override
+        BitSet evaluate(Context context, int low, int high) {
+            return context.dates.range(from, to).get(low, high);
+        }
+
+        @Override
+        public String toString() {
+            if (from == to)
+                return "date=" + LocalDate.ofEpochDay(from);
+            if (from == Long.MIN_VALUE)
+                return "date<=" + (to == Long.MAX_VALUE ? LocalDate.MAX : LocalDate.ofEpochDay(to));
+            if (to == Long.MAX_VALUE)
+                return "date>=" + LocalDate.ofEpochDay(from);
+            return "(date>=" + LocalDate.ofEpochDay(from) + " AND date<=" + LocalDate.ofEpochDay(to) + ")";
+        }
+    }
+
+    /**
+     * A predicate already resolved to the set of ids it matches.
+     */
+    private static class Bits extends Node {
+        /**
+         * The text of the resolved predicate.
+         */
+        final String text;
+        /**
+         * The ids the predicate matches.
+         */
+        final BitSet ids;
+
+        /**
+         * Constructs a resolved predicate.
+         *
+         * @param text the text of the predicate
+         * @param ids  the ids it matches
+         */
+        Bits(String text, BitSet ids) {
+            this.text = text;
+            this.ids = ids;
+        }
+
+        @Override
+        long estimate(Context context) {
+            return ids.cardinality();
+        }
+
+        @Override
+        BitSet evaluate(Context context, int from, int to) {
+            return ids.get(from, to);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * The negation of a node.
+     */
+    private static class Not extends Node {
+        /**
+         * The negated node.
+         */
+        final Node child;
+
+        /**
+         * Constructs a negation.
+         *
+         * @param child the negated node
+         */
+        Not(Node child) {
+            this.child = child;
+        }
+
+        @Override
+        long estimate(Context context) {
+            return Math.max(0, context.total - child.estimate(context));
+        }
+
+        @Override
+        Node plan(Context context) {
+            Node planned = child.plan(context);
+            if (planned instanceof Not)
+                return ((Not) planned).child;
+            return new Not(planned);
+        }
+
+        @Override
+        Node bind(Context context) {
+            return new Not(child.bind(context));
+        }
+
+        @Override
+        BitSet evaluate(Context context, int from, int to) {
+            BitSet result = context.present.get(from, to);
+            result.andNot(child.evaluate(context, from, to));
+            return result;
+        }
+
+        @Override
+        void explain(Context context, StringBuilder sb, int depth) {
+            sb.append("  ".repeat(depth)).append("NOT ~").append(estimate(context)).append('\n');
+            child.explain(context, sb, depth + 1);
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + child;
+        }
+    }
+
+    /**
+     * The conjunction of several nodes.
+     */
+    private static class And extends Node {
+        /**
+         * The operands, in evaluation order once planned.
+         */
+        final List<Node> children;
+
+        /**
+         * Constructs a conjunction.
+         *
+         * @param children the operands
+         */
+        And(List<Node> children) {
+            this.children = children;
+        }
+
+        @Override
+        long estimate(Context context) {
+            long min = context.total;
+            for (Node child : children) {
+                if (!(child instanceof Not))
+                    min = Math.min(min, child.estimate(context));
+            }
+            return min;
+        }
+
+        /**
+         * Flattens nested conjunctions, merges the date ranges into one and
+         * orders the operands by estimated matches, the negations last.
+         */
+        @Override
+        Node plan(Context context) {
+            ArrayList<Node> flat = new ArrayList<Node>();
+            flatten(this, context, flat);
+            long from = Long.MIN_VALUE;
+            long to = Long.MAX_VALUE;
+            boolean dated = false;
+            ArrayList<Node> planned = new ArrayList<Node>();
+            for (Node child : flat) {
+                if (child instanceof DateRange) {
+                    from = Math.max(from, ((DateRange) child).from);
+                    to = Math.min(to, ((DateRange) child).to);
+                    dated = true;
+                } else {
+                    planned.add(child);
+                }
+            }
+            if (dated)
+                planned.add(new DateRange(from, to));
+            if (planned.size() == 1)
+                return planned.get(0);
+            ArrayList<long[]> keys = new ArrayList<long[]>();
+            for (int i = 0; i < planned.size(); i++) {
+                Node child = planned.get(i);
+                boolean negated = child instanceof Not;
+                long cost = negated ? -((Not) child).child.estimate(context) : child.estimate(context);
+                keys.add(new long[] { negated ? 1 : 0, cost, i });
+            }
+            keys.sort(Comparator.<long[]>comparingLong(k -> k[0]).thenComparingLong(k -> k[1]));
+            ArrayList<Node> ordered = new ArrayList<Node>();
+            for (long[] key : keys)
+                ordered.add(planned.get((int) key[2]));
+            return new And(ordered);
+        }
+
+        /**
+         * Adds the planned operands of a conjunction to a list, replacing nested
+         * conjunctions by their own operands.
+         *
+         * @param and     the conjunction
+         * @param context the indexes
+         * @param out     the list of operands
+         */
+        private static void flatten(And and, Context context, List<Node> out) {
+            for (Node child : and.children) {
+                Node planned = child.plan(context);
+                if (planned instanceof And)
+                    out.addAll(((And) planned).children);
+                else
+                    out.add(planned);
+            }
+        }
+
+        /**
+         * Binds every operand, keeping their planned order.
+         */
+        @Override
+        Node bind(Context context) {
+            ArrayList<Node> bound = new ArrayList<Node>();
+            for (Node child : children)
+                bound.add(child.bind(context));
+            return new And(bound);
+        }
+
+        /**
+         * Intersects the operands in order. Negated operands are subtracted, and
+         * the evaluation stops as soon as the result is empty.
+         */
+        @Override
+        BitSet evaluate(Context context, int from, int to) {
+            BitSet result = null;
+            for (Node child : children) {
+                if (child instanceof Not) {
+                    if (result == null)
+                        result = context.present.get(from, to);
+                    result.andNot(((Not) child).child.evaluate(context, from, to));
+                } else if (result == null) {
+                    result = child.evaluate(context, from, to);
+                } else {
+                    result.and(child.evaluate(context, from, to));
+                }
+                if (result.isEmpty())
+                    break;
+            }
+            return result == null ? context.present.get(from, to) : result;
+        }
+
+        @Override
+        void explain(Context context, StringBuilder sb, int depth) {
+            sb.append("  ".repeat(depth)).append("AND ~").append(estimate(context)).append('\n');
+            for (Node child : children)
+                child.explain(context, sb, depth + 1);
+        }
+
+        @Override
+        public String toString() {
+            return join(children, " AND ");
+        }
+    }
+
+    /**
+     * The disjunction of several nodes.
+     */
+    private static class Or extends Node {
+        /**
+         * The operands.
+         */
+        final List<Node> children;
+
+        /**
+         * Constructs a disjunction.
+         *
+         * @param children the operands
+         */
+        Or(List<Node> children) {
+            this.children = children;
+        }
+
+        @Override
+        long estimate(Context context) {
+            long sum = 0;
+            for (Node child : children)
+                sum += child.estimate(context);
+            return Math.min(sum, context.total);
+        }
+
+        /**
+         * Flattens nested disjunctions.
+         */
+        @Override
+        Node plan(Context context) {
+            ArrayList<Node> flat = new ArrayList<Node>();
+            for (Node child : children) {
+                Node planned = child.plan(context);
+                if (planned instanceof Or)
+                    flat.addAll(((Or) planned).children);
+                else
+                    flat.add(planned);
+            }
+            return flat.size() == 1 ? flat.get(0) : new Or(flat);
+        }
+
+        @Override
+        Node bind(Context context) {
+            ArrayList<Node> bound = new ArrayList<Node>();
+            for (Node child : children)
+                bound.add(child.bind(context));
+            return new Or(bound);
+        }
+
+        @Override
+        BitSet evaluate(Context context, int from, int to) {
+            BitSet result = new BitSet();
+            for (Node child : children)
+                result.or(child.evaluate(context, from, to));
+            return result;
+        }
+
+        @Override
+        void explain(Context context, StringBuilder sb, int depth) {
+            sb.append("  ".repeat(depth)).append("OR ~").append(estimate(context)).append('\n');
+            for (Node child : children)
+                child.explain(context, sb, depth + 1);
+        }
+
+        @Override
+        public String toString() {
+            return join(children, " OR ");
+        }
+    }
+
+    /**
+     * Joins the operands of a conjunction or disjunction in parentheses.
+     *
+     * @param children  the operands
+     * @param separator the keyword between them
+     * @return the joined text
+     */
+    private static String join(List<Node> children, String separator) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < children.size(); i++) {
+            if (i > 0)
+                sb.append(separator);
+            sb.append(children.get(i));
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Returns a word as it has to be written in a query, quoting it if needed.
+     *
+     * @param word    the word
+     * @param tagType true if the word is a tag type, which is quoted if it could
+     *                be read as the date field
+     * @return the word, quoted if needed
+     */
+    private static String quote(String word, boolean tagType) {
+        boolean plain = !word.isEmpty() && !(tagType && word.equalsIgnoreCase("date"))
+                && !word.equalsIgnoreCase("AND") && !word.equalsIgnoreCase("OR") && !word.equalsIgnoreCase("NOT");
+        for (int i = 0; i < word.length() && plain; i++)
+            plain = Parser.isWordChar(word.charAt(i));
+        if (plain)
+            return word;
+        return "\"" + word.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * A recursive descent parser for the query grammar.
+     */
+    private static class Parser {
+        /**
+         * The text being parsed.
+         */
+        private final String text;
+        /**
+         * The position of the next character to read.
+         */
+        private int pos;
+        /**
+         * The current token: one of ( ) = != &lt; &lt;= &gt; &gt;=, a word, or null at
+         * the end of the text.
+         */
+        private String token;
+        /**
+         * Whether the current token is a quoted word.
+         */
+        private boolean quoted;
+        /**
+         * The position of the current token.
+         */
+        private int start;
+
+        /**
+         * Constructs a parser over the given text.
+         *
+         * @param text the text of the query
+         */
+        Parser(String text) {
+            this.text = text;
+        }
+
+        /**
+         * Parses the whole text.
+         *
+         * @return the root of the query tree
+         * @throws ParseException if the text is not a valid query
+         */
+        Node parse() throws ParseException {
+            next();
+            if (token == null)
+                throw new ParseException("Empty query", 0);
+            Node node = parseOr();
+            if (token != null)
+                throw new ParseException("Unexpected " + token, start);
+            return node;
+        }
+
+        /**
+         * Parses a disjunction.
+         *
+         * @return the parsed node
+         * @throws ParseException if the text is not a valid query
+         */
+        private Node parseOr() throws ParseException {
+            ArrayList<Node> children = new ArrayList<Node>();
+            children.add(parseAnd());
+            while (keyword("OR")) {
+                next();
+                children.add(parseAnd());
+            }
+            return children.size() == 1 ? children.get(0) : new Or(children);
+        }
+
+        /**
+         * Parses a conjunction.
+         *
+         * @return the parsed node
+         * @throws ParseException if the text is not a valid query
+         */
+        private Node parseAnd() throws ParseException {
+            ArrayList<Node> children = new ArrayList<Node>();
+            children.add(parseUnary());
+            while (keyword("AND")) {
+                next();
+                children.add(parseUnary());
+            }
+            return children.size() == 1 ? children.get(0) : new And(children);
+        }
+
+        /**
+         * Parses a negation, a parenthesized query or a predicate.
+         *
+         * @return the parsed node
+         * @throws ParseException if the text is not a valid query
+         */
+        private Node parseUnary() throws ParseException {
+            if (token == null)
+                throw new ParseException("Unexpected end of query", text.length());
+            if (keyword("NOT")) {
+                next();
+                return new Not(parseUnary());
+            }
+            if (!quoted && token.equals("(")) {
+                next();
+                Node node = parseOr();
+                if (token == null || quoted || !token.equals(")"))
+                    throw new ParseException("Expected )", token == null ? text.length() : start);
+                next();
+                return node;
+            }
+            return parsePredicate();
+        }
+
+        /**
+         * Parses a tag or date predicate.
+         *
+         * @return the parsed node
+         * @throws ParseException if the text is not a valid query
+         */
+        private Node parsePredicate() throws ParseException {
+            if (!quoted && !isWord(token))
+                throw new ParseException("Expected a tag type or date, found " + token, start);
+            String field = token;
+            boolean date = !quoted && field.equalsIgnoreCase("date");
+            next();
+            if (token == null || quoted || isWord(token) || token.equals("(") || token.equals(")"))
+                throw new ParseException("Expected a comparison after " + field,
+                        token == null ? text.length() : start);
+            String op = token;
+            int opStart = start;
+            next();
+            if (token == null || (!quoted && !isWord(token)))
+                throw new ParseException("Expected a value after " + op, token == null ? text.length() : start);
+            String value = token;
+            int valueStart = start;
+            next();
+            if (!date) {
+                if (op.equals("="))
+                    return new Tag(field, value);
+                if (op.equals("!="))
+                    return new Not(new Tag(field, value));
+                throw new ParseException("Tags can only be compared with = or !=", opStart);
+            }
+            long day;
+            try {
+                day = LocalDate.parse(value).toEpochDay();
+            } catch (DateTimeParseException e) {
+                throw new ParseException("Expected a date as yyyy-mm-dd, found " + value, valueStart);
+            }
+            switch (op) {
+                case "=":
+                    return new DateRange(day, day);
+                case "!=":
+                    return new Not(new DateRange(day, day));
+                case "<":
+                    return new DateRange(Long.MIN_VALUE, day - 1);
+                case "<=":
+                    return new DateRange(Long.MIN_VALUE, day);
+                case ">":
+                    return new DateRange(day + 1, Long.MAX_VALUE);
+                default:
+                    return new DateRange(day, Long.MAX_VALUE);
+            }
+        }
+
+        /**
+         * Checks whether the current token is the given keyword.
+         *
+         * @param keyword the keyword
+         * @return true if the current token is that keyword, unquoted
+         */
+        private boolean keyword(String keyword) {
+            return token != null && !quoted && token.equalsIgnoreCase(keyword);
+        }
+
+        /**
+         * Checks whether a token is a word rather than a symbol or a keyword.
+         *
+         * @param token the token
+         * @return true if the token is a word
+         */
+        private static boolean isWord(String token) {
+            return isWordChar(token.charAt(0)) && !token.equalsIgnoreCase("AND") && !token.equalsIgnoreCase("OR")
+                    && !token.equalsIgnoreCase("NOT");
+        }
+
+        /**
+         * Checks whether a character can be part of an unquoted word.
+         *
+         * @param c the character
+         * @return true if the character can be part of a word
+         */
+        static boolean isWordChar(char c) {
+            return !Character.isWhitespace(c) && "()=!<>\"".indexOf(c) < 0;
+        }
+
+        /**
+         * Reads the next token.
+         *
+         * @throws ParseException if a quoted word is not terminated or a symbol is
+         *                        not valid
+         */
+        private void next() throws ParseException {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+                pos++;
+            start = pos;
+            quoted = false;
+            if (pos >= text.length()) {
+                token = null;
+                return;
+            }
+            char c = text.charAt(pos);
+            if (c == '(' || c == ')' || c == '=') {
+                pos++;
+                token = String.valueOf(c);
+            } else if (c == '<' || c == '>' || c == '!') {
+                pos++;
+                if (pos < text.length() && text.charAt(pos) == '=') {
+                    pos++;
+                    token = c + "=";
+                } else if (c == '!') {
+                    throw new ParseException("Expected !=", start);
+                } else {
+                    token = String.valueOf(c);
+                }
+            } else if (c == '"') {
+                StringBuilder sb = new StringBuilder();
+                pos++;
+                while (true) {
+                    if (pos >= text.length())
+                        throw new ParseException("Unterminated quote", start);
+                    char q = text.charAt(pos++);
+                    if (q == '"')
+                        break;
+                    if (q == '\\' && pos < text.length())
+                        q = text.charAt(pos++);
+                    sb.append(q);
+                }
+                token = sb.toString();
+                quoted = true;
+            } else {
+                while (pos < text.length() && isWordChar(text.charAt(pos)))
+                    pos++;
+                token = text.substring(start, pos);
+            }
+        }
+    }
+}
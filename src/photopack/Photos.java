@@ -1,5 +1,7 @@
 package photopack;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
 import javafx.application.Application;
@@ -41,20 +43,46 @@ public class Photos extends Application {
      */
     public static UserApp gapp;
 
+    /**
+     * The background thread converting the serialized images and importing
+     * them into the BlobStore, so that the login screen does not wait for them.
+     */
+    private Thread conversion;
+
     /**
      * This method is called when the JavaFX application is launched. It sets up the
      * primary stage for the
      * application by loading the login.fxml file using an FXMLLoader and setting
-     * the scene for the primary stage.
+     * the scene for the primary stage. Only the index of usernames is read
+     * before the login screen is shown; users are loaded as they log in.
+     * Serialized images under data/serialized_images still holding a PNG are
+     * converted to PackedImage containers, and those that are not in the
+     * BlobStore yet are imported into it, on a background thread; each user's
+     * photos are pointed at the imported entries when the user logs in after
+     * the import, and keep reading the serialized files until then.
      * 
      * @param primaryStage the primary stage for the application, represented as a
      *                     Stage object
      * @throws Exception if an error occurs while loading the login.fxml file
      */
     public void start(Stage primaryStage) throws Exception {
-        gapp = UserApp.readApp();
+        gapp = UserApp.open();
+        conversion = new Thread(() -> {
+            File dir = new File("data", "serialized_images");
+            SerializableImage.convertDirectory(dir);
+            if (Thread.currentThread().isInterrupted())
+                return;
+            try {
+                BlobStore.getInstance().importDirectory(dir);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "serialized-image-conversion");
+        conversion.setDaemon(true);
+        conversion.setPriority(Thread.NORM_PRIORITY - 1);
+        conversion.start();
         FXMLLoader loader = new FXMLLoader(getClass().getResource("/photopack/fxml files/login.fxml"));
-        loginController loginController = new loginController(gapp.getUsers());
+        loginController loginController = new loginController(gapp);
         loader.setController(loginController);
         root = loader.load();
         Scene scene = new Scene(root, 600, 400);
@@ -64,12 +92,21 @@ public class Photos extends Application {
     }
 
     /**
-     * This method is called when the application should stop, and it writes the
-     * state of the UserApp to a file using the writeApp() method.
+     * This method is called when the application should stop. It stops the
+     * conversion of serialized images after the file in progress and the
+     * background image decoding, search and thumbnail threads, closes the BlobStore and
+     * closes the UserApp, whose journal already holds every change made during
+     * the session.
      */
     @Override
     public void stop() throws Exception {
-        UserApp.writeApp(gapp);
+        conversion.interrupt();
+        conversion.join();
+        ImageDecodeService.getInstance().shutdown();
+        SearchExecutor.getInstance().shutdown();
+        ThumbnailStore.getInstance().shutdown();
+        BlobStore.getInstance().close();
+        gapp.close();
     }
 
     /**
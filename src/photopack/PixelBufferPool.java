@@ -0,0 +1,300 @@
+package photopack;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.WeakHashMap;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+/**
+ * The PixelBufferPool class is a process-wide pool of direct ByteBuffers that
+ * decoded images keep their pixels in, so that browsing reuses the same few
+ * buffers outside the Java heap instead of allocating a large pixel array for
+ * every image it decodes.
+ * Buffers come in resolution classes, each of them large enough for images of
+ * up to SIDES[i] by SIDES[i] pixels of premultiplied BGRA, and an image takes
+ * a buffer of the smallest class that holds it. Images larger than the largest
+ * class get a buffer of their own, which is not pooled.
+ * An image acquired from the pool is a WritableImage showing its buffer through
+ * a PixelBuffer; the decoder fills the buffer before handing the image out.
+ * Every holder of an image, such as the ThumbnailCache and each view showing
+ * the image, holds a lease on it: acquire hands out the first one, retain adds
+ * one and release gives one back. The buffer returns to the pool, and may be
+ * handed to another image, only once the last lease is released. Images whose
+ * leases are never all released are reclaimed by the garbage collector along
+ * with their buffer.
+ */
+public class PixelBufferPool {
+    /**
+     * The longest side of the square images each resolution class holds, from
+     * the smallest class.
+     */
+    public static final int[] SIDES = { 256, 1024, 2048, 4096 };
+    /**
+     * The number of free buffers kept in each resolution class; buffers released
+     * beyond it are left to the garbage collector.
+     */
+    public static final int[] LIMITS = { 64, 16, 4, 2 };
+    /**
+     * The shared instance used by every decoder of the application.
+     */
+    private static final PixelBufferPool instance = new PixelBufferPool();
+    /**
+     * The free buffers of each resolution class.
+     */
+    private final List<ArrayDeque<ByteBuffer>> free = new ArrayList<ArrayDeque<ByteBuffer>>();
+    /**
+     * The buffer and leases of each image handed out and not yet released,
+     * keyed by identity. Images dropped without being released disappear from
+     * the map once they are collected.
+     */
+    private final WeakHashMap<Image, Lease> leased = new WeakHashMap<Image, Lease>();
+    /**
+     * The number of images given a free buffer from the pool.
+     */
+    private long reuses;
+    /**
+     * The number of buffers allocated because none was free.
+     */
+    private long allocations;
+    /**
+     * The number of buffers returned to the pool.
+     */
+    private long releases;
+
+    /**
+     * Constructs an empty PixelBufferPool.
+     */
+    PixelBufferPool() {
+        for (int i = 0; i < SIDES.length; i++)
+            free.add(new ArrayDeque<ByteBuffer>());
+    }
+
+    /**
+     * Returns the pool shared by the whole application.
+     *
+     * @return the shared PixelBufferPool
+     */
+    public static PixelBufferPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns an image of the given size backed by a pooled buffer, holding one
+     * lease for the caller. Its pixels are undefined until they are written
+     * through buffer(image).
+     *
+     * @param width  the width of the image
+     * @param height the height of the image
+     * @return the image
+     */
+    public WritableImage acquire(int width, int height) {
+        long length = (long) width * height * 4;
+        if (width <= 0 || height <= 0 || length > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid image size " + width + "x" + height);
+        int sizeClass = sizeClass(length);
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = sizeClass < 0 ? null : free.get(sizeClass).poll();
+            if (buffer != null)
+                reuses++;
+            else
+                allocations++;
+        }
+        if (buffer == null)
+            buffer = allocate(sizeClass < 0 ? (int) length : capacity(sizeClass));
+        PixelBuffer<ByteBuffer> pixels = new PixelBuffer<ByteBuffer>(width, height, buffer.slice(0, (int) length),
+                PixelFormat.getByteBgraPreInstance());
+        WritableImage image = new WritableImage(pixels);
+        synchronized (this) {
+            leased.put(image, new Lease(buffer));
+        }
+        return image;
+    }
+
+    /**
+     * Returns the pixels of an image acquired from the pool, as premultiplied
+     * BGRA rows of width * 4 bytes.
+     *
+     * @param image the image
+     * @return a buffer over the pixels of the image, or null if the image was
+     *         not acquired from the pool or has been released
+     */
+    public ByteBuffer buffer(Image image) {
+        Lease lease;
+        synchronized (this) {
+            lease = leased.get(image);
+        }
+        if (lease == null)
+            return null;
+        return lease.buffer.slice(0, (int) image.getWidth() * (int) image.getHeight() * 4);
+    }
+
+    /**
+     * Takes another lease on an image acquired from the pool, so that its buffer
+     * stays with the image until this lease is released too. Images that were
+     * not acquired from the pool, or have been released, are left alone.
+     *
+     * @param image the image, may be null
+     * @return true if the image holds a pooled buffer and is now leased once
+     *         more
+     */
+    public synchronized boolean retain(Image image) {
+        Lease lease = image == null ? null : leased.get(image);
+        if (lease == null)
+            return false;
+        lease.count++;
+        return true;
+    }
+
+    /**
+     * Gives back a lease on an image, returning its buffer to the pool once no
+     * lease is left. The holder must not show or read the image afterwards.
+     *
+     * @param image the image to release, may be null
+     * @return true if that was the last lease and the buffer is back in the pool
+     */
+    public synchronized boolean release(Image image) {
+        Lease lease = image == null ? null : leased.get(image);
+        if (lease == null || --lease.count > 0)
+            return false;
+        leased.remove(image);
+        ByteBuffer buffer = lease.buffer;
+        releases++;
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass >= 0 && buffer.capacity() == capacity(sizeClass)
+                && free.get(sizeClass).size() < LIMITS[sizeClass])
+            free.get(sizeClass).push(buffer);
+        return true;
+    }
+
+    /**
+     * Drops every free buffer, leaving them to the garbage collector. Images
+     * still leased are left untouched.
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<ByteBuffer> buffers : free)
+            buffers.clear();
+    }
+
+    /**
+     * Returns the number of images given a free buffer from the pool.
+     *
+     * @return the reuse count
+     */
+    public synchronized long getReuses() {
+        return reuses;
+    }
+
+    /**
+     * Returns the number of buffers allocated because none was free.
+     *
+     * @return the allocation count
+     */
+    public synchronized long getAllocations() {
+        return allocations;
+    }
+
+    /**
+     * Returns the number of buffers returned to the pool.
+     *
+     * @return the release count
+     */
+    public synchronized long getReleases() {
+        return releases;
+    }
+
+    /**
+     * Returns the number of bytes held by the free buffers.
+     *
+     * @return the size of the free buffers in bytes
+     */
+    public synchronized long getFreeBytes() {
+        long bytes = 0;
+        for (int i = 0; i < SIDES.length; i++)
+            bytes += (long) free.get(i).size() * capacity(i);
+        return bytes;
+    }
+
+    /**
+     * Returns a String representation of the pool counters.
+     *
+     * @return the free buffers, leased images, reuses, allocations and releases
+     *         of the pool
+     */
+    public synchronized String toString() {
+        int buffers = 0;
+        for (ArrayDeque<ByteBuffer> queue : free)
+            buffers += queue.size();
+        return "PixelBufferPool[" + buffers + " free buffers, " + getFreeBytes() + " bytes, " + leased.size()
+                + " leased, reuses=" + reuses + ", allocations=" + allocations + ", releases=" + releases + "]";
+    }
+
+    /**
+     * Allocates a direct buffer, dropping the free buffers and trying again if
+     * direct memory runs out.
+     *
+     * @param capacity the capacity of the buffer
+     * @return the buffer
+     */
+    private ByteBuffer allocate(int capacity) {
+        try {
+            return ByteBuffer.allocateDirect(capacity);
+        } catch (OutOfMemoryError e) {
+            clear();
+            return ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    /**
+     * Returns the smallest resolution class whose buffers hold the given number
+     * of bytes.
+     *
+     * @param length the number of bytes
+     * @return the index of the class, or -1 if no class is large enough
+     */
+    static int sizeClass(long length) {
+        for (int i = 0; i < SIDES.length; i++)
+            if (length <= capacity(i))
+                return i;
+        return -1;
+    }
+
+    /**
+     * Returns the capacity of the buffers of a resolution class.
+     *
+     * @param sizeClass the index of the class
+     * @return the capacity in bytes
+     */
+    static int capacity(int sizeClass) {
+        return SIDES[sizeClass] * SIDES[sizeClass] * 4;
+    }
+
+    /**
+     * The buffer behind an image handed out and the number of leases held on it.
+     */
+    private static class Lease {
+        /**
+         * The buffer holding the pixels of the image.
+         */
+        private final ByteBuffer buffer;
+        /**
+         * The number of leases not released yet.
+         */
+        private int count = 1;
+
+        /**
+         * Constructs the first lease on an image.
+         *
+         * @param buffer the buffer holding the pixels of the image
+         */
+        Lease(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package photopack;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+import javafx.application.Platform;
+
+/**
+ * The SearchCursor class hands out the results of a search page by page, in id
+ * order, instead of collecting every matching photo up front.
+ * Fetching a page evaluates the next chunks of photo ids on the SearchExecutor's
+ * pool, a batch of chunks in parallel at a time, only until enough matches are
+ * found to fill the page. Matches found beyond the page are kept for the next
+ * one, so the first page is ready after the first matches rather than after a
+ * scan of the whole library.
+ * A cursor is opened by the SearchExecutor and closed when the next search is
+ * opened; a closed cursor stops scanning and never posts another page.
+ */
+public class SearchCursor {
+    /**
+     * The query bound to the User's indexes.
+     */
+    private final PhotoQuery.Bound bound;
+    /**
+     * The pool evaluating chunks.
+     */
+    private final ForkJoinPool pool;
+    /**
+     * The matches found but not handed out yet, in id order. Only accessed by
+     * the fetch in progress.
+     */
+    private final ArrayDeque<Photo> pending = new ArrayDeque<Photo>();
+    /**
+     * The first photo id not scanned yet. Only accessed by the fetch in
+     * progress.
+     */
+    private int next;
+    /**
+     * Whether a fetch is in progress, only accessed on the JavaFX Application
+     * Thread.
+     */
+    private boolean fetching;
+    /**
+     * Whether more matches may follow the pages already posted.
+     */
+    private volatile boolean more;
+    /**
+     * Set once the cursor is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Constructs a cursor over the results of a bound query.
+     *
+     * @param bound the query bound to the User's indexes
+     * @param pool  the pool evaluating chunks
+     */
+    SearchCursor(PhotoQuery.Bound bound, ForkJoinPool pool) {
+        this.bound = bound;
+        this.pool = pool;
+        this.more = bound.limit() > 0;
+    }
+
+    /**
+     * Checks whether more matches may follow the pages already posted.
+     *
+     * @return true if the search is not exhausted, false otherwise
+     */
+    public boolean hasMore() {
+        return more && !closed;
+    }
+
+    /**
+     * Checks whether a page is being fetched.
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @return true if a fetch is in progress, false otherwise
+     */
+    public boolean isFetching() {
+        return fetching;
+    }
+
+    /**
+     * Fetches the next page of matches in the background and hands it to the
+     * callback on the JavaFX Application Thread, unless the cursor is closed in
+     * the meantime. Does nothing if a fetch is already in progress or the search
+     * is exhausted.
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @param size   the maximum number of photos in the page
+     * @param onPage the callback receiving the page, in id order
+     */
+    public void fetch(int size, Consumer<List<Photo>> onPage) {
+        if (fetching || !hasMore())
+            return;
+        fetching = true;
+        pool.execute(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                List<Photo> page = scan(size);
+                Platform.runLater(() -> {
+                    fetching = false;
+                    if (!closed)
+                        onPage.accept(page);
+                });
+            }
+        });
+    }
+
+    /**
+     * Collects every match of the search, including the pages already posted,
+     * in the background and hands them to the callback on the JavaFX Application
+     * Thread. Every chunk is evaluated in parallel on the pool. The matches are
+     * handed out even if the cursor is closed in the meantime, since the caller
+     * asked for all of them rather than for the next page.
+     *
+     * @param onResults the callback receiving the matching photos, in id order
+     */
+    public void all(Consumer<List<Photo>> onResults) {
+        pool.execute(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                int limit = bound.limit();
+                ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+                for (int from = 0; from < limit; from += SearchExecutor.CHUNK_SIZE)
+                    chunks.add(new Chunk(from, Math.min(limit, from + SearchExecutor.CHUNK_SIZE), false));
+                RecursiveTask.invokeAll(chunks);
+                ArrayList<Photo> result = new ArrayList<Photo>();
+                for (Chunk chunk : chunks)
+                    result.addAll(chunk.join());
+                Platform.runLater(() -> onResults.accept(result));
+            }
+        });
+    }
+
+    /**
+     * Closes the cursor. Chunks still queued are skipped and no further page is
+     * posted.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Scans chunks until the given number of matches is found or the search is
+     * exhausted, and takes them from the pending matches. Runs on the pool.
+     *
+     * @param size the maximum number of photos in the page
+     * @return the page
+     */
+    private List<Photo> scan(int size) {
+        int limit = bound.limit();
+        int batch = pool.getParallelism();
+        while (pending.size() < size && next < limit && !closed) {
+            ArrayList<Chunk> chunks = new ArrayList<Chunk>(batch);
+            for (int i = 0; i < batch && next < limit; i++) {
+                chunks.add(new Chunk(next, Math.min(limit, next + SearchExecutor.CHUNK_SIZE), true));
+                next += SearchExecutor.CHUNK_SIZE;
+            }
+            RecursiveTask.invokeAll(chunks);
+            for (Chunk chunk : chunks)
+                pending.addAll(chunk.join());
+        }
+        ArrayList<Photo> page = new ArrayList<Photo>(Math.min(size, pending.size()));
+        while (page.size() < size && !pending.isEmpty())
+            page.add(pending.poll());
+        more = !pending.isEmpty() || next < limit;
+        return page;
+    }
+
+    /**
+     * The evaluation of one chunk of photo ids.
+     */
+    private class Chunk extends RecursiveTask<List<Photo>> {
+        private static final long serialVersionUID = 1L;
+        /**
+         * The first id of the chunk.
+         */
+        private final int from;
+        /**
+         * The end of the chunk, exclusive.
+         */
+        private final int to;
+        /**
+         * Whether the chunk is skipped once the cursor is closed.
+         */
+        private final boolean skipWhenClosed;
+
+        /**
+         * Constructs a chunk.
+         *
+         * @param from           the first id of the chunk
+         * @param to             the end of the chunk, exclusive
+         * @param skipWhenClosed whether the chunk is skipped once the cursor is
+         *                       closed
+         */
+        Chunk(int from, int to, boolean skipWhenClosed) {
+            this.from = from;
+            this.to = to;
+            this.skipWhenClosed = skipWhenClosed;
+        }
+
+        /**
+         * Evaluates the query over the chunk, unless the cursor was closed and
+         * the chunk belongs to a page.
+         */
+        @Override
+        protected List<Photo> compute() {
+            return skipWhenClosed && closed ? new ArrayList<Photo>() : bound.run(from, to);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package photopack;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * The SearchExecutor class runs PhotoQuery searches on a fork/join pool so that
+ * the JavaFX Application Thread never waits for a search over a large library.
+ * A query is bound to the User's indexes on the JavaFX Application Thread and
+ * returned as a SearchCursor, which splits the range of photo ids into fixed
+ * chunks and evaluates them in parallel batches as pages are fetched. The
+ * results of a batch are gathered in chunk order, so the photos always come
+ * back in id order no matter which thread finished first.
+ * Only one search is open at a time: opening a new one closes the previous
+ * cursor, whose remaining chunks are skipped and whose pages are never posted.
+ */
+public class SearchExecutor {
+    /**
+     * The number of photo ids evaluated by one chunk. It is a multiple of 64 so
+     * that chunks split the bitsets on word boundaries, and small enough that a
+     * page of a broad search is found after scanning a few chunks.
+     */
+    static final int CHUNK_SIZE = 1 << 13;
+    /**
+     * The shared instance used by the whole application.
+     */
+    private static final SearchExecutor instance = new SearchExecutor(Runtime.getRuntime().availableProcessors());
+    /**
+     * The pool of worker threads evaluating chunks.
+     */
+    private final ForkJoinPool pool;
+    /**
+     * The cursor of the search opened last, only accessed on the JavaFX
+     * Application Thread.
+     */
+    private SearchCursor current;
+
+    /**
+     * Constructs a SearchExecutor backed by a fork/join pool with the given
+     * parallelism.
+     *
+     * @param threads the number of worker threads
+     */
+    public SearchExecutor(int threads) {
+        this.pool = new ForkJoinPool(threads, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("search-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * Returns the search executor shared by the whole application.
+     *
+     * @return the shared SearchExecutor
+     */
+    public static SearchExecutor getInstance() {
+        return instance;
+    }
+
+    /**
+     * Opens a search of the User's photos, closing the search opened before it.
+     * Nothing is evaluated until the first page is fetched from the returned
+     * cursor.
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @param query the query
+     * @param user  the User whose photos are searched
+     * @return the cursor over the matching photos
+     */
+    public SearchCursor open(PhotoQuery query, User user) {
+        cancel();
+        current = new SearchCursor(query.bind(user), pool);
+        return current;
+    }
+
+    /**
+     * Closes the open search, if any.
+     * Must be called on the JavaFX Application Thread.
+     */
+    public void cancel() {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+
+    /**
+     * Cancels the running search and stops the worker threads.
+     * Must be called on the JavaFX Application Thread.
+     */
+    public void shutdown() {
+        cancel();
+        pool.shutdownNow();
+    }
+}
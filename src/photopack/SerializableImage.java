@@ -3,8 +3,23 @@ package photopack;
 import javafx.embed.swing.SwingFXUtils;
 import javafx.scene.image.Image;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
 import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
@@ -15,15 +30,23 @@ import javax.imageio.ImageIO;
  * won't be serialized automatically.
  * Therefore, the class includes custom writeObject and readObject methods to
  * serialize and deserialize the image.
+ * The image is written as a PackedImage container, whose pixels are read back
+ * straight into a WritableImage. Files written before hold a PNG instead, which
+ * is still read, and which convert rewrites as a PackedImage container.
  */
 public class SerializableImage implements Serializable {
+    /**
+     * The "serialVersionUID" of the class the existing .ser files were written
+     * with. It is pinned so that adding methods to this class does not make
+     * those files unreadable.
+     */
+    static final long serialVersionUID = -6257018519752282533L;
     /**
      * A serializable image class representing a JavaFX image that can be serialized
      * and deserialized.
      * The image field is marked as transient to avoid it being serialized directly,
      * and instead is
-     * converted to a BufferedImage using SwingFXUtils and written to the
-     * ObjectOutputStream as a PNG.
+     * written to the ObjectOutputStream as a PackedImage container.
      * The image can be retrieved using the getImage() method.
      */
     private transient Image image;
@@ -41,8 +64,8 @@ public class SerializableImage implements Serializable {
      * Custom serialization method to write the object to a stream.
      * The method first calls the defaultWriteObject method from the
      * ObjectOutputStream class.
-     * Then it writes the image data to the output stream in PNG format using the
-     * ImageIO class.
+     * Then it writes the pixels of the image to the output stream as a
+     * PackedImage container.
      * 
      * @param out the output stream to write the object to
      * @throws IOException if an I/O error occurs while writing to the stream
@@ -50,12 +73,14 @@ public class SerializableImage implements Serializable {
     private void writeObject(java.io.ObjectOutputStream out)
             throws IOException {
         out.defaultWriteObject();
-        ImageIO.write(SwingFXUtils.fromFXImage(image, null), "png", out);
+        out.write(PackedImage.encode(image));
     }
 
     /**
      * Deserializes the wrapped image from an input stream using the default object
      * serialization protocol.
+     * A PackedImage container is unpacked straight into a WritableImage; a PNG
+     * written by an older version is decoded through ImageIO.
      * 
      * @param in the input stream from which the image will be deserialized.
      * @throws IOException            if there is an error while reading from the
@@ -66,7 +91,11 @@ public class SerializableImage implements Serializable {
     private void readObject(java.io.ObjectInputStream in)
             throws IOException, ClassNotFoundException {
         in.defaultReadObject();
-        image = SwingFXUtils.toFXImage(ImageIO.read(in), null);
+        byte[] encoded = in.readAllBytes();
+        if (PackedImage.isPacked(encoded))
+            image = PackedImage.decode(encoded);
+        else
+            image = SwingFXUtils.toFXImage(ImageIO.read(new ByteArrayInputStream(encoded)), null);
     }
 
     /**
@@ -78,4 +107,212 @@ public class SerializableImage implements Serializable {
     public Image getImage() {
         return image;
     }
+
+    /**
+     * Reads the full-size image of a photo from the given path.
+     * 
+     * @param path the path of the serialized image or the URL of the image
+     * @return the decoded image, or null if it could not be read
+     */
+    public static Image load(String path) {
+        return load(path, 0, 0);
+    }
+
+    /**
+     * Reads the image of a photo from the given path, at the smallest size that
+     * covers a box once fitted into it keeping its aspect ratio.
+     * A path naming an entry of the BlobStore is decoded straight from the
+     * store. Any other path is first treated as a file containing a serialized
+     * SerializableImage; if that fails it is treated as the URL of a plain image
+     * file.
+     * A PackedImage container only has the smallest of its levels covering the
+     * box unpacked. Other images larger than the box are scaled down to fit it
+     * by the decoder.
+     * 
+     * @param path   the path of the serialized image or the URL of the image
+     * @param width  the width of the box, or 0 for the full-size image
+     * @param height the height of the box, or 0 for the full-size image
+     * @return the decoded image, or null if it could not be read either way
+     */
+    public static Image load(String path, int width, int height) {
+        if (BlobStore.isBlob(path)) {
+            try {
+                ByteBuffer buffer = BlobStore.getInstance().get(BlobStore.id(path));
+                if (buffer == null)
+                    return null;
+                if (PackedImage.isPacked(buffer))
+                    return PackedImage.decode(buffer, width, height);
+                boolean scale = false;
+                if (width > 0 && height > 0) {
+                    try (InputStream in = BlobStore.getInstance().open(path)) {
+                        scale = exceeds(ImageMetadata.read(in), width, height);
+                    }
+                }
+                try (InputStream in = BlobStore.getInstance().open(path)) {
+                    Image image = scale ? new Image(in, width, height, true, true) : new Image(in);
+                    return image.isError() ? null : image;
+                }
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        try {
+            byte[] encoded = readEncoded(new File(path));
+            if (PackedImage.isPacked(encoded))
+                return PackedImage.decode(ByteBuffer.wrap(encoded), width, height);
+            boolean scale = width > 0 && height > 0
+                    && exceeds(ImageMetadata.read(new ByteArrayInputStream(encoded)), width, height);
+            Image image = scale ? new Image(new ByteArrayInputStream(encoded), width, height, true, true)
+                    : new Image(new ByteArrayInputStream(encoded));
+            return image.isError() ? null : image;
+        } catch (Exception e) {
+            try {
+                return new Image(path, width, height, true, true);
+            } catch (Exception p) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Checks whether an image is larger than a box in either direction, so that
+     * decoding it to fit the box scales it down rather than up.
+     * 
+     * @param metadata the metadata of the image, or null if it is not known
+     * @param width    the width of the box
+     * @param height   the height of the box
+     * @return true if the image is larger than the box, false if it is not or
+     *         its size is not known
+     */
+    private static boolean exceeds(ImageMetadata metadata, int width, int height) {
+        return metadata != null && (metadata.getWidth() > width || metadata.getHeight() > height);
+    }
+
+    /**
+     * Reads the encoded image wrapped by a serialized SerializableImage without
+     * decoding it. The stream holds the class descriptor of SerializableImage,
+     * which has no serializable fields, followed by the PackedImage container
+     * or, for older files, the PNG bytes written by writeObject as block data.
+     * 
+     * @param file the serialized image file
+     * @return the PackedImage container or PNG bytes
+     * @throws IOException if the file cannot be read or does not hold a
+     *                     SerializableImage
+     */
+    public static byte[] readEncoded(File file) throws IOException {
+        return readEncoded(file, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads at most the given number of bytes of the encoded image wrapped by a
+     * serialized SerializableImage, so that its header can be checked without
+     * reading the rest of the file.
+     * 
+     * @param file  the serialized image file
+     * @param limit the maximum number of bytes to read
+     * @return the first bytes of the PackedImage container or PNG bytes
+     * @throws IOException if the file cannot be read or does not hold a
+     *                     SerializableImage
+     */
+    private static byte[] readEncoded(File file, int limit) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readShort() != ObjectStreamConstants.STREAM_MAGIC
+                    || in.readShort() != ObjectStreamConstants.STREAM_VERSION
+                    || in.readByte() != ObjectStreamConstants.TC_OBJECT
+                    || in.readByte() != ObjectStreamConstants.TC_CLASSDESC
+                    || !in.readUTF().equals(SerializableImage.class.getName()))
+                throw new StreamCorruptedException("Not a serialized image: " + file);
+            in.readLong();
+            in.readByte();
+            if (in.readShort() != 0 || in.readByte() != ObjectStreamConstants.TC_ENDBLOCKDATA
+                    || in.readByte() != ObjectStreamConstants.TC_NULL)
+                throw new StreamCorruptedException("Unexpected serialized image layout: " + file);
+            ByteArrayOutputStream png = new ByteArrayOutputStream((int) Math.min(file.length(), limit));
+            byte[] chunk = new byte[1024];
+            while (png.size() < limit) {
+                byte tag = in.readByte();
+                int length;
+                if (tag == ObjectStreamConstants.TC_BLOCKDATA)
+                    length = in.readUnsignedByte();
+                else if (tag == ObjectStreamConstants.TC_BLOCKDATALONG)
+                    length = in.readInt();
+                else if (tag == ObjectStreamConstants.TC_ENDBLOCKDATA)
+                    return png.toByteArray();
+                else
+                    throw new StreamCorruptedException("Unexpected serialized image layout: " + file);
+                length = Math.min(length, limit - png.size());
+                while (length > 0) {
+                    int n = Math.min(length, chunk.length);
+                    in.readFully(chunk, 0, n);
+                    png.write(chunk, 0, n);
+                    length -= n;
+                }
+            }
+            return png.toByteArray();
+        }
+    }
+
+    /**
+     * Rewrites a serialized image holding a PNG, or a PackedImage container of
+     * an older version, so that it holds a current PackedImage container
+     * instead. Only the header of the container is read to tell whether the
+     * file is current, so that checking a converted file is cheap. The file
+     * keeps its modification time, so that its thumbnail is not regenerated,
+     * and is replaced in one move, so that it is never seen half written.
+     * 
+     * @param file the serialized image file
+     * @return true if the file was converted, false if it already held a
+     *         current PackedImage container
+     * @throws IOException if the file cannot be read, decoded or replaced
+     */
+    public static boolean convert(File file) throws IOException {
+        if (PackedImage.isCurrent(readEncoded(file, PackedImage.HEADER_LENGTH + 4)))
+            return false;
+        byte[] encoded = readEncoded(file);
+        Image image = PackedImage.isPacked(encoded) ? PackedImage.decode(encoded)
+                : new Image(new ByteArrayInputStream(encoded));
+        if (image.isError())
+            throw new IOException("Cannot decode " + file, image.getException());
+        File tmp = File.createTempFile("ser", ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(tmp))) {
+                out.writeObject(new SerializableImage(image));
+            }
+            tmp.setLastModified(file.lastModified());
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+            PixelBufferPool.getInstance().release(image);
+        }
+        return true;
+    }
+
+    /**
+     * Converts every serialized image of a directory that still holds a PNG or
+     * an older PackedImage container.
+     * A file that cannot be converted is left as it is. Stops early if the
+     * calling thread is interrupted.
+     * 
+     * @param dir the directory holding .ser files
+     * @return the number of files converted
+     */
+    public static int convertDirectory(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".ser"));
+        if (files == null)
+            return 0;
+        Arrays.sort(files);
+        int count = 0;
+        for (File file : files) {
+            if (Thread.currentThread().isInterrupted())
+                break;
+            try {
+                if (convert(file))
+                    count++;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return count;
+    }
 }
@@ -0,0 +1,328 @@
+package photopack;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The TagIndex class is an inverted index of the tags of one User's photos.
+ * Every (tag type, tag value) pair maps to the set of ids of the photos
+ * carrying it, kept as a BitSet indexed by photo id, so that combining tags
+ * with AND or OR is an intersection or a union of bitsets rather than a scan
+ * over every photo.
+ * The index also counts, for every photo, how many of the User's albums
+ * contain it, and only reports photos that are in at least one album. These
+ * photos make up the User's photo catalog, in which a photo appears once no
+ * matter how many albums contain it. For every tag type, it counts how many of
+ * the catalog's photos have it, which gives the vocabulary of tag types in use.
+ * It is built by the User, together with its DateIndex, the first time either
+ * is asked for, and then kept up to date by the User, Album and Photo methods
+ * that change tags or album contents.
+ */
+public class TagIndex {
+    /**
+     * The ids of the photos carrying each tag value, by tag type and tag value.
+     */
+    private final HashMap<String, HashMap<String, BitSet>> postings = new HashMap<String, HashMap<String, BitSet>>();
+    /**
+     * The ids of the photos contained in at least one album.
+     */
+    private final BitSet present = new BitSet();
+    /**
+     * The number of albums containing each photo, by photo id.
+     */
+    private int[] refs = new int[64];
+    /**
+     * The indexed photos, by photo id.
+     */
+    private Photo[] photos = new Photo[64];
+    /**
+     * The number of photos contained in at least one album.
+     */
+    private int size;
+    /**
+     * The number of photos in at least one album having each tag type, for the
+     * tag types at least one of them has.
+     */
+    private final HashMap<String, Integer> types = new HashMap<String, Integer>();
+    /**
+     * The read-only view of the photos contained in at least one album.
+     */
+    private final Collection<Photo> catalog = new Catalog();
+
+    /**
+     * Records that an album now contains the given photo. The photo's tags are
+     * indexed the first time it is seen.
+     *
+     * @param photo the photo
+     * @return true if no album contained the photo before, false otherwise
+     */
+    boolean retain(Photo photo) {
+        int id = slot(photo.getId());
+        if (photos[id] != photo) {
+            photos[id] = photo;
+            refs[id] = 0;
+            for (Map.Entry<String, List<String>> entry : photo.getTags().entrySet())
+                for (String value : entry.getValue())
+                    add(photo, entry.getKey(), value);
+        }
+        if (refs[id]++ > 0)
+            return false;
+        present.set(id);
+        size++;
+        for (String type : photo.getTags().keySet())
+            countType(type, 1);
+        return true;
+    }
+
+    /**
+     * Records that an album no longer contains the given photo. The photo stops
+     * being reported once no album contains it.
+     *
+     * @param photo the photo
+     * @return true if no album contains the photo any more, false otherwise
+     */
+    boolean release(Photo photo) {
+        int id = slot(photo.getId());
+        if (photos[id] != photo || refs[id] == 0)
+            return false;
+        if (--refs[id] > 0)
+            return false;
+        present.clear(id);
+        size--;
+        for (String type : photo.getTags().keySet())
+            countType(type, -1);
+        return true;
+    }
+
+    /**
+     * Records that a photo now has the given tag type.
+     *
+     * @param photo   the photo
+     * @param tagType the tag type
+     */
+    void addType(Photo photo, String tagType) {
+        if (contains(photo))
+            countType(tagType, 1);
+    }
+
+    /**
+     * Records that a photo no longer has the given tag type.
+     *
+     * @param photo   the photo
+     * @param tagType the tag type
+     */
+    void removeType(Photo photo, String tagType) {
+        if (contains(photo))
+            countType(tagType, -1);
+    }
+
+    /**
+     * Adds a tag of a photo to the index.
+     *
+     * @param photo    the photo
+     * @param tagType  the tag type
+     * @param tagValue the tag value
+     */
+    void add(Photo photo, String tagType, String tagValue) {
+        postings.computeIfAbsent(tagType, t -> new HashMap<String, BitSet>())
+                .computeIfAbsent(tagValue, v -> new BitSet()).set(slot(photo.getId()));
+    }
+
+    /**
+     * Removes a tag of a photo from the index.
+     *
+     * @param photo    the photo
+     * @param tagType  the tag type
+     * @param tagValue the tag value
+     */
+    void remove(Photo photo, String tagType, String tagValue) {
+        HashMap<String, BitSet> values = postings.get(tagType);
+        if (values == null)
+            return;
+        BitSet ids = values.get(tagValue);
+        if (ids == null)
+            return;
+        ids.clear(slot(photo.getId()));
+        if (ids.isEmpty()) {
+            values.remove(tagValue);
+            if (values.isEmpty())
+                postings.remove(tagType);
+        }
+    }
+
+    /**
+     * Returns the ids of the photos carrying the given tag that are in at least
+     * one album. The returned set is a copy and may be modified.
+     *
+     * @param tagType  the tag type
+     * @param tagValue the tag value
+     * @return the ids of the matching photos
+     */
+    public BitSet find(String tagType, String tagValue) {
+        HashMap<String, BitSet> values = postings.get(tagType);
+        BitSet ids = values == null ? null : values.get(tagValue);
+        if (ids == null)
+            return new BitSet();
+        BitSet result = (BitSet) ids.clone();
+        result.and(present);
+        return result;
+    }
+
+    /**
+     * Returns the number of photos carrying the given tag, including photos no
+     * longer in any album. Used to estimate the selectivity of a tag.
+     *
+     * @param tagType  the tag type
+     * @param tagValue the tag value
+     * @return the number of photos carrying the tag
+     */
+    public int count(String tagType, String tagValue) {
+        HashMap<String, BitSet> values = postings.get(tagType);
+        BitSet ids = values == null ? null : values.get(tagValue);
+        return ids == null ? 0 : ids.cardinality();
+    }
+
+    /**
+     * Returns the number of photos contained in at least one album.
+     *
+     * @return the number of photos
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks whether at least one album contains the given photo.
+     *
+     * @param photo the photo
+     * @return true if the photo is in an album, false otherwise
+     */
+    public boolean contains(Photo photo) {
+        long id = photo.getId();
+        return id < photos.length && photos[(int) id] == photo && present.get((int) id);
+    }
+
+    /**
+     * Returns the ids of every photo that is in at least one album. The returned
+     * set is a copy and may be modified.
+     *
+     * @return the ids of the photos
+     */
+    public BitSet all() {
+        return (BitSet) present.clone();
+    }
+
+    /**
+     * Returns the photos contained in at least one album, each of them once, in
+     * id order. The returned collection is a read-only view that follows later
+     * changes.
+     *
+     * @return the photo catalog
+     */
+    public Collection<Photo> photos() {
+        return catalog;
+    }
+
+    /**
+     * Returns the tag types of the photos contained in at least one album. The
+     * returned set is a read-only view that follows later changes.
+     *
+     * @return the tag types
+     */
+    public Set<String> tagTypes() {
+        return Collections.unmodifiableSet(types.keySet());
+    }
+
+    /**
+     * Returns the photo with the given id.
+     *
+     * @param id the id of the photo
+     * @return the photo, or null if it is not indexed
+     */
+    public Photo getPhoto(int id) {
+        return id < photos.length ? photos[id] : null;
+    }
+
+    /**
+     * Returns a copy of the table of indexed photos by id, up to the highest id
+     * of a photo in an album.
+     *
+     * @return the photos by id
+     */
+    Photo[] snapshot() {
+        return Arrays.copyOf(photos, Math.min(photos.length, present.length()));
+    }
+
+    /**
+     * Changes the number of photos having a tag type, forgetting the tag type
+     * once no photo has it.
+     *
+     * @param tagType the tag type
+     * @param delta   the change in the number of photos
+     */
+    private void countType(String tagType, int delta) {
+        types.merge(tagType, delta, (count, d) -> count + d == 0 ? null : count + d);
+    }
+
+    /**
+     * Returns the slot of a photo id in the arrays of the index, growing them if
+     * needed.
+     *
+     * @param id the id of the photo
+     * @return the id as an array index
+     */
+    private int slot(long id) {
+        int slot = Math.toIntExact(id);
+        if (slot >= photos.length) {
+            int length = Math.max(slot + 1, photos.length * 2);
+            photos = Arrays.copyOf(photos, length);
+            refs = Arrays.copyOf(refs, length);
+        }
+        return slot;
+    }
+
+    /**
+     * The read-only view of the photos contained in at least one album.
+     */
+    private class Catalog extends AbstractCollection<Photo> {
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Photo && TagIndex.this.contains((Photo) o);
+        }
+
+        @Override
+        public Iterator<Photo> iterator() {
+            return new Iterator<Photo>() {
+                private int next = present.nextSetBit(0);
+
+                @Override
+                public boolean hasNext() {
+                    return next >= 0;
+                }
+
+                @Override
+                public Photo next() {
+                    if (next < 0)
+                        throw new NoSuchElementException();
+                    Photo photo = photos[next];
+                    next = present.nextSetBit(next + 1);
+                    return photo;
+                }
+            };
+        }
+    }
+}
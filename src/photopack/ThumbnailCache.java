@@ -0,0 +1,367 @@
+package photopack;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import javafx.scene.image.Image;
+
+/**
+ * The ThumbnailCache class is a process-wide cache of decoded images keyed by
+ * the path of the Photo they belong to. Thumbnails are kept under the photo
+ * path followed by THUMBNAIL_SUFFIX, and images decoded to fit a box under the
+ * photo path followed by the size of the box.
+ * The cache is bounded by the total number of pixel bytes it holds rather than
+ * by the number of entries, and evicts the least recently used images first
+ * once that bound is exceeded.
+ * The cache holds a lease of the PixelBufferPool on every image it keeps and
+ * releases it when the image leaves the cache. A view showing a cached image
+ * takes a lease of its own through lease or leaseThumbnail, so the buffer of an
+ * evicted image is only reused once no view shows the image any more.
+ * When two threads decode the same image at once, the image cached first is
+ * kept and handed to both, and the other one is released straight away.
+ * It keeps hit, miss and eviction counters so the effectiveness of the cache
+ * can be inspected.
+ */
+public class ThumbnailCache {
+    /**
+     * The default capacity of the shared cache in pixel bytes (256 MB).
+     */
+    public static final long DEFAULT_CAPACITY = 256L * 1024 * 1024;
+    /**
+     * The suffix appended to a photo path to form the key of its thumbnail, so
+     * that a thumbnail and its full-size image can be cached side by side.
+     */
+    public static final String THUMBNAIL_SUFFIX = "#thumb";
+    /**
+     * The shared instance used by every controller of the application.
+     */
+    private static final ThumbnailCache instance = new ThumbnailCache(DEFAULT_CAPACITY);
+    /**
+     * The cached images in access order, the eldest entry being the least
+     * recently used one.
+     */
+    private final LinkedHashMap<String, Image> entries = new LinkedHashMap<String, Image>(16, 0.75f, true);
+    /**
+     * The maximum number of pixel bytes the cache may hold.
+     */
+    private final long capacity;
+    /**
+     * The number of pixel bytes currently held by the cache.
+     */
+    private long size;
+    /**
+     * The number of lookups that found their image in the cache.
+     */
+    private long hits;
+    /**
+     * The number of lookups that had to decode their image.
+     */
+    private long misses;
+    /**
+     * The number of images evicted to stay within the capacity.
+     */
+    private long evictions;
+
+    /**
+     * Constructs an empty ThumbnailCache bounded by the given number of pixel
+     * bytes.
+     *
+     * @param capacity the maximum number of pixel bytes the cache may hold
+     */
+    public ThumbnailCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the cache shared by the whole application.
+     *
+     * @return the shared ThumbnailCache
+     */
+    public static ThumbnailCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the image for the given photo path, decoding it and storing it in
+     * the cache if it is not already present.
+     *
+     * @param path the path of the photo to load
+     * @return the decoded image, or null if the photo could not be decoded
+     */
+    public Image load(String path) {
+        return load(path, 0, 0);
+    }
+
+    /**
+     * Returns the image for the given photo path at the smallest size covering
+     * a box, decoding it and storing it in the cache if it is not already
+     * present.
+     *
+     * @param path   the path of the photo to load
+     * @param width  the width of the box, or 0 for the full-size image
+     * @param height the height of the box, or 0 for the full-size image
+     * @return the decoded image, or null if the photo could not be decoded
+     */
+    public Image load(String path, int width, int height) {
+        return load(key(path, width, height), () -> SerializableImage.load(path, width, height), false);
+    }
+
+    /**
+     * Returns the image for the given photo path at the smallest size covering
+     * a box, as load does, with a lease taken on it for a view that is going to
+     * show it. The view releases the image to the PixelBufferPool once it stops
+     * showing it.
+     *
+     * @param path   the path of the photo to load
+     * @param width  the width of the box, or 0 for the full-size image
+     * @param height the height of the box, or 0 for the full-size image
+     * @return the leased image, or null if the photo could not be decoded
+     */
+    public Image lease(String path, int width, int height) {
+        return load(key(path, width, height), () -> SerializableImage.load(path, width, height), true);
+    }
+
+    /**
+     * Returns the key of the image of a photo decoded to cover a box.
+     *
+     * @param path   the path of the photo
+     * @param width  the width of the box, or 0 for the full-size image
+     * @param height the height of the box, or 0 for the full-size image
+     * @return the key of the image
+     */
+    public static String key(String path, int width, int height) {
+        return width <= 0 && height <= 0 ? path : path + "@" + width + "x" + height;
+    }
+
+    /**
+     * Returns the thumbnail for the given photo path, reading it through the
+     * ThumbnailStore and storing it in the cache if it is not already present.
+     *
+     * @param path the path of the photo to load
+     * @return the thumbnail image, or null if the photo could not be decoded
+     */
+    public Image loadThumbnail(String path) {
+        return load(path + THUMBNAIL_SUFFIX, () -> ThumbnailStore.getInstance().load(path), false);
+    }
+
+    /**
+     * Returns the thumbnail for the given photo path, as loadThumbnail does,
+     * with a lease taken on it for a view that is going to show it.
+     *
+     * @param path the path of the photo to load
+     * @return the leased thumbnail, or null if the photo could not be decoded
+     */
+    public Image leaseThumbnail(String path) {
+        return load(path + THUMBNAIL_SUFFIX, () -> ThumbnailStore.getInstance().load(path), true);
+    }
+
+    /**
+     * Returns the image stored under a key, decoding it and storing it in the
+     * cache if it is not already present.
+     *
+     * @param key     the key of the image
+     * @param decoder the work decoding the image
+     * @param lease   true to take a lease on the image for the caller
+     * @return the image, or null if it could not be decoded
+     */
+    private Image load(String key, Supplier<Image> decoder, boolean lease) {
+        Image image = lease ? lease(key) : get(key);
+        if (image != null)
+            return image;
+        image = decoder.get();
+        if (image == null)
+            return null;
+        return put(key, image, lease);
+    }
+
+    /**
+     * Looks up the image stored under the given key and marks it as the most
+     * recently used entry.
+     *
+     * @param key the key of the image, usually the photo path
+     * @return the cached image, or null if it is not in the cache
+     */
+    public synchronized Image get(String key) {
+        Image image = entries.get(key);
+        if (image == null)
+            misses++;
+        else
+            hits++;
+        return image;
+    }
+
+    /**
+     * Looks up the image stored under the given key, as get does, and takes a
+     * lease on it for a view that is going to show it.
+     *
+     * @param key the key of the image, usually the photo path
+     * @return the leased image, or null if it is not in the cache
+     */
+    public synchronized Image lease(String key) {
+        Image image = get(key);
+        if (image != null)
+            PixelBufferPool.getInstance().retain(image);
+        return image;
+    }
+
+    /**
+     * Returns whether an image is stored under the given key, without marking
+     * it as used or counting a hit or miss.
+     *
+     * @param key the key of the image, usually the photo path
+     * @return true if the image is in the cache
+     */
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Stores an image under the given key, taking over the caller's lease on
+     * it, and evicts the least recently used images until the cache is within
+     * its capacity again, releasing the cache's lease on them.
+     * If an image is already stored under the key, it is kept and returned, and
+     * the given image is released instead, since views may already show the
+     * one in the cache. An image larger than the whole capacity is not cached
+     * and stays with the caller.
+     *
+     * @param key   the key of the image, usually the photo path
+     * @param image the decoded image
+     * @return the image stored under the key, or the given image if it is too
+     *         large to be cached
+     */
+    public Image put(String key, Image image) {
+        return put(key, image, false);
+    }
+
+    /**
+     * Stores an image under the given key as put does, taking a lease on the
+     * image stored for the caller if asked to.
+     *
+     * @param key   the key of the image
+     * @param image the decoded image
+     * @param lease true to take a lease on the image returned for the caller
+     * @return the image stored under the key, or the given image if it is too
+     *         large to be cached
+     */
+    private synchronized Image put(String key, Image image, boolean lease) {
+        long weight = weigh(image);
+        if (weight > capacity)
+            return image;
+        Image old = entries.get(key);
+        if (old != null) {
+            if (old != image)
+                PixelBufferPool.getInstance().release(image);
+            if (lease)
+                PixelBufferPool.getInstance().retain(old);
+            return old;
+        }
+        entries.put(key, image);
+        if (lease)
+            PixelBufferPool.getInstance().retain(image);
+        size += weight;
+        Iterator<Map.Entry<String, Image>> it = entries.entrySet().iterator();
+        while (size > capacity && it.hasNext()) {
+            Map.Entry<String, Image> eldest = it.next();
+            if (eldest.getKey().equals(key))
+                continue;
+            size -= weigh(eldest.getValue());
+            PixelBufferPool.getInstance().release(eldest.getValue());
+            it.remove();
+            evictions++;
+        }
+        return image;
+    }
+
+    /**
+     * Removes the image stored under the given key, if any, and releases the
+     * cache's lease on it to the PixelBufferPool.
+     *
+     * @param key the key of the image to remove
+     */
+    public synchronized void remove(String key) {
+        Image old = entries.remove(key);
+        if (old != null) {
+            size -= weigh(old);
+            PixelBufferPool.getInstance().release(old);
+        }
+    }
+
+    /**
+     * Removes every image from the cache and releases the cache's lease on them
+     * to the PixelBufferPool. The counters are left untouched.
+     */
+    public synchronized void clear() {
+        for (Image image : entries.values())
+            PixelBufferPool.getInstance().release(image);
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the number of lookups that were served from the cache.
+     *
+     * @return the hit count
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that were not served from the cache.
+     *
+     * @return the miss count
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of images evicted to stay within the capacity.
+     *
+     * @return the eviction count
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of pixel bytes currently held by the cache.
+     *
+     * @return the current size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the maximum number of pixel bytes the cache may hold.
+     *
+     * @return the capacity in bytes
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns a String representation of the cache counters.
+     *
+     * @return the size, capacity, hits, misses and evictions of the cache
+     */
+    public synchronized String toString() {
+        return "ThumbnailCache[" + entries.size() + " images, " + size + "/" + capacity + " bytes, hits=" + hits
+                + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+
+    /**
+     * Returns the number of pixel bytes an image occupies once decoded, assuming
+     * four bytes per pixel.
+     *
+     * @param image the image to weigh
+     * @return the size of the image's pixels in bytes
+     */
+    static long weigh(Image image) {
+        return (long) image.getWidth() * (long) image.getHeight() * 4L;
+    }
+}
@@ -0,0 +1,492 @@
+package photopack;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import javafx.geometry.Orientation;
+import javafx.geometry.Pos;
+import javafx.scene.control.Label;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.input.KeyEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Region;
+import javafx.scene.shape.Rectangle;
+
+/**
+ * The ThumbnailGrid class shows the photos of a list as a grid of fixed-size
+ * tiles, each holding a photo's thumbnail above its caption, as many tiles to a
+ * row as the width allows.
+ * The grid is virtualized: only the tiles of the rows in view exist, and a tile
+ * scrolled out of view is recycled for the photo scrolling in, so its cost
+ * depends on the size of the viewport rather than on the number of photos.
+ * Thumbnails are loaded in the background through the ImageDecodeService; the
+ * load of a tile is cancelled when the tile is recycled, so that flinging
+ * through a large album does not leave a queue of decodes for photos no longer
+ * in view. A ThumbnailPrefetcher follows the rows in view and loads the
+ * thumbnails of the photos about to scroll in at a lower priority.
+ * One photo at a time can be selected, with the mouse or the arrow keys.
+ */
+public class ThumbnailGrid extends Region {
+    /**
+     * The width of a tile.
+     */
+    public static final double TILE_WIDTH = ThumbnailStore.THUMB_WIDTH + 16;
+    /**
+     * The height of a tile, including its caption.
+     */
+    public static final double TILE_HEIGHT = ThumbnailStore.THUMB_HEIGHT + 36;
+    /**
+     * The style of the tile of the selected photo.
+     */
+    private static final String SELECTED_STYLE = "-fx-background-color: #cce4f7;";
+    /**
+     * The photos shown by the grid.
+     */
+    private ObservableList<Photo> items = FXCollections.observableArrayList();
+    /**
+     * Lays the grid out again whenever the photos change.
+     */
+    private final ListChangeListener<Photo> itemsListener = change -> itemsChanged();
+    /**
+     * The vertical scroll bar, whose value is the offset in pixels of the top of
+     * the viewport.
+     */
+    private final ScrollBar scrollBar = new ScrollBar();
+    /**
+     * The tiles in view, keyed by the position of their photo.
+     */
+    private final HashMap<Integer, Tile> bound = new HashMap<Integer, Tile>();
+    /**
+     * The tiles out of view, hidden and waiting to be reused.
+     */
+    private final ArrayDeque<Tile> free = new ArrayDeque<Tile>();
+    /**
+     * The position of the selected photo, or -1 if none is selected.
+     */
+    private int selectedIndex = -1;
+    /**
+     * The selected photo, used to follow it when photos before it are added or
+     * removed.
+     */
+    private Photo selectedItem;
+    /**
+     * The number of tiles in a row at the last layout.
+     */
+    private int columns = 1;
+    /**
+     * The position of the first photo in view at the last layout.
+     */
+    private int firstVisible;
+    /**
+     * The position of the last photo in view at the last layout, or
+     * firstVisible - 1 if none is.
+     */
+    private int lastVisible = -1;
+    /**
+     * The prefetcher loading the thumbnails of the photos about to come into
+     * view.
+     */
+    private final ThumbnailPrefetcher prefetcher = new ThumbnailPrefetcher();
+    /**
+     * Set when the photos changed since the prefetcher was last told about the
+     * photos in view.
+     */
+    private boolean itemsDirty;
+
+    /**
+     * Constructs an empty ThumbnailGrid.
+     */
+    public ThumbnailGrid() {
+        scrollBar.setOrientation(Orientation.VERTICAL);
+        scrollBar.setUnitIncrement(TILE_HEIGHT / 4);
+        scrollBar.valueProperty().addListener((observable, oldValue, newValue) -> requestLayout());
+        getChildren().add(scrollBar);
+        Rectangle clip = new Rectangle();
+        clip.widthProperty().bind(widthProperty());
+        clip.heightProperty().bind(heightProperty());
+        setClip(clip);
+        setFocusTraversable(true);
+        items.addListener(itemsListener);
+        addEventHandler(ScrollEvent.SCROLL, this::scrolled);
+        addEventHandler(KeyEvent.KEY_PRESSED, this::keyPressed);
+    }
+
+    /**
+     * Returns the photos shown by the grid.
+     *
+     * @return the observable list of photos
+     */
+    public ObservableList<Photo> getItems() {
+        return items;
+    }
+
+    /**
+     * Replaces the photos shown by the grid and scrolls back to the top.
+     *
+     * @param items the observable list of photos to show
+     */
+    public void setItems(ObservableList<Photo> items) {
+        this.items.removeListener(itemsListener);
+        this.items = items;
+        items.addListener(itemsListener);
+        selectedIndex = -1;
+        selectedItem = null;
+        prefetcher.clear();
+        itemsDirty = true;
+        scrollBar.setValue(0);
+        requestLayout();
+    }
+
+    /**
+     * Returns the position of the selected photo.
+     *
+     * @return the position of the selected photo, or -1 if none is selected
+     */
+    public int getSelectedIndex() {
+        return selectedIndex;
+    }
+
+    /**
+     * Returns the selected photo.
+     *
+     * @return the selected photo, or null if none is selected
+     */
+    public Photo getSelectedItem() {
+        return selectedItem;
+    }
+
+    /**
+     * Selects the photo at the given position and scrolls it into view. A
+     * position out of range clears the selection.
+     *
+     * @param index the position of the photo to select
+     */
+    public void select(int index) {
+        if (index < 0 || index >= items.size()) {
+            selectedIndex = -1;
+            selectedItem = null;
+        } else {
+            selectedIndex = index;
+            selectedItem = items.get(index);
+            scrollTo(index);
+        }
+        for (Map.Entry<Integer, Tile> entry : bound.entrySet())
+            entry.getValue().setSelected(entry.getKey() == selectedIndex);
+    }
+
+    /**
+     * Selects the photo after the selected one, if there is one.
+     */
+    public void selectNext() {
+        if (selectedIndex + 1 < items.size())
+            select(selectedIndex + 1);
+    }
+
+    /**
+     * Scrolls the least distance that brings the row of a photo fully into
+     * view.
+     *
+     * @param index the position of the photo
+     */
+    public void scrollTo(int index) {
+        if (index < 0 || index >= items.size())
+            return;
+        double top = (index / columns) * TILE_HEIGHT;
+        double offset = scrollBar.getValue();
+        if (top < offset)
+            scrollBar.setValue(top);
+        else if (top + TILE_HEIGHT > offset + getHeight())
+            scrollBar.setValue(Math.min(scrollBar.getMax(), top + TILE_HEIGHT - getHeight()));
+    }
+
+    /**
+     * Returns the number of tiles in a row.
+     *
+     * @return the number of columns at the last layout
+     */
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Returns the position of the first photo in view.
+     *
+     * @return the position of the first photo in view at the last layout
+     */
+    public int getFirstVisibleIndex() {
+        return firstVisible;
+    }
+
+    /**
+     * Returns the position of the last photo in view.
+     *
+     * @return the position of the last photo in view at the last layout, or
+     *         getFirstVisibleIndex() - 1 if no photo is in view
+     */
+    public int getLastVisibleIndex() {
+        return lastVisible;
+    }
+
+    /**
+     * Positions the scroll bar and the tiles of the rows in view. Tiles leaving
+     * the view are recycled for the photos entering it, and a tile keeps its
+     * thumbnail as long as it shows the same photo. The prefetcher is told
+     * whenever the photos in view change.
+     */
+    @Override
+    protected void layoutChildren() {
+        double width = getWidth();
+        double height = getHeight();
+        double barWidth = scrollBar.prefWidth(-1);
+        scrollBar.resizeRelocate(width - barWidth, 0, barWidth, height);
+        double area = Math.max(0, width - barWidth);
+        columns = Math.max(1, (int) (area / TILE_WIDTH));
+        int size = items.size();
+        int rows = (size + columns - 1) / columns;
+        double max = Math.max(0, rows * TILE_HEIGHT - height);
+        scrollBar.setMax(max);
+        scrollBar.setVisibleAmount(max * height / Math.max(height, rows * TILE_HEIGHT));
+        scrollBar.setBlockIncrement(Math.max(TILE_HEIGHT, height - TILE_HEIGHT));
+        if (scrollBar.getValue() > max)
+            scrollBar.setValue(max);
+        double offset = scrollBar.getValue();
+
+        int firstRow = (int) (offset / TILE_HEIGHT);
+        int lastRow = Math.min(rows - 1, (int) ((offset + height) / TILE_HEIGHT));
+        int first = Math.min(size, firstRow * columns);
+        int last = Math.min(size - 1, (lastRow + 1) * columns - 1);
+        boolean moved = first != firstVisible || last != lastVisible || itemsDirty;
+        firstVisible = first;
+        lastVisible = last;
+
+        Iterator<Map.Entry<Integer, Tile>> it = bound.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Tile> entry = it.next();
+            int index = entry.getKey();
+            if (index < firstVisible || index > lastVisible) {
+                entry.getValue().unbind();
+                free.push(entry.getValue());
+                it.remove();
+            }
+        }
+
+        double left = (area - columns * TILE_WIDTH) / 2;
+        for (int index = firstVisible; index <= lastVisible; index++) {
+            Tile tile = bound.get(index);
+            if (tile == null) {
+                tile = free.isEmpty() ? newTile() : free.pop();
+                bound.put(index, tile);
+            }
+            tile.bind(index, items.get(index));
+            tile.setSelected(index == selectedIndex);
+            tile.resizeRelocate(left + (index % columns) * TILE_WIDTH, (index / columns) * TILE_HEIGHT - offset,
+                    TILE_WIDTH, TILE_HEIGHT);
+        }
+        if (moved) {
+            itemsDirty = false;
+            prefetcher.update(items, firstVisible, lastVisible);
+        }
+    }
+
+    /**
+     * Returns the preferred width of the grid, three tiles and the scroll bar.
+     *
+     * @param height the height the width is computed for
+     * @return the preferred width
+     */
+    @Override
+    protected double computePrefWidth(double height) {
+        return 3 * TILE_WIDTH + scrollBar.prefWidth(-1);
+    }
+
+    /**
+     * Returns the preferred height of the grid, three rows of tiles.
+     *
+     * @param width the width the height is computed for
+     * @return the preferred height
+     */
+    @Override
+    protected double computePrefHeight(double width) {
+        return 3 * TILE_HEIGHT;
+    }
+
+    /**
+     * Creates a tile and adds it to the grid.
+     *
+     * @return the new tile
+     */
+    private Tile newTile() {
+        Tile tile = new Tile();
+        tile.setOnMousePressed(event -> {
+            requestFocus();
+            select(tile.index);
+        });
+        getChildren().add(tile);
+        return tile;
+    }
+
+    /**
+     * Follows the selected photo to its new position, or clears the selection
+     * if it was removed, and lays the grid out again.
+     */
+    private void itemsChanged() {
+        if (selectedItem != null && (selectedIndex >= items.size() || items.get(selectedIndex) != selectedItem)) {
+            selectedIndex = items.indexOf(selectedItem);
+            if (selectedIndex < 0)
+                selectedItem = null;
+        }
+        itemsDirty = true;
+        requestLayout();
+    }
+
+    /**
+     * Scrolls the grid by the vertical distance of a mouse wheel or touchpad
+     * scroll.
+     *
+     * @param event the scroll event
+     */
+    private void scrolled(ScrollEvent event) {
+        double value = scrollBar.getValue() - event.getDeltaY();
+        scrollBar.setValue(Math.max(0, Math.min(scrollBar.getMax(), value)));
+        event.consume();
+    }
+
+    /**
+     * Moves the selection with the arrow, Home and End keys.
+     *
+     * @param event the key event
+     */
+    private void keyPressed(KeyEvent event) {
+        int index = selectedIndex;
+        switch (event.getCode()) {
+            case LEFT:
+                index--;
+                break;
+            case RIGHT:
+                index++;
+                break;
+            case UP:
+                index -= columns;
+                break;
+            case DOWN:
+                index = selectedIndex < 0 ? 0 : index + columns;
+                break;
+            case HOME:
+                index = 0;
+                break;
+            case END:
+                index = items.size() - 1;
+                break;
+            default:
+                return;
+        }
+        if (index >= 0 && index < items.size())
+            select(index);
+        event.consume();
+    }
+
+    /**
+     * A tile of the grid, showing the thumbnail and caption of one photo.
+     */
+    private static class Tile extends Region {
+        /**
+         * The view showing the thumbnail.
+         */
+        private final ImageView imageView = new ImageView();
+        /**
+         * The label showing the caption.
+         */
+        private final Label caption = new Label();
+        /**
+         * The position of the photo shown, or -1 if the tile is unused.
+         */
+        private int index = -1;
+        /**
+         * The photo shown, or null if the tile is unused.
+         */
+        private Photo photo;
+        /**
+         * The load of the thumbnail, or null if it is not loading.
+         */
+        private Future<Image> pending;
+
+        /**
+         * Constructs an unused tile.
+         */
+        Tile() {
+            imageView.setFitWidth(ThumbnailStore.THUMB_WIDTH);
+            imageView.setFitHeight(ThumbnailStore.THUMB_HEIGHT);
+            imageView.setPreserveRatio(true);
+            imageView.imageProperty().addListener((observable, oldImage, newImage) -> requestLayout());
+            caption.setAlignment(Pos.CENTER);
+            getChildren().addAll(imageView, caption);
+        }
+
+        /**
+         * Shows a photo in the tile, loading its thumbnail unless the tile
+         * already shows that photo.
+         *
+         * @param index the position of the photo
+         * @param photo the photo
+         */
+        void bind(int index, Photo photo) {
+            this.index = index;
+            setVisible(true);
+            if (photo == this.photo)
+                return;
+            ImageDecodeService.getInstance().cancel(pending);
+            this.photo = photo;
+            caption.setText(photo.getCaption());
+            pending = ImageDecodeService.getInstance().loadThumbnailInto(imageView, photo.getPath());
+        }
+
+        /**
+         * Hides the tile and cancels the load of its thumbnail. The tile keeps
+         * its photo, and its lease on the thumbnail, so that it is not loaded
+         * again if the tile shows it next.
+         */
+        void unbind() {
+            index = -1;
+            setVisible(false);
+            ImageDecodeService.getInstance().cancel(pending);
+            pending = null;
+            if (imageView.getImage() == ImageDecodeService.getPlaceholder())
+                photo = null;
+        }
+
+        /**
+         * Highlights the tile or removes its highlight.
+         *
+         * @param selected true if the tile shows the selected photo
+         */
+        void setSelected(boolean selected) {
+            setStyle(selected ? SELECTED_STYLE : null);
+        }
+
+        /**
+         * Centers the thumbnail in the tile and places the caption below it.
+         */
+        @Override
+        protected void layoutChildren() {
+            double width = getWidth();
+            Image image = imageView.getImage();
+            double imageWidth = ThumbnailStore.THUMB_WIDTH;
+            double imageHeight = ThumbnailStore.THUMB_HEIGHT;
+            if (image != null && image.getWidth() > 0 && image.getHeight() > 0) {
+                double scale = Math.min(imageWidth / image.getWidth(), imageHeight / image.getHeight());
+                imageWidth = image.getWidth() * scale;
+                imageHeight = image.getHeight() * scale;
+            }
+            imageView.relocate((width - imageWidth) / 2, 8 + (ThumbnailStore.THUMB_HEIGHT - imageHeight) / 2);
+            caption.resizeRelocate(4, ThumbnailStore.THUMB_HEIGHT + 12, width - 8, 20);
+        }
+    }
+}
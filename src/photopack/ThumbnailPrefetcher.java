@@ -0,0 +1,179 @@
+package photopack;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import javafx.scene.image.Image;
+
+/**
+ * The ThumbnailPrefetcher class loads the thumbnails of the photos about to
+ * scroll into view, so that they are in the ThumbnailCache by the time their
+ * tiles appear instead of starting to load only then.
+ * It is told the range of photos in view after every scroll and follows the
+ * direction and speed of scrolling: the prefetch window is the next screenful
+ * of photos in the direction of travel, extended up to MAX_SCREENS screenfuls
+ * when scrolling fast enough to cross them within LOOKAHEAD_SECONDS.
+ * Prefetches run at a lower priority than the loads of photos in view, nearest
+ * photo first, and are cancelled as soon as their photo leaves the window,
+ * either because it came into view or because scrolling went the other way.
+ */
+public class ThumbnailPrefetcher {
+    /**
+     * How far ahead, in seconds of scrolling at the current speed, the window
+     * reaches.
+     */
+    public static final double LOOKAHEAD_SECONDS = 0.5;
+    /**
+     * The largest number of screenfuls the window holds.
+     */
+    public static final int MAX_SCREENS = 3;
+    /**
+     * The weight of the newest measurement in the smoothed scrolling speed.
+     */
+    private static final double SMOOTHING = 0.5;
+    /**
+     * The service running the prefetches.
+     */
+    private final ImageDecodeService service;
+    /**
+     * The prefetches in progress, keyed by the path of their photo.
+     */
+    private final HashMap<String, Future<Image>> pending = new HashMap<String, Future<Image>>();
+    /**
+     * The position of the first photo in view at the last scroll, or -1 before
+     * the first one.
+     */
+    private int lastFirst = -1;
+    /**
+     * The time of the last scroll, in nanoseconds.
+     */
+    private long lastTime;
+    /**
+     * The smoothed scrolling speed in photos per second, positive when
+     * scrolling down.
+     */
+    private double velocity;
+    /**
+     * The direction of travel, 1 when scrolling down and -1 when scrolling up.
+     */
+    private int direction = 1;
+
+    /**
+     * Constructs a ThumbnailPrefetcher running its prefetches on the shared
+     * ImageDecodeService.
+     */
+    public ThumbnailPrefetcher() {
+        this(ImageDecodeService.getInstance());
+    }
+
+    /**
+     * Constructs a ThumbnailPrefetcher running its prefetches on the given
+     * service.
+     *
+     * @param service the service running the prefetches
+     */
+    ThumbnailPrefetcher(ImageDecodeService service) {
+        this.service = service;
+    }
+
+    /**
+     * Moves the prefetch window after the photos in view changed, cancelling
+     * the prefetches that left it and starting those of the photos that entered
+     * it.
+     *
+     * @param items the photos of the view
+     * @param first the position of the first photo in view
+     * @param last  the position of the last photo in view, or first - 1 if none
+     *              is in view
+     */
+    public void update(List<Photo> items, int first, int last) {
+        update(items, first, last, System.nanoTime());
+    }
+
+    /**
+     * Moves the prefetch window as update(items, first, last) does, at the given
+     * time.
+     *
+     * @param items the photos of the view
+     * @param first the position of the first photo in view
+     * @param last  the position of the last photo in view, or first - 1 if none
+     *              is in view
+     * @param now   the current time in nanoseconds
+     */
+    void update(List<Photo> items, int first, int last, long now) {
+        int screen = last - first + 1;
+        if (screen <= 0) {
+            clear();
+            return;
+        }
+        if (first != lastFirst) {
+            if (lastFirst >= 0 && now > lastTime) {
+                double sample = (first - lastFirst) * 1e9 / (now - lastTime);
+                velocity = velocity * (1 - SMOOTHING) + sample * SMOOTHING;
+            }
+            if (lastFirst >= 0)
+                direction = first > lastFirst ? 1 : -1;
+            lastFirst = first;
+            lastTime = now;
+        }
+
+        int screens = (int) Math.ceil(Math.abs(velocity) / screen * LOOKAHEAD_SECONDS);
+        int reach = screen * Math.max(1, Math.min(MAX_SCREENS, screens));
+        int start = direction > 0 ? last + 1 : Math.max(0, first - reach);
+        int end = direction > 0 ? Math.min(items.size() - 1, last + reach) : first - 1;
+
+        HashSet<String> window = new HashSet<String>();
+        for (int index = start; index <= end; index++)
+            window.add(items.get(index).getPath());
+        Iterator<Map.Entry<String, Future<Image>>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Future<Image>> entry = it.next();
+            if (entry.getValue().isDone() || !window.contains(entry.getKey())) {
+                service.cancel(entry.getValue());
+                it.remove();
+            }
+        }
+
+        ThumbnailCache cache = ThumbnailCache.getInstance();
+        for (int i = 0; i <= end - start; i++) {
+            String path = items.get(direction > 0 ? start + i : end - i).getPath();
+            if (!pending.containsKey(path) && !cache.contains(path + ThumbnailCache.THUMBNAIL_SUFFIX))
+                pending.put(path, service.prefetchThumbnail(path));
+        }
+    }
+
+    /**
+     * Cancels every prefetch in progress and forgets the scrolling speed, for
+     * when the view shows other photos or goes away.
+     */
+    public void clear() {
+        for (Future<Image> future : pending.values())
+            service.cancel(future);
+        pending.clear();
+        lastFirst = -1;
+        velocity = 0;
+        direction = 1;
+    }
+
+    /**
+     * Returns the number of prefetches in progress.
+     *
+     * @return the number of photos whose thumbnail is being prefetched
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the smoothed scrolling speed.
+     *
+     * @return the speed in photos per second, positive when scrolling down
+     */
+    public double getVelocity() {
+        return velocity;
+    }
+}
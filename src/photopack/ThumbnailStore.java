@@ -0,0 +1,289 @@
+package photopack;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+/**
+ * The ThumbnailStore class generates and persists small, downscaled copies of
+ * photo images so that list views never have to decode full-size originals.
+ * The thumbnail of a serialized image under data/serialized_images is written
+ * next to it, with the ".ser" extension replaced by ".thumb.jpg". Photos
+ * imported from elsewhere on disk get their thumbnail in the data/thumbnails
+ * directory instead, so the user's own folders are never written to.
+ * A thumbnail older than its original is considered stale and regenerated.
+ */
+public class ThumbnailStore {
+    /**
+     * The maximum width of a thumbnail, matching the list cell image width.
+     */
+    public static final int THUMB_WIDTH = 200;
+    /**
+     * The maximum height of a thumbnail, matching the list cell image height.
+     */
+    public static final int THUMB_HEIGHT = 150;
+    /**
+     * The extension given to thumbnail files.
+     */
+    public static final String THUMB_EXTENSION = ".thumb.jpg";
+    /**
+     * The directory holding thumbnails of photos that do not live in a
+     * serialized image file.
+     */
+    public static final String thumbDir = "data" + File.separator + "thumbnails";
+    /**
+     * The shared instance used by the whole application.
+     */
+    private static final ThumbnailStore instance = new ThumbnailStore();
+    /**
+     * The single low priority background thread generating thumbnails on import
+     * and during sweeps.
+     */
+    private final ExecutorService generator = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "thumbnail-generator");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * Returns the thumbnail store shared by the whole application.
+     *
+     * @return the shared ThumbnailStore
+     */
+    public static ThumbnailStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the thumbnail image of the given photo path, generating and
+     * persisting it first if it is missing or older than the original.
+     * If no thumbnail can be written, the original is decoded at thumbnail size.
+     *
+     * @param path the path of the photo
+     * @return the thumbnail image, or null if the photo could not be decoded
+     */
+    public Image load(String path) {
+        File thumb = thumbnailFile(path);
+        if (!isFresh(path, thumb) && !generate(path))
+            return decodeScaled(path);
+        try {
+            Image image = new Image(thumb.toURI().toString());
+            return image.isError() ? decodeScaled(path) : image;
+        } catch (Exception e) {
+            return decodeScaled(path);
+        }
+    }
+
+    /**
+     * Generates the thumbnail of the given photo path and writes it to disk,
+     * replacing any previous thumbnail.
+     *
+     * @param path the path of the photo
+     * @return true if the thumbnail was written, false otherwise
+     */
+    public boolean generate(String path) {
+        Image scaled = decodeScaled(path);
+        if (scaled == null)
+            return false;
+        File thumb = thumbnailFile(path);
+        File dir = thumb.getAbsoluteFile().getParentFile();
+        try {
+            dir.mkdirs();
+            BufferedImage rgb = new BufferedImage((int) scaled.getWidth(), (int) scaled.getHeight(),
+                    BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = rgb.createGraphics();
+            g.drawImage(SwingFXUtils.fromFXImage(scaled, null), 0, 0, null);
+            g.dispose();
+            PixelBufferPool.getInstance().release(scaled);
+            File tmp = File.createTempFile("thumb", ".tmp", dir);
+            try {
+                ImageIO.write(rgb, "jpg", tmp);
+                Files.move(tmp.toPath(), thumb.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tmp.delete();
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Schedules the generation of the thumbnail of a newly imported photo on the
+     * background thread.
+     *
+     * @param path the path of the imported photo
+     */
+    public void generateAsync(String path) {
+        generator.execute(() -> ensure(path));
+    }
+
+    /**
+     * Generates the thumbnail of the given photo path on the calling thread,
+     * unless it exists and is at least as recent as the original.
+     *
+     * @param path the path of the photo
+     * @return true if the thumbnail is on disk, false if it could not be written
+     */
+    public boolean ensure(String path) {
+        return isFresh(path, thumbnailFile(path)) || generate(path);
+    }
+
+    /**
+     * Schedules a background sweep over the given photos, generating every
+     * thumbnail that is missing or stale. Each path is only visited once.
+     *
+     * @param photos the photos to sweep
+     */
+    public void sweep(Collection<Photo> photos) {
+        LinkedHashSet<String> paths = new LinkedHashSet<String>();
+        for (Photo photo : photos)
+            paths.add(photo.getPath());
+        for (String path : paths)
+            generateAsync(path);
+    }
+
+    /**
+     * Stops the background thread. Pending generations are discarded.
+     */
+    public void shutdown() {
+        generator.shutdownNow();
+    }
+
+    /**
+     * Returns the file the thumbnail of the given photo path is stored in.
+     *
+     * @param path the path of the photo
+     * @return the thumbnail file
+     */
+    public static File thumbnailFile(String path) {
+        File original = originalFile(path);
+        if (original != null && original.getName().endsWith(".ser")) {
+            String name = original.getName();
+            return new File(original.getParentFile(), name.substring(0, name.length() - 4) + THUMB_EXTENSION);
+        }
+        return new File(thumbDir, hash(path) + THUMB_EXTENSION);
+    }
+
+    /**
+     * Checks whether a thumbnail exists and is at least as recent as the
+     * original it was made from.
+     *
+     * @param path  the path of the photo
+     * @param thumb the thumbnail file
+     * @return true if the thumbnail can be used as is, false otherwise
+     */
+    private static boolean isFresh(String path, File thumb) {
+        if (!thumb.isFile())
+            return false;
+        File original = originalFile(path);
+        return original == null || !original.exists() || original.lastModified() <= thumb.lastModified();
+    }
+
+    /**
+     * Returns the file on disk behind a photo path, which is either a plain file
+     * path or a file URL.
+     *
+     * @param path the path of the photo
+     * @return the original file, or null if the path is not a local file
+     */
+    private static File originalFile(String path) {
+        try {
+            if (path.startsWith("file:"))
+                return new File(URI.create(path));
+            return new File(path);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the given photo path and scales it down to fit within the thumbnail
+     * bounds, keeping its aspect ratio. Plain image files and entries of the
+     * BlobStore are scaled by the decoder itself; serialized images and
+     * PackedImage containers are decoded at the smallest level covering the
+     * thumbnail first, then averaged down into a buffer of the PixelBufferPool.
+     *
+     * @param path the path of the photo
+     * @return the scaled image, or null if the photo could not be decoded
+     */
+    private static Image decodeScaled(String path) {
+        if (BlobStore.isBlob(path)) {
+            try (InputStream in = BlobStore.getInstance().open(path)) {
+                Image image = new Image(in, THUMB_WIDTH, THUMB_HEIGHT, true, true);
+                if (!image.isError())
+                    return image;
+            } catch (Exception e) {
+                return null;
+            }
+        } else if (!path.endsWith(".ser")) {
+            try {
+                Image image = new Image(path, THUMB_WIDTH, THUMB_HEIGHT, true, true);
+                if (!image.isError())
+                    return image;
+            } catch (Exception e) {
+            }
+        }
+        Image source = SerializableImage.load(path, THUMB_WIDTH, THUMB_HEIGHT);
+        if (source == null || source.isError())
+            return null;
+        double scale = Math.min(1.0, Math.min(THUMB_WIDTH / source.getWidth(), THUMB_HEIGHT / source.getHeight()));
+        if (scale == 1.0)
+            return source;
+        int sourceWidth = (int) source.getWidth();
+        int sourceHeight = (int) source.getHeight();
+        int width = Math.max(1, (int) Math.round(sourceWidth * scale));
+        int height = Math.max(1, (int) Math.round(sourceHeight * scale));
+        PixelBufferPool pool = PixelBufferPool.getInstance();
+        ByteBuffer pixels = pool.buffer(source);
+        if (pixels == null) {
+            pixels = ByteBuffer.allocate(sourceWidth * sourceHeight * 4);
+            source.getPixelReader().getPixels(0, 0, sourceWidth, sourceHeight,
+                    PixelFormat.getByteBgraPreInstance(), pixels, sourceWidth * 4);
+        }
+        WritableImage scaled = pool.acquire(width, height);
+        PackedImage.scale(pixels, sourceWidth, sourceHeight, pool.buffer(scaled), width, height);
+        pool.release(source);
+        return scaled;
+    }
+
+    /**
+     * Returns a stable file name for a photo path that is not a serialized image.
+     *
+     * @param path the path of the photo
+     * @return the hexadecimal SHA-1 digest of the path
+     */
+    private static String hash(String path) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(path.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest)
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(path.hashCode());
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package photopack;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
 
 /**
  * The User class represents a user in a photo application, with a username and
@@ -24,6 +27,30 @@ public class User implements Serializable {
      * A constant field that stores the serialVersionUID for the class
      */
     static final long serialVersionUID = 1L;
+    /**
+     * The last id handed out to one of the User's albums or photos
+     */
+    private long lastId;
+    /**
+     * The generation of the User's latest snapshot, increased on every
+     * compaction of its journal
+     */
+    private long generation;
+    /**
+     * The journal changes to the User's albums and photos are recorded in, or
+     * null while they are not recorded. Not serialized
+     */
+    private transient PhotoJournal journal;
+    /**
+     * The inverted index of the tags of the User's photos, or null until it is
+     * first asked for. Not serialized
+     */
+    private transient TagIndex tagIndex;
+    /**
+     * The index of the User's photos by date, built together with the tag
+     * index. Not serialized
+     */
+    private transient DateIndex dateIndex;
 
     /**
      * Constructs a User object with a given username and an ArrayList of Album
@@ -75,23 +102,54 @@ public class User implements Serializable {
 
     /**
      * Adds an Album object to the ArrayList of Album objects of the User object.
+     * The album and its photos are adopted by the User and the addition is
+     * recorded in the journal.
      * 
      * @param album the Album object to be added
      */
     public void addAlbum(Album album) {
+        album.setOwner(this);
+        if (album.getId() == 0)
+            album.setId(nextId());
+        else
+            lastId = Math.max(lastId, album.getId());
+        for (Photo photo : album.getAlbum())
+            adopt(photo);
         this.albums.add(album);
+        for (Photo photo : album.getAlbum()) {
+            retain(photo);
+            linkBlob(photo);
+        }
+        if (journal != null)
+            journal.addAlbum(album);
     }
 
     /**
      * Deletes an Album object from the ArrayList of Album objects of the User
-     * object.
+     * object. Once the deletion is recorded in the journal, the references the
+     * album held to the stored images of its photos are released and the album
+     * is disowned, so that photos added to it afterwards are neither adopted,
+     * referenced nor journaled. Nothing is recorded if the album is not one of
+     * the User's.
      * 
      * @param album the Album object to be deleted
      */
     public void deleteAlbum(Album album) {
+        boolean removed = false;
         for (int i = 0; i < albums.size(); i++) {
-            if (albums.get(i) == album)
+            if (albums.get(i) == album) {
                 albums.remove(i);
+                removed = true;
+                for (Photo photo : album.getAlbum())
+                    release(photo);
+            }
+        }
+        if (removed) {
+            if (journal != null)
+                journal.deleteAlbum(album);
+            for (Photo photo : album.getAlbum())
+                unlinkBlob(photo);
+            album.setOwner(null);
         }
     }
 
@@ -110,6 +168,280 @@ public class User implements Serializable {
         return false;
     }
 
+    /**
+     * Makes the User the owner of a photo about to be added to one of its albums.
+     * A photo seen for the first time is given an id and recorded in the
+     * journal with all of its fields; a photo already owned is left untouched.
+     * 
+     * @param photo the Photo object to adopt
+     */
+    void adopt(Photo photo) {
+        if (photo.getOwner() == this && photo.getId() != 0)
+            return;
+        photo.setOwner(this);
+        if (photo.getId() == 0)
+            photo.setId(nextId());
+        else
+            lastId = Math.max(lastId, photo.getId());
+        if (journal != null)
+            journal.newPhoto(photo);
+    }
+
+    /**
+     * Restores the ownership of the User's albums and photos after it has been
+     * read from a snapshot, and starts recording changes in the given journal.
+     * Albums and photos from a snapshot written before ids existed are given one.
+     * 
+     * @param journal the journal to record changes in, or null
+     * @return true if any album or photo had to be given an id, false otherwise
+     */
+    boolean attach(PhotoJournal journal) {
+        boolean assigned = false;
+        for (Album album : albums) {
+            album.setOwner(this);
+            if (album.getId() == 0) {
+                album.setId(nextId());
+                assigned = true;
+            }
+            for (Photo photo : album.getAlbum()) {
+                photo.setOwner(this);
+                if (photo.getId() == 0) {
+                    photo.setId(nextId());
+                    assigned = true;
+                }
+            }
+        }
+        this.journal = journal;
+        return assigned;
+    }
+
+    /**
+     * Returns the journal changes to the User's albums and photos are recorded
+     * in.
+     * 
+     * @return the journal, or null if changes are not recorded
+     */
+    PhotoJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Returns the inverted index of the tags of the User's photos, building it
+     * from the User's albums the first time.
+     * 
+     * @return the tag index
+     */
+    public TagIndex getTagIndex() {
+        buildIndexes();
+        return tagIndex;
+    }
+
+    /**
+     * Returns the index of the User's photos by date, building it from the
+     * User's albums the first time.
+     * 
+     * @return the date index
+     */
+    public DateIndex getDateIndex() {
+        buildIndexes();
+        return dateIndex;
+    }
+
+    /**
+     * Returns the photos in the User's albums, each of them once no matter how
+     * many albums contain it, in id order. The returned collection is a
+     * read-only view kept up to date as albums and photos change.
+     * 
+     * @return the User's photo catalog
+     */
+    public Collection<Photo> getPhotos() {
+        return getTagIndex().photos();
+    }
+
+    /**
+     * Returns the tag types of the photos in the User's albums. The returned
+     * set is a read-only view kept up to date as albums and photos change.
+     * 
+     * @return the tag types in use
+     */
+    public Set<String> getTagTypes() {
+        return getTagIndex().tagTypes();
+    }
+
+    /**
+     * Returns the inverted index of the tags of the User's photos if it has
+     * been built, so that it can be kept up to date.
+     * 
+     * @return the tag index, or null if it has not been built yet
+     */
+    TagIndex currentTagIndex() {
+        return tagIndex;
+    }
+
+    /**
+     * Records in the indexes, if they have been built, that one of the User's
+     * albums now contains the given photo.
+     * 
+     * @param photo the photo
+     */
+    void retain(Photo photo) {
+        if (tagIndex != null && tagIndex.retain(photo))
+            dateIndex.add(photo);
+    }
+
+    /**
+     * Records in the indexes, if they have been built, that one of the User's
+     * albums no longer contains the given photo.
+     * 
+     * @param photo the photo
+     */
+    void release(Photo photo) {
+        if (tagIndex != null && tagIndex.release(photo))
+            dateIndex.remove(photo);
+    }
+
+    /**
+     * Takes a reference to the BlobStore entry holding the image of a photo that
+     * one of the User's albums now contains. References are only taken for
+     * changes recorded in the journal, so replaying the journal does not count
+     * them again.
+     * 
+     * @param photo the photo
+     */
+    void linkBlob(Photo photo) {
+        if (journal != null)
+            changeBlob(photo, true);
+    }
+
+    /**
+     * Releases the reference to the BlobStore entry holding the image of a photo
+     * that one of the User's albums no longer contains, once the change is
+     * recorded in the journal.
+     * 
+     * @param photo the photo
+     */
+    void unlinkBlob(Photo photo) {
+        if (journal != null)
+            changeBlob(photo, false);
+    }
+
+    /**
+     * Releases the references every album of the User holds to the BlobStore
+     * entries of its photos, when the User is deleted.
+     */
+    void releaseBlobs() {
+        for (Album album : albums)
+            for (Photo photo : album.getAlbum())
+                changeBlob(photo, false);
+    }
+
+    /**
+     * Takes or releases a reference to the BlobStore entry holding the image of
+     * a photo, if its image lives in the store.
+     * 
+     * @param photo  the photo
+     * @param retain true to take a reference, false to release one
+     */
+    private static void changeBlob(Photo photo, boolean retain) {
+        String path = photo.getPath();
+        if (!BlobStore.isBlob(path))
+            return;
+        try {
+            if (retain)
+                BlobStore.getInstance().retain(BlobStore.id(path));
+            else
+                BlobStore.getInstance().release(BlobStore.id(path));
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Files a photo under its new date in the date index, if it has been built
+     * and one of the User's albums contains the photo, and lets every album
+     * update its earliest and latest dates.
+     * 
+     * @param photo the photo whose date changed
+     */
+    void dateChanged(Photo photo) {
+        if (dateIndex != null && tagIndex.contains(photo))
+            dateIndex.update(photo);
+        for (Album album : albums)
+            album.dateChanged(photo);
+    }
+
+    /**
+     * Lets every album of the User containing a photo update its count of
+     * captions after the caption of the photo changed.
+     * 
+     * @param photo the photo whose caption changed
+     * @param old   the previous caption of the photo
+     */
+    void captionChanged(Photo photo, String old) {
+        for (Album album : albums)
+            album.captionChanged(photo, old);
+    }
+
+    /**
+     * Builds the tag and date indexes from the User's albums if they have not
+     * been built yet.
+     */
+    private void buildIndexes() {
+        if (tagIndex != null)
+            return;
+        tagIndex = new TagIndex();
+        dateIndex = new DateIndex();
+        for (Album album : albums)
+            for (Photo photo : album.getAlbum())
+                retain(photo);
+    }
+
+    /**
+     * Returns the generation of the User's latest snapshot.
+     * 
+     * @return the snapshot generation
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Sets the generation of the User's latest snapshot.
+     * 
+     * @param generation the new snapshot generation
+     */
+    void setGeneration(long generation) {
+        this.generation = generation;
+    }
+
+    /**
+     * Returns the last id handed out to one of the User's albums or photos.
+     * 
+     * @return the last id
+     */
+    long getLastId() {
+        return lastId;
+    }
+
+    /**
+     * Sets the last id handed out to one of the User's albums or photos, when the
+     * User is read from a snapshot.
+     * 
+     * @param lastId the last id
+     */
+    void setLastId(long lastId) {
+        this.lastId = lastId;
+    }
+
+    /**
+     * Hands out the next id for one of the User's albums or photos.
+     * 
+     * @return a new id, never zero
+     */
+    private long nextId() {
+        return ++lastId;
+    }
+
     /**
      * Returns a String representation of the User object.
      * 
@@ -1,23 +1,37 @@
 package photopack;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * The UserApp class represents an application for managing a collection of User
  * objects.
- * This class allows the addition of User objects to an ArrayList, and the
- * writing and reading of UserApp objects to and from a file.
- * Each UserApp object has an ArrayList of User objects and two constant fields
- * that represent the directory and file name for storing UserApp objects.
+ * Users are stored separately: an index file lists every username, and each
+ * user has its own directory holding a snapshot of the User, written by
+ * UserWriter, and a PhotoJournal of the changes made since that snapshot was
+ * written. Opening the UserApp
+ * only reads the index; a User is loaded the first time it is asked for, so
+ * startup time does not depend on the number of users.
+ * The class is still Serializable because the single users.dat file of
+ * earlier versions held a serialized UserApp; that file is migrated to the
+ * per-user layout the first time the application is opened.
  */
 public class UserApp implements Serializable {
     /**
-     * An ArrayList representing the list of users in the application.
-     * This private variable is used to store the list of User objects in the
-     * application.
-     * It is initialized as an empty ArrayList and can only be accessed and modified
-     * within the UserApp class.
+     * The "serialVersionUID" of the class the existing snapshot was written with.
+     * It is pinned so that adding methods to this class does not make that file
+     * unreadable.
+     */
+    static final long serialVersionUID = -6412705401922665758L;
+    /**
+     * The list of users of a users.dat file written by an earlier version. Only
+     * used while migrating that file.
      */
     private ArrayList<User> users;
 
@@ -32,66 +46,448 @@ public class UserApp implements Serializable {
     public static final String storeDir = "dat";
     /**
      * A static final variable representing the filename of the file where the user
-     * data is stored.
-     * This static final variable is used to store the filename of the file where
-     * the user data is stored. It is set to "users.dat" by default
-     * an be accessed from other classes and methods using the UserApp.storeFile 
-     * ariable.
+     * data was stored by earlier versions. It is set to "users.dat" and is only
+     * read to migrate it to the per-user layout.
      */
     public static final String storeFile = "users.dat";
+    /**
+     * A static final variable representing the filename of the journal shared by
+     * all users in earlier versions. It is only read to migrate it.
+     */
+    public static final String journalFile = "users.journal";
+    /**
+     * A static final variable representing the filename of the index listing every
+     * username, one per line. A deleted username is recorded by a line holding the
+     * DELETED marker followed by the username, so that deleting a user does not
+     * rewrite the whole index.
+     */
+    public static final String indexFile = "users.idx";
+    /**
+     * The character starting a line of the index that records a deleted username.
+     * It cannot be typed into a username field.
+     */
+    static final char DELETED = '\u0000';
+    /**
+     * A static final variable representing the directory, inside storeDir, holding
+     * one directory per user.
+     */
+    public static final String usersDir = "users";
+    /**
+     * A static final variable representing the filename of a user's snapshot
+     * inside the user's directory.
+     */
+    public static final String userFile = "user.dat";
+    /**
+     * A static final variable representing the filename of a user's journal inside
+     * the user's directory.
+     */
+    public static final String userJournalFile = "user.journal";
+    /**
+     * The number of journal records after which a user's journal is compacted
+     * into a new snapshot.
+     */
+    public static final int COMPACT_THRESHOLD = 10000;
+    /**
+     * The generation of a users.dat snapshot written by an earlier version. Only
+     * used while migrating that file.
+     */
+    private long generation;
+    /**
+     * Every username in index order, mapped to the User once it has been loaded
+     * and to null before that. Not serialized.
+     */
+    private transient LinkedHashMap<String, User> index;
+    /**
+     * The number of lines of the index file that no longer stand for a user,
+     * either deletions or the additions they cancel. Not serialized.
+     */
+    private transient int deadLines;
 
     /**
-     * Constructs a UserApp object with an empty ArrayList of User objects
+     * Constructs a UserApp object with no users
      */
     public UserApp() {
         users = new ArrayList<User>();
+        index = new LinkedHashMap<String, User>();
     }
 
     /**
-     * Adds a User object to the ArrayList of User objects in the UserApp object.
-     * 
+     * Adds a User object to the UserApp object. The user's directory and first
+     * snapshot are written and the username is appended to the index.
+     *
      * @param p the User object to be added
+     * @throws IOException if the user cannot be stored
      */
-    public void addUser(User p) {
-        users.add(p);
+    public void addUser(User p) throws IOException {
+        p.setGeneration(0);
+        open(p);
+        writeIndex(p.getUsername());
+        index.put(p.getUsername(), p);
     }
 
     /**
-     * Prints the String representation of each User object in the ArrayList of User
-     * objects in the UserApp object.
+     * Deletes a user from the UserApp object, together with its directory, after
+     * releasing the references its albums hold to images in the BlobStore. The
+     * deletion is appended to the index, which is only rewritten once more than
+     * half of its lines are deletions or deleted users.
+     *
+     * @param username the username of the user to be deleted
+     * @throws IOException if the user cannot be read or the index cannot be
+     *                     written
+     */
+    public void deleteUser(String username) throws IOException {
+        if (!index.containsKey(username))
+            return;
+        User user = index.get(username);
+        if (user == null) {
+            try {
+                user = loadUser(username);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Cannot read user " + username, e);
+            }
+        }
+        index.remove(username);
+        if (user.getJournal() != null) {
+            user.getJournal().close();
+            user.attach(null);
+        }
+        writeIndex(DELETED + username);
+        deadLines += 2;
+        if (deadLines > index.size())
+            rewriteIndex();
+        user.releaseBlobs();
+        File dir = userDir(username);
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    /**
+     * Checks whether a user with the given username exists.
+     *
+     * @param username the username to look for
+     * @return true if the user exists, false otherwise
+     */
+    public boolean hasUser(String username) {
+        return index.containsKey(username);
+    }
+
+    /**
+     * Returns the User with the given username, loading it from its snapshot and
+     * journal if this is the first time it is asked for.
+     *
+     * @param username the username of the user
+     * @return the User, or null if there is no such user
+     * @throws IOException            if the user's files cannot be read
+     * @throws ClassNotFoundException if the class of an object in the snapshot
+     *                                cannot be found
+     */
+    public User getUser(String username) throws IOException, ClassNotFoundException {
+        if (!index.containsKey(username))
+            return null;
+        User user = index.get(username);
+        if (user == null) {
+            user = loadUser(username);
+            index.put(username, user);
+        }
+        return user;
+    }
+
+    /**
+     * Unloads a User once its session is over. Its journal is compacted if it has
+     * grown past its threshold and closed; the User is loaded again the next time
+     * it is asked for.
+     *
+     * @param user the User to unload
+     * @throws IOException if the user's files cannot be written
+     */
+    public void release(User user) throws IOException {
+        if (index.get(user.getUsername()) != user)
+            return;
+        closeUser(user);
+        index.put(user.getUsername(), null);
+    }
+
+    /**
+     * Prints the username of each user in the UserApp object.
      */
     public void writePoints() {
-        for (User p : users) {
-            System.out.println(p);
+        for (String username : index.keySet()) {
+            System.out.println(username);
         }
     }
 
     /**
-     * Returns the ArrayList of User objects in the UserApp object.
-     * 
-     * @return the ArrayList of User objects in the UserApp object
+     * Returns the usernames of every user in the UserApp object, in the order they
+     * were added.
+     *
+     * @return the list of usernames
      */
-    public ArrayList<User> getUsers() {
-        return this.users;
+    public List<String> getUsernames() {
+        return new ArrayList<String>(index.keySet());
     }
 
     /**
-     * Writes a UserApp object to a file in the directory specified by the storeDir
-     * constant and with the file name specified by the storeFile constant.
-     * 
-     * @param gapp the UserApp object to be written to the file
-     * @throws IOException if there is an error writing to the file
+     * Opens the application data by reading the index of usernames, replaying the
+     * deletions it records. No User is loaded until it is asked for. If there is
+     * no index yet but a users.dat file from an earlier version exists, it is
+     * migrated to the per-user layout first, together with its journal.
+     *
+     * @return the opened UserApp
+     * @throws IOException            if the index or the legacy data cannot be
+     *                                read
+     * @throws ClassNotFoundException if the class of an object in the legacy data
+     *                                cannot be found
+     */
+    public static UserApp open() throws IOException, ClassNotFoundException {
+        File idx = new File(storeDir, indexFile);
+        if (!idx.isFile() && new File(storeDir, storeFile).isFile())
+            migrate();
+        UserApp gapp = new UserApp();
+        if (idx.isFile()) {
+            for (String line : Files.readAllLines(idx.toPath(), StandardCharsets.UTF_8)) {
+                if (line.isEmpty())
+                    continue;
+                if (line.charAt(0) == DELETED) {
+                    gapp.index.remove(line.substring(1));
+                    gapp.deadLines += 2;
+                } else {
+                    gapp.index.put(line, null);
+                }
+            }
+            if (gapp.deadLines > gapp.index.size())
+                gapp.rewriteIndex();
+        }
+        return gapp;
+    }
+
+    /**
+     * Closes the application data. The journals already hold every change, so a
+     * user's snapshot is only rewritten if its journal has grown past its
+     * threshold or a record could not be written.
+     *
+     * @throws IOException if a user's files cannot be written
      */
-    public static void writeApp(UserApp gapp) throws IOException {
-        ObjectOutputStream oos = new ObjectOutputStream(
-                new FileOutputStream(storeDir + File.separator + storeFile));
-        oos.writeObject(gapp);
+    public void close() throws IOException {
+        for (User user : index.values()) {
+            if (user != null)
+                closeUser(user);
+        }
+    }
+
+    /**
+     * Writes a new snapshot of a User and empties its journal.
+     *
+     * @param user the User to compact
+     * @throws IOException if the snapshot or the journal cannot be written
+     */
+    public static void compact(User user) throws IOException {
+        user.setGeneration(user.getGeneration() + 1);
+        try {
+            writeUser(user);
+        } catch (IOException e) {
+            user.setGeneration(user.getGeneration() - 1);
+            throw e;
+        }
+        if (user.getJournal() != null)
+            user.getJournal().reset(user.getGeneration());
+    }
+
+    /**
+     * Reads a User from its snapshot, replays its journal and starts recording
+     * new changes in it. A snapshot written with Java serialization by an earlier
+     * version is read as such and immediately rewritten in the binary format.
+     *
+     * @param username the username of the user
+     * @return the loaded User
+     * @throws IOException            if the user's files cannot be read
+     * @throws ClassNotFoundException if the class of an object in the snapshot
+     *                                cannot be found
+     */
+    private static User loadUser(String username) throws IOException, ClassNotFoundException {
+        File snapshot = new File(userDir(username), userFile);
+        User user;
+        boolean serialized = false;
+        if (!snapshot.isFile()) {
+            user = new User(username, new ArrayList<Album>());
+        } else if (UserReader.isSnapshot(snapshot)) {
+            user = UserReader.read(snapshot);
+        } else {
+            try (ObjectInputStream ois = new ObjectInputStream(
+                    new BufferedInputStream(new FileInputStream(snapshot)))) {
+                user = (User) ois.readObject();
+            }
+            serialized = true;
+        }
+        user.attach(null);
+        PhotoJournal.replay(new File(userDir(username), userJournalFile), user.getGeneration(), user);
+        openJournal(user);
+        if (serialized)
+            compact(user);
+        return user;
+    }
+
+    /**
+     * Writes the first snapshot of a User and opens an empty journal for it.
+     *
+     * @param user the User
+     * @throws IOException if the user's files cannot be written
+     */
+    private static void open(User user) throws IOException {
+        user.attach(null);
+        userDir(user.getUsername()).mkdirs();
+        writeUser(user);
+        openJournal(user);
+    }
+
+    /**
+     * Opens the journal of a User and starts recording changes in it.
+     *
+     * @param user the User
+     * @throws IOException if the journal cannot be opened
+     */
+    private static void openJournal(User user) throws IOException {
+        PhotoJournal journal = new PhotoJournal(new File(userDir(user.getUsername()), userJournalFile),
+                user.getGeneration(), COMPACT_THRESHOLD);
+        journal.setCompactor(() -> {
+            try {
+                compact(user);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        user.attach(journal);
+    }
+
+    /**
+     * Compacts the journal of a User if needed and closes it.
+     *
+     * @param user the User
+     * @throws IOException if the user's files cannot be written
+     */
+    private static void closeUser(User user) throws IOException {
+        PhotoJournal journal = user.getJournal();
+        if (journal == null)
+            return;
+        if (journal.isBroken() || journal.getRecordCount() >= COMPACT_THRESHOLD)
+            compact(user);
+        journal.close();
+        user.attach(null);
+    }
+
+    /**
+     * Writes the snapshot of a User in the binary format of UserWriter. The
+     * snapshot is written to a temporary file first and then moved over the
+     * previous one, so a crash never leaves a half-written snapshot behind.
+     *
+     * @param user the User to write
+     * @throws IOException if the snapshot cannot be written
+     */
+    private static void writeUser(User user) throws IOException {
+        File dir = userDir(user.getUsername());
+        File tmp = File.createTempFile(userFile, ".tmp", dir);
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                UserWriter.write(user, out);
+            }
+            Files.move(tmp.toPath(), new File(dir, userFile).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Appends a line to the index.
+     *
+     * @param line the username added, or the DELETED marker followed by the
+     *             username deleted
+     * @throws IOException if the index cannot be written
+     */
+    private void writeIndex(String line) throws IOException {
+        new File(storeDir).mkdirs();
+        File idx = new File(storeDir, indexFile);
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(idx, true), StandardCharsets.UTF_8)) {
+            out.write(line + "\n");
+        }
+    }
+
+    /**
+     * Rewrites the whole index from the usernames currently known, dropping the
+     * deletions it records.
+     *
+     * @throws IOException if the index cannot be written
+     */
+    private void rewriteIndex() throws IOException {
+        new File(storeDir).mkdirs();
+        File idx = new File(storeDir, indexFile);
+        File tmp = File.createTempFile(indexFile, ".tmp", new File(storeDir));
+        try {
+            Files.write(tmp.toPath(), index.keySet(), StandardCharsets.UTF_8);
+            Files.move(tmp.toPath(), idx.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+        deadLines = 0;
+    }
+
+    /**
+     * Returns the directory holding a user's snapshot, journal and import
+     * checkpoints. The directory
+     * name is the hexadecimal UTF-8 encoding of the username, so any username
+     * makes a valid file name.
+     *
+     * @param username the username
+     * @return the user's directory
+     */
+    static File userDir(String username) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : username.getBytes(StandardCharsets.UTF_8))
+            sb.append(String.format("%02x", b));
+        return new File(storeDir + File.separator + usersDir, sb.toString());
+    }
+
+    /**
+     * Migrates a users.dat file and journal written by an earlier version to the
+     * per-user layout. Every user gets its own directory and snapshot, the index
+     * is written last, and the shared journal is deleted once its records are in
+     * the new snapshots. The users.dat file itself is left untouched.
+     *
+     * @throws IOException            if the legacy data cannot be read or the new
+     *                                files cannot be written
+     * @throws ClassNotFoundException if the class of an object in the legacy data
+     *                                cannot be found
+     */
+    private static void migrate() throws IOException, ClassNotFoundException {
+        UserApp legacy = readApp();
+        for (User user : legacy.users)
+            user.attach(null);
+        File log = new File(storeDir, journalFile);
+        PhotoJournal.replayLegacy(log, legacy.generation, legacy.users);
+        LinkedHashMap<String, User> migrated = new LinkedHashMap<String, User>();
+        for (User user : legacy.users)
+            migrated.putIfAbsent(user.getUsername(), user);
+        for (Map.Entry<String, User> entry : migrated.entrySet()) {
+            User user = entry.getValue();
+            user.setGeneration(0);
+            userDir(user.getUsername()).mkdirs();
+            writeUser(user);
+        }
+        UserApp gapp = new UserApp();
+        for (String username : migrated.keySet())
+            gapp.index.put(username, null);
+        gapp.rewriteIndex();
+        log.delete();
     }
 
     /**
      * Reads a UserApp object from a file in the directory specified by the storeDir
      * constant and with the file name specified by the storeFile constant.
-     * 
+     * Only used to migrate the data of earlier versions.
+     *
      * @return the UserApp object read from the file
      * @throws IOException            if there is an error reading from the file
      * @throws ClassNotFoundException if the class of the object read from the file
@@ -99,10 +495,11 @@ public class UserApp implements Serializable {
      */
     public static UserApp readApp()
             throws IOException, ClassNotFoundException {
-        ObjectInputStream ois = new ObjectInputStream(
-                new FileInputStream(storeDir + File.separator + storeFile));
-        UserApp gapp = (UserApp) ois.readObject();
-        return gapp;
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(storeDir + File.separator + storeFile)))) {
+            UserApp gapp = (UserApp) ois.readObject();
+            return gapp;
+        }
     }
 
-}
\ No newline at end of file
+}
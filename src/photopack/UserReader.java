@@ -0,0 +1,238 @@
+package photopack;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The UserReader class reads a User written by UserWriter. The whole snapshot
+ * is read into memory at once and decoded from there, with the checksum
+ * verified before anything is decoded.
+ * Strings are decoded once from the string table and shared by every photo
+ * and album referring to them.
+ */
+public class UserReader {
+    /**
+     * The snapshot being decoded.
+     */
+    private final byte[] buf;
+    /**
+     * The position of the next byte to decode.
+     */
+    private int pos;
+    /**
+     * The number of bytes of the snapshot before its checksum.
+     */
+    private final int limit;
+
+    /**
+     * Constructs a UserReader over the bytes of a snapshot.
+     *
+     * @param buf the snapshot
+     */
+    private UserReader(byte[] buf) {
+        this.buf = buf;
+        this.limit = buf.length - 4;
+    }
+
+    /**
+     * Reads a User from a snapshot file.
+     *
+     * @param file the snapshot file
+     * @return the User
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    public static User read(File file) throws IOException {
+        return new UserReader(Files.readAllBytes(file.toPath())).decode();
+    }
+
+    /**
+     * Checks whether a file starts with the magic number of the binary snapshot
+     * format, as opposed to a snapshot written with Java serialization.
+     *
+     * @param file the snapshot file
+     * @return true if the file is a binary snapshot, false otherwise
+     * @throws IOException if the file cannot be read
+     */
+    public static boolean isSnapshot(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] head = new byte[4];
+            return in.readNBytes(head, 0, 4) == 4 && new UserReader(head).readInt() == UserWriter.MAGIC;
+        }
+    }
+
+    /**
+     * Decodes the whole snapshot.
+     *
+     * @return the User
+     * @throws IOException if the snapshot is not valid
+     */
+    private User decode() throws IOException {
+        if (buf.length < 8)
+            throw new StreamCorruptedException("Snapshot too short");
+        if (readInt() != UserWriter.MAGIC)
+            throw new StreamCorruptedException("Not a user snapshot");
+        CRC32 crc = new CRC32();
+        crc.update(buf, 0, limit);
+        pos = limit;
+        if (readInt() != (int) crc.getValue())
+            throw new StreamCorruptedException("Snapshot checksum mismatch");
+        pos = 4;
+        long version = readVarLong();
+        if (version < UserWriter.OLDEST_VERSION || version > UserWriter.VERSION)
+            throw new StreamCorruptedException("Unsupported snapshot version " + version);
+
+        long generation = readVarLong();
+        long lastId = readVarLong();
+        String username = readString();
+        String[] table = new String[readCount()];
+        for (int i = 0; i < table.length; i++)
+            table[i] = readString();
+
+        Photo[] photos = new Photo[readCount()];
+        for (int i = 0; i < photos.length; i++)
+            photos[i] = readPhoto(table);
+
+        int albumCount = readCount();
+        ArrayList<Album> albums = new ArrayList<Album>(albumCount);
+        for (int i = 0; i < albumCount; i++) {
+            long id = readVarLong();
+            String name = table[readIndex(table.length)];
+            int size = readCount();
+            ArrayList<Photo> contents = new ArrayList<Photo>(size);
+            for (int j = 0; j < size; j++)
+                contents.add(photos[readIndex(photos.length)]);
+            Album album = new Album(name, contents);
+            album.setId(id);
+            albums.add(album);
+        }
+        if (pos != limit)
+            throw new StreamCorruptedException("Trailing bytes in snapshot");
+
+        User user = new User(username, albums);
+        user.setGeneration(generation);
+        user.setLastId(lastId);
+        return user;
+    }
+
+    /**
+     * Decodes one photo.
+     *
+     * @param table the string table
+     * @return the photo
+     * @throws IOException if the snapshot is not valid
+     */
+    private Photo readPhoto(String[] table) throws IOException {
+        long id = readVarLong();
+        long flags = readVarLong();
+        String path = table[readIndex(table.length)];
+        Calendar cal = null;
+        if ((flags & UserWriter.HAS_DATE) != 0) {
+            long zigzag = readVarLong();
+            cal = Calendar.getInstance();
+            cal.setTimeInMillis((zigzag >>> 1) ^ -(zigzag & 1));
+        }
+        String caption = null;
+        if ((flags & UserWriter.HAS_CAPTION) != 0)
+            caption = table[readIndex(table.length)];
+        Map<String, List<String>> tags = null;
+        if ((flags & UserWriter.HAS_TAGS) != 0) {
+            int types = readCount();
+            tags = new HashMap<String, List<String>>();
+            for (int i = 0; i < types; i++) {
+                String type = table[readIndex(table.length)];
+                int size = readCount();
+                ArrayList<String> values = new ArrayList<String>(size);
+                for (int j = 0; j < size; j++)
+                    values.add(table[readIndex(table.length)]);
+                tags.put(type, values);
+            }
+        }
+        Photo photo = new Photo(path, cal, caption, tags);
+        if ((flags & UserWriter.HAS_DIMENSIONS) != 0)
+            photo.setDimensions((int) readVarLong(), (int) readVarLong(), (int) readVarLong());
+        photo.setId(id);
+        return photo;
+    }
+
+    /**
+     * Decodes a string written as its UTF-8 length followed by its UTF-8 bytes.
+     *
+     * @return the string
+     * @throws IOException if the snapshot is not valid
+     */
+    private String readString() throws IOException {
+        int length = readCount();
+        String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        return s;
+    }
+
+    /**
+     * Decodes a count or length, which can be at most the number of bytes left.
+     *
+     * @return the count
+     * @throws IOException if the snapshot is not valid
+     */
+    private int readCount() throws IOException {
+        long value = readVarLong();
+        if (value > limit - pos)
+            throw new StreamCorruptedException("Invalid length in snapshot");
+        return (int) value;
+    }
+
+    /**
+     * Decodes an index into a table of the given size.
+     *
+     * @param size the size of the table
+     * @return the index
+     * @throws IOException if the snapshot is not valid
+     */
+    private int readIndex(int size) throws IOException {
+        long value = readVarLong();
+        if (value >= size)
+            throw new StreamCorruptedException("Invalid reference in snapshot");
+        return (int) value;
+    }
+
+    /**
+     * Decodes an unsigned variable-length integer.
+     *
+     * @return the number
+     * @throws IOException if the snapshot is not valid
+     */
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= limit)
+                throw new StreamCorruptedException("Truncated snapshot");
+            byte b = buf[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new StreamCorruptedException("Invalid number in snapshot");
+    }
+
+    /**
+     * Decodes four big-endian bytes.
+     *
+     * @return the number
+     */
+    private int readInt() {
+        int value = ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16) | ((buf[pos + 2] & 0xFF) << 8)
+                | (buf[pos + 3] & 0xFF);
+        pos += 4;
+        return value;
+    }
+}
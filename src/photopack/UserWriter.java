@@ -0,0 +1,251 @@
+package photopack;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The UserWriter class writes a User, its albums and their photos in the
+ * compact binary snapshot format read back by UserReader.
+ * Every distinct string (album names, paths, captions, tag types and values)
+ * is written once in a string table and referred to by its index afterwards,
+ * dates are written as epoch milliseconds, and all lengths, counts, indices
+ * and ids are written as variable-length integers.
+ * A photo contained in several albums is written once and referred to by its
+ * position in the photo table, so the sharing of photos between albums is
+ * kept, as it was with Java serialization.
+ * The file ends with a CRC32 checksum of everything before it.
+ */
+public class UserWriter {
+    /**
+     * The magic number at the start of every snapshot ("PHUS"). A snapshot
+     * written with Java serialization starts with 0xACED instead.
+     */
+    public static final int MAGIC = 0x50485553;
+    /**
+     * The version of the snapshot format. Version 2 added the dimensions of
+     * photos, flagged by HAS_DIMENSIONS; snapshots of version 1 are still read.
+     */
+    public static final int VERSION = 2;
+    /**
+     * The earliest version of the snapshot format that can still be read.
+     */
+    public static final int OLDEST_VERSION = 1;
+    /**
+     * The bit of a photo's flags set when the photo has a date.
+     */
+    static final int HAS_DATE = 1;
+    /**
+     * The bit of a photo's flags set when the photo has a caption.
+     */
+    static final int HAS_CAPTION = 2;
+    /**
+     * The bit of a photo's flags set when the photo has a tag map.
+     */
+    static final int HAS_TAGS = 4;
+    /**
+     * The bit of a photo's flags set when the dimensions of the photo are
+     * known.
+     */
+    static final int HAS_DIMENSIONS = 8;
+
+    /**
+     * The bytes written so far.
+     */
+    private byte[] buf = new byte[8192];
+    /**
+     * The number of bytes written so far.
+     */
+    private int count;
+    /**
+     * The index of every string in the string table.
+     */
+    private final HashMap<String, Integer> strings = new HashMap<String, Integer>();
+    /**
+     * The strings of the string table in index order.
+     */
+    private final ArrayList<String> table = new ArrayList<String>();
+
+    /**
+     * Writes a User to the given stream. The stream is not closed.
+     *
+     * @param user the User to write
+     * @param out  the stream to write to
+     * @throws IOException if the stream cannot be written
+     */
+    public static void write(User user, OutputStream out) throws IOException {
+        new UserWriter().encode(user, out);
+    }
+
+    /**
+     * Encodes a User into the buffer and copies the buffer to the stream.
+     * The photo and album sections are encoded first so that the string table,
+     * which has to come before them, holds every string they refer to.
+     *
+     * @param user the User to write
+     * @param out  the stream to write to
+     * @throws IOException if the stream cannot be written
+     */
+    private void encode(User user, OutputStream out) throws IOException {
+        IdentityHashMap<Photo, Integer> photoIndex = new IdentityHashMap<Photo, Integer>();
+        ArrayList<Photo> photos = new ArrayList<Photo>();
+        for (Album album : user.getAlbums()) {
+            for (Photo photo : album.getAlbum()) {
+                if (!photoIndex.containsKey(photo)) {
+                    photoIndex.put(photo, photos.size());
+                    photos.add(photo);
+                }
+            }
+        }
+
+        writeVarLong(photos.size());
+        for (Photo photo : photos)
+            writePhoto(photo);
+        writeVarLong(user.getAlbums().size());
+        for (Album album : user.getAlbums()) {
+            writeVarLong(album.getId());
+            writeVarLong(intern(album.getName()));
+            writeVarLong(album.getAlbum().size());
+            for (Photo photo : album.getAlbum())
+                writeVarLong(photoIndex.get(photo));
+        }
+        byte[] body = Arrays.copyOf(buf, count);
+
+        count = 0;
+        writeInt(MAGIC);
+        writeVarLong(VERSION);
+        writeVarLong(user.getGeneration());
+        writeVarLong(user.getLastId());
+        writeString(user.getUsername());
+        writeVarLong(table.size());
+        for (String s : table)
+            writeString(s);
+        writeBytes(body, body.length);
+
+        CRC32 crc = new CRC32();
+        crc.update(buf, 0, count);
+        writeInt((int) crc.getValue());
+        out.write(buf, 0, count);
+    }
+
+    /**
+     * Encodes one photo: its id, flags, path, date, caption, tags and
+     * dimensions.
+     *
+     * @param photo the photo to encode
+     */
+    private void writePhoto(Photo photo) {
+        Map<String, List<String>> tags = photo.getTags();
+        int flags = (photo.getCal() != null ? HAS_DATE : 0) | (photo.getCaption() != null ? HAS_CAPTION : 0)
+                | (tags != null ? HAS_TAGS : 0) | (photo.getWidth() > 0 ? HAS_DIMENSIONS : 0);
+        writeVarLong(photo.getId());
+        writeVarLong(flags);
+        writeVarLong(intern(photo.getPath()));
+        if (photo.getCal() != null) {
+            long millis = photo.getCal().getTimeInMillis();
+            writeVarLong((millis << 1) ^ (millis >> 63));
+        }
+        if (photo.getCaption() != null)
+            writeVarLong(intern(photo.getCaption()));
+        if (tags != null) {
+            writeVarLong(tags.size());
+            for (Map.Entry<String, List<String>> entry : tags.entrySet()) {
+                writeVarLong(intern(entry.getKey()));
+                List<String> values = entry.getValue();
+                writeVarLong(values.size());
+                for (String value : values)
+                    writeVarLong(intern(value));
+            }
+        }
+        if (photo.getWidth() > 0) {
+            writeVarLong(photo.getWidth());
+            writeVarLong(photo.getHeight());
+            writeVarLong(photo.getOrientation());
+        }
+    }
+
+    /**
+     * Returns the index of a string in the string table, adding it if it is not
+     * there yet.
+     *
+     * @param s the string
+     * @return its index in the string table
+     */
+    private int intern(String s) {
+        Integer index = strings.get(s);
+        if (index == null) {
+            index = table.size();
+            strings.put(s, index);
+            table.add(s);
+        }
+        return index;
+    }
+
+    /**
+     * Writes a string as its UTF-8 length followed by its UTF-8 bytes.
+     *
+     * @param s the string
+     */
+    private void writeString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bytes.length);
+        writeBytes(bytes, bytes.length);
+    }
+
+    /**
+     * Writes a non-negative number as an unsigned variable-length integer, seven
+     * bits per byte, the high bit of each byte telling whether another follows.
+     *
+     * @param value the number
+     */
+    private void writeVarLong(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buf[count++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[count++] = (byte) value;
+    }
+
+    /**
+     * Writes a number as four big-endian bytes.
+     *
+     * @param value the number
+     */
+    private void writeInt(int value) {
+        ensure(4);
+        buf[count++] = (byte) (value >>> 24);
+        buf[count++] = (byte) (value >>> 16);
+        buf[count++] = (byte) (value >>> 8);
+        buf[count++] = (byte) value;
+    }
+
+    /**
+     * Writes the first bytes of an array.
+     *
+     * @param bytes  the array
+     * @param length the number of bytes to write
+     */
+    private void writeBytes(byte[] bytes, int length) {
+        ensure(length);
+        System.arraycopy(bytes, 0, buf, count, length);
+        count += length;
+    }
+
+    /**
+     * Grows the buffer so that it can take the given number of additional bytes.
+     *
+     * @param length the number of bytes about to be written
+     */
+    private void ensure(int length) {
+        if (count + length > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + length));
+    }
+}
@@ -3,6 +3,7 @@ package photopack;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.ResourceBundle;
 import javafx.collections.FXCollections;
@@ -26,7 +27,8 @@ import javafx.stage.Stage;
  * delete users from the system, log out the current user,
  * display warning and confirmation dialogs.
  * The class also initializes a ListView with an ObservableList of all user
- * names in the system passed to the constructor.
+ * names in the system passed to the constructor. Users are added to and
+ * deleted from the UserApp without loading their albums.
  */
 
 public class adminController implements Initializable {
@@ -41,7 +43,7 @@ public class adminController implements Initializable {
      * Represents a JavaFX ListView object used to display a list of strings.
      */
     @FXML
-    private ListView<User> listView;
+    private ListView<String> listView;
     /**
      * Represents a JavaFX TextField object used to display a user's Username.
      */
@@ -67,42 +69,50 @@ public class adminController implements Initializable {
      */
     private int listSize = 0;
     /**
-     * Represents an arraylist of strings to display a list of users.
+     * Represents a list of strings to display a list of users.
      */
-    private ArrayList<User> users;
+    private List<String> users;
 
     /**
      * Initializes a new instance of the adminController class with the specified
      * list of users.
      * 
-     * @param users an ArrayList of Strings containing the usernames of all users in
+     * @param users a List of Strings containing the usernames of all users in
      *              the system
      */
-    public adminController(ArrayList<User> users) {
+    public adminController(List<String> users) {
         this.users = users;
     }
 
     /**
      * This method adds a user to the list of users displayed in the ListView. It
-     * checks if the entered username already exists in the list,
+     * checks if the entered username already exists by looking it up in the
+     * UserApp's username index,
      * displays a warning dialog if it does, and adds the username to the list if it
      * does not. It also clears the username TextField and
      * selects the newly added user in the ListView.
+     * The username is trimmed the same way as on the login screen, so that the
+     * user added can log in.
      */
     @FXML
     public void addUser() {
-        if (Username.getText().equals(""))
+        String username = Username.getText().trim();
+        if (username.equals(""))
+            return;
+        if (Photos.gapp.hasUser(username)) {
+            dupUserWarning();
+            Username.clear();
             return;
-        for (User username : listView.getItems()) {
-            if (username.getUsername().equals(Username.getText())) {
-                dupUserWarning();
-                Username.clear();
-                return;
-            }
         }
-        
-        User newUser = new User(Username.getText(), new ArrayList<Album>());
-        listView.getItems().add(newUser);
+
+        User newUser = new User(username, new ArrayList<Album>());
+        try {
+            Photos.gapp.addUser(newUser);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        listView.getItems().add(newUser.getUsername());
         Username.clear();
         listSize++;
     }
@@ -117,7 +127,16 @@ public class adminController implements Initializable {
     public void deleteUser() {
         if (confirmation()) {
             int index = listView.getSelectionModel().getSelectedIndex();
-            listView.getItems().remove(listView.getSelectionModel().getSelectedItem());
+            String user = listView.getSelectionModel().getSelectedItem();
+            if (user == null)
+                return;
+            try {
+                Photos.gapp.deleteUser(user);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            listView.getItems().remove(index);
             listSize--;
 
             if (index == 0)
@@ -135,13 +154,12 @@ public class adminController implements Initializable {
      * 
      * @throws IOException            if an error occurs while loading the
      *                                login.fxml file
-     * @throws ClassNotFoundException if the Photos.gapp.getUsers() method cannot
-     *                                find the Users class
+     * @throws ClassNotFoundException if the User class cannot be found
      */
     @FXML
     public void logOut() throws IOException, ClassNotFoundException {
         FXMLLoader loader = new FXMLLoader(getClass().getResource("/photopack/fxml files/login.fxml"));
-        loginController login = new loginController(Photos.gapp.getUsers());
+        loginController login = new loginController(Photos.gapp);
         loader.setController(login);
         root = loader.load();
         Scene scene = new Scene(root);
@@ -191,7 +209,7 @@ public class adminController implements Initializable {
      */
     @Override
     public void initialize(URL location, ResourceBundle resources) {
-        ObservableList<User> items = FXCollections.observableList(users);
+        ObservableList<String> items = FXCollections.observableArrayList(users);
         listView.setItems(items);
 
     }
@@ -1,12 +1,12 @@
 package photopack;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.URL;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.ResourceBundle;
+import java.util.concurrent.Future;
 
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -107,6 +107,11 @@ public class fiveController implements Initializable {
      */
     @FXML
     private TextField tagVal;
+    /**
+     * This instance variable represents the load of the photo's image into the
+     * ImageView, cancelled when the user leaves the screen.
+     */
+    private Future<Image> pending;
 
     /**
      * This constructor creates a new instance of the Five Controller class and
@@ -141,32 +146,17 @@ public class fiveController implements Initializable {
 
         tagBox.getItems().addAll(photo.getKeys());
         choiceBox.getItems().addAll(user.getAlbums());
-        try {
-            FileInputStream fileIn = new FileInputStream(photo.getPath());
-            ObjectInputStream in = new ObjectInputStream(fileIn);
-            SerializableImage serializableImage = (SerializableImage) in.readObject();
-            in.close();
-            fileIn.close();
-            Image deserializedImage = serializableImage.getImage();
-
-            image.setImage(deserializedImage);
-        } catch (Exception e) {
-            try {
-                Image image1 = new Image(photo.getPath());
-                image.setImage(image1);
-            } catch (Exception p) {
-
-            }
-
-        }
+        pending = ImageDecodeService.getInstance().loadInto(image, photo.getPath());
 
         date.setText(photo.getDate() + "");
         cap.setText(photo.getCaption());
         cap.setEditable(true);
 
-        cap.textProperty().addListener((observable, oldValue, newValue) -> {
-            // This code will be executed whenever the text of the TextField changes
-            photo.setCaption(newValue);
+        cap.setOnAction(event -> commitCaption());
+        cap.focusedProperty().addListener((observable, wasFocused, focused) -> {
+            // The caption is saved once the edit is committed, not on every keystroke
+            if (!focused)
+                commitCaption();
         });
 
         ObservableList<String> itemsListTag = FXCollections.observableArrayList();
@@ -382,9 +372,19 @@ public class fiveController implements Initializable {
 
     }
 
+    /**
+     * Sets the caption of the photo to the text of the caption field if it was
+     * edited, once the user presses Enter or leaves the field, so that the
+     * change is journaled once rather than on every keystroke.
+     */
+    private void commitCaption() {
+        if (!Objects.equals(cap.getText(), photo.getCaption()))
+            photo.setCaption(cap.getText());
+    }
+
     /**
      * Switches the view to the fourth screen (album view) when the user clicks the
-     * back button.
+     * back button. A caption still being edited is committed first.
      * Loads the FXML file for the fourth screen and creates a new instance of the
      * fourController.
      * Sets the controller for the loaded FXML file to the newly created
@@ -393,11 +393,16 @@ public class fiveController implements Initializable {
      * fourController.
      * Creates a new Scene with the root as its parent.
      * Sets the new Scene to be displayed on the current Stage, Shows the Stage.
+     * The photo's image is unloaded, so that its buffer can be reused once the
+     * ThumbnailCache evicts it.
      * 
      * @param click The MouseEvent object representing the click event.
      * @throws IOException If the FXML file for the fourth screen cannot be loaded.
      */
     public void switchToFour(MouseEvent click) throws IOException {
+        commitCaption();
+        ImageDecodeService.getInstance().cancel(pending);
+        ImageDecodeService.getInstance().unload(image);
         FXMLLoader loader = new FXMLLoader(getClass().getResource("/photopack/fxml files/four.fxml"));
         fourController sixcontroller = new fourController(user, album);
         loader.setController(sixcontroller);
@@ -7,21 +7,13 @@ import javafx.fxml.FXML;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.ChoiceBox;
-import javafx.scene.control.ListCell;
-import javafx.scene.control.ListView;
 import javafx.scene.control.Alert.AlertType;
-import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
-import javafx.scene.text.Font;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.HashSet;
 import java.util.ResourceBundle;
 
 import javafx.event.EventHandler;
@@ -31,14 +23,16 @@ import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.input.KeyEvent;
 import javafx.scene.input.MouseEvent;
+import javafx.scene.text.Text;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
 
 /**
- * This class is a controller for the photo album GUI, which displays a list of
- * photos and allows users to upload new photos, delete photos,switch to other
- * GUI screens.
+ * This class is a controller for the photo album GUI, which displays the photos
+ * of an album as a grid of thumbnails and allows users to upload new photos,
+ * delete photos,switch to other GUI screens.
  * The class receives a user and album object upon initialization and implements
  * the Initializable interface to initialize the GUI components
  */
@@ -58,10 +52,10 @@ public class fourController implements Initializable {
      */
     private Parent root;
     /**
-     * the JavaFX ListView object for displaying photos in the album
+     * the virtualized grid displaying the thumbnails of the photos in the album
      */
     @FXML
-    private ListView<Photo> listView = new ListView<Photo>();
+    private ThumbnailGrid grid;
     /**
      * the JavaFX button for uploading a new photo to the album
      */
@@ -72,6 +66,20 @@ public class fourController implements Initializable {
      */
     @FXML
     private ChoiceBox<Photo> choiceBox;
+    /**
+     * the JavaFX button starting and cancelling a folder import
+     */
+    @FXML
+    private Button importButton;
+    /**
+     * the JavaFX text showing the progress of the folder import
+     */
+    @FXML
+    private Text importStatus;
+    /**
+     * the folder import running from this screen, or null if there is none
+     */
+    private ImportPipeline importer;
 
     /**
      * Constructs a new instance of the fourController class with the specified user
@@ -88,36 +96,30 @@ public class fourController implements Initializable {
     }
 
     /**
-     * This method initializes the JavaFX components and populates the choiceBox
-     * with all the photos in all of the user's albums.
-     * It also sets up the listView with the photos in the current album, and sets
-     * up a double-click listener to switch to the photo view of the selected photo
+     * This method initializes the JavaFX components and makes the choiceBox show
+     * all the photos in all of the user's albums, copied from the user's catalog
+     * each time it is opened rather than when the screen opens.
+     * It also fills the grid with the photos in the current album, and sets up a
+     * double-click listener to switch to the photo view of the selected photo
      */
     @Override
     public void initialize(URL url, ResourceBundle rb) {
-        // Initialize choiceBox, make array/array list of all Photo captions
-        ArrayList<Album> arr = user.getAlbums();
-        HashSet<Photo> allPhotos = new HashSet<Photo>();
-        for (int i = 0; i < arr.size(); i++) {
-            Album album = arr.get(i);
-            ArrayList<Photo> photoArr = album.getAlbum();
-            for (int j = 0; j < photoArr.size(); j++) {
-                Photo photo = photoArr.get(j);
-                allPhotos.add(photo);
-            }
-        }
-        choiceBox.getItems().addAll(allPhotos);
+        // Fill choiceBox with the user's photo catalog when it is opened
+        choiceBox.setOnShowing(event -> {
+            Photo chosen = choiceBox.getValue();
+            choiceBox.getItems().setAll(user.getPhotos());
+            choiceBox.setValue(chosen);
+        });
 
-        ObservableList<Photo> items = FXCollections.observableList(currAlbum.getAlbum());
-        listView.setItems(items);
-        resize();
+        ObservableList<Photo> items = FXCollections.observableArrayList(currAlbum.getAlbum());
+        grid.setItems(items);
 
-        listView.setOnMouseClicked(new EventHandler<MouseEvent>() {
+        grid.setOnMouseClicked(new EventHandler<MouseEvent>() {
             public void handle(MouseEvent click) {
 
                 if (click.getClickCount() == 2) {
-                    // Use ListView's getSelected Item
-                    Photo currentItemSelected = listView.getSelectionModel().getSelectedItem();
+                    // Use the grid's selected photo
+                    Photo currentItemSelected = grid.getSelectedItem();
                     if (currentItemSelected == null)
                         return;
                     try {
@@ -131,7 +133,7 @@ public class fourController implements Initializable {
     }
 
     /**
-     * Adds the selected photo from the choice box to the current album's list view,
+     * Adds the selected photo from the choice box to the current album's grid,
      * displays an alert message if the selected photo is already in the album.
      */
     public void add() {
@@ -141,71 +143,37 @@ public class fourController implements Initializable {
             alert("Duplicate Photo");
             return;
         }
-        try {
-            listView.getItems().add(choiceBox.getValue());
-        } catch (Exception e) {
-        }
+        currAlbum.addPhoto(choiceBox.getValue());
+        grid.getItems().add(choiceBox.getValue());
 
     }
 
     /**
-     * Resize the images and set the list view cell factory
-     */
-    public void resize() {
-        listView.setCellFactory(param -> new ListCell<Photo>() {
-            private ImageView imageView = new ImageView();
-
-            @Override
-            public void updateItem(Photo pic, boolean empty) {
-                super.updateItem(pic, empty);
-                if (empty) {
-                    setText(null);
-                    setGraphic(null);
-                } else {
-                    try {
-                        FileInputStream fileIn = new FileInputStream(pic.getPath());
-                        ObjectInputStream in = new ObjectInputStream(fileIn);
-                        SerializableImage serializableImage = (SerializableImage) in.readObject();
-                        in.close();
-                        fileIn.close();
-                        Image deserializedImage = serializableImage.getImage();
-
-                        imageView.setImage(deserializedImage);
-                    } catch (Exception e) {
-                        try {
-                            Image image = new Image(pic.getPath());
-                            imageView.setImage(image);
-                        } catch (Exception p) {
-
-                        }
-                    }
-                    imageView.setFitHeight(150);
-                    imageView.setFitWidth(200);
-                    setText(pic.getCaption());
-                    setFont(Font.font(20));
-                    setGraphic(imageView);
-                }
-            }
-        });
-    }
-
-    /**
-     * Deletes the currently selected photo from the list view and selects the next
-     * item.
+     * Deletes the currently selected photo from the grid and selects the photo
+     * that took its place.
      * If no item is selected, nothing happens.
      */
     public void delete() {
-        listView.getItems().remove(listView.getSelectionModel().getSelectedItem());
-        listView.getSelectionModel().selectNext();
+        Photo photo = grid.getSelectedItem();
+        if (photo == null)
+            return;
+        int index = grid.getSelectedIndex();
+        currAlbum.deletePhoto(photo);
+        grid.getItems().remove(index);
+        grid.select(Math.min(index, grid.getItems().size() - 1));
     }
 
     /**
      * Allows the user to upload a new photo to the current album.
      * Opens a file chooser dialog to select an image file, then creates a new Photo
      * object with the selected file's path,
-     * creation date, and name. If the photo already exists in the album, does
-     * nothing. Otherwise, adds the photo to the
-     * album's list and updates the displayed list view.
+     * capture date, and name. The capture date, dimensions and orientation are
+     * read from the file's headers, and the capture date falls back to the time
+     * the file was last modified. If the photo already exists in the album, does
+     * nothing. Otherwise, the file's bytes are stored in the BlobStore, where
+     * identical images imported before share a single entry, and the photo,
+     * pointing at that entry, is added to the
+     * album's list and the displayed grid is updated.
      * 
      * @throws IOException if there is an error opening or reading the selected file
      */
@@ -214,24 +182,58 @@ public class fourController implements Initializable {
         FileChooser fileChooser = new FileChooser();
         File selectedFile = fileChooser.showOpenDialog(currentStage);
         if (selectedFile != null) {
-            Calendar cal = Calendar.getInstance();
-            cal.set(Calendar.MILLISECOND, 0);
-            Photo photo = new Photo(selectedFile.toURI().toString(), cal, selectedFile.getName());
-            if (currAlbum.duplicate(photo.getCaption()))
+            if (currAlbum.duplicate(selectedFile.getName()))
                 return;
-            listView.getItems().add(photo);
-            resize();
+            ImageMetadata metadata = ImageMetadata.read(selectedFile);
+            Calendar cal = ImageMetadata.captureDate(selectedFile, metadata);
+            String path = BlobStore.getInstance().intern(selectedFile);
+            try {
+                Photo photo = new Photo(path, cal, selectedFile.getName());
+                if (metadata != null)
+                    photo.setDimensions(metadata.getWidth(), metadata.getHeight(), metadata.getOrientation());
+                currAlbum.addPhoto(photo);
+                grid.getItems().add(photo);
+                ThumbnailStore.getInstance().generateAsync(photo.getPath());
+            } finally {
+                BlobStore.getInstance().unpin(BlobStore.id(path));
+            }
         }
 
     }
 
+    /**
+     * Imports every image under a folder into the current album, or cancels the
+     * import if one is running.
+     * Opens a directory chooser dialog, then runs an ImportPipeline over the
+     * chosen folder in the background. The photos appear in the grid in
+     * batches as they are added, and the progress of the import is shown below
+     * the buttons. Importing a folder again resumes an interrupted import of it.
+     */
+    public void importDirectory() {
+        if (importer != null && !importer.isDone()) {
+            importer.cancel();
+            return;
+        }
+        Stage currentStage = (Stage) upload.getScene().getWindow();
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        File selectedDirectory = directoryChooser.showDialog(currentStage);
+        if (selectedDirectory == null)
+            return;
+        importer = new ImportPipeline(user, currAlbum, selectedDirectory, grid.getItems()::addAll, p -> {
+            importStatus.setText(p.toString());
+            importButton.setText(p.isDone() ? "Import folder" : "Cancel import");
+        });
+        importButton.setText("Cancel import");
+        importer.start();
+    }
+
     /**
      * Switches to the slideshow screen, displaying all the photos in the current
      * album.
-     * Creates an array of images from the current album's photos.
-     * Initializes a new instance of the slideshow controller, passing the array of
-     * images.
-     * Sets the scene and stage of the slideshow, and shows the slideshow window.
+     * The slideshow controller receives the album's photos and only decodes a
+     * small window of them around the photo being shown, so the window opens
+     * straight away regardless of the size of the album. Decodes still pending
+     * when the window is closed are cancelled.
      * Enables the user to use the left and right arrow keys to navigate the
      * slideshow.
      * 
@@ -241,31 +243,12 @@ public class fourController implements Initializable {
      */
     public void switchToslideshow(ActionEvent event) throws IOException {
         FXMLLoader loader = new FXMLLoader(getClass().getResource("/photopack/fxml files/slideshow.fxml"));
-        ArrayList<Photo> arr = currAlbum.getAlbum();
-        ArrayList<Image> images = new ArrayList<>();
-        for (int i = 0; i < arr.size(); i++) {
-            try {
-                FileInputStream fileIn = new FileInputStream(arr.get(i).getPath());
-                ObjectInputStream in = new ObjectInputStream(fileIn);
-                SerializableImage serializableImage = (SerializableImage) in.readObject();
-                in.close();
-                fileIn.close();
-                Image deserializedImage = serializableImage.getImage();
-
-                images.add(deserializedImage);
-            } catch (Exception e) {
-                try {
-                    Image image = new Image(arr.get(i).getPath());
-                    images.add(image);
-                } catch (Exception p) {
-                }
-            }
-        }
-        slideshowController slideshowcontroller = new slideshowController(images);
+        slideshowController slideshowcontroller = new slideshowController(new ArrayList<Photo>(currAlbum.getAlbum()));
         loader.setController(slideshowcontroller);
         root = loader.load();
         slideshowController controller = loader.getController();
         Stage popUpWindow = new Stage();
+        popUpWindow.setOnHidden(e -> controller.close());
 
         Scene scene = new Scene(root);
         scene.setOnKeyPressed((EventHandler<KeyEvent>) new EventHandler<KeyEvent>() {
@@ -302,13 +285,25 @@ public class fourController implements Initializable {
     }
 
     /**
-     * Switches the scene to the five.fxml file.
+     * Cancels the folder import running from this screen, if any, when the
+     * screen is left, so that it does not keep adding photos to an album that
+     * may be deleted in the meantime. Importing the folder again resumes it.
+     */
+    private void cancelImport() {
+        if (importer != null)
+            importer.cancel();
+    }
+
+    /**
+     * Switches the scene to the five.fxml file, cancelling the folder import
+     * running from this screen.
      * 
      * @param click The mouse event that triggers the function.
      * @param photo The photo to be displayed in the new scene.
      * @throws IOException If the file cannot be loaded.
      */
     public void switchToFive(MouseEvent click, Photo photo) throws IOException {
+        cancelImport();
 
         FXMLLoader loader = new FXMLLoader(getClass().getResource("/photopack/fxml files/five.fxml"));
         fiveController fivecontroller = new fiveController(photo, currAlbum, user);
@@ -321,12 +316,14 @@ public class fourController implements Initializable {
     }
 
     /**
-     * Switch to Three.fxml view
+     * Switch to Three.fxml view, cancelling the folder import running from this
+     * screen.
      * 
      * @param click the MouseEvent that triggered the action
      * @throws IOException if Three.fxml file is not found
      */
     public void switchToThree(MouseEvent click) throws IOException {
+        cancelImport();
         FXMLLoader loader = new FXMLLoader(getClass().getResource("/photopack/fxml files/three.fxml"));
         threeController threecontroller = new threeController(user);
         loader.setController(threecontroller);
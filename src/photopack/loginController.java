@@ -3,6 +3,7 @@ package photopack;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.ResourceBundle;
 
 import javafx.fxml.FXML;
@@ -25,7 +26,7 @@ import javafx.stage.Stage;
  * The loggingIn() method handles the logic for logging in to the system, while
  * the usernameWarning() method displays a warning dialog if the username is
  * empty.
- * The getUserList() method returns an ArrayList of Strings containing all user
+ * The getUserList() method returns a List of Strings containing all user
  * names in the system.
  */
 
@@ -41,35 +42,36 @@ public class loginController implements Initializable {
     @FXML
     private Button loginButton;
     /**
-     * Represents an ArrayList of all user names in the system.
+     * Represents the UserApp holding all users in the system. Only the user
+     * logging in is loaded from disk.
      */
-    public ArrayList<User> allUsers = new ArrayList<User>();
+    private UserApp app;
     /**
      * The root node of the scene.
      */
     Parent root;
 
     /**
-     * Constructs a loginController object with the specified list of users.
-     * This constructor creates a new loginController object with the specified list
-     * of users.
-     * The allUsers list is set to the provided list of User objects.
+     * Constructs a loginController object with the specified UserApp.
      * 
-     * @param users the ArrayList of User objects to set as the allUsers list
+     * @param app the UserApp holding all users in the system
      */
-    public loginController(ArrayList<User> users) {
-        this.allUsers = users;
+    public loginController(UserApp app) {
+        this.app = app;
     }
 
     /**
      * Logs the user in by getting the username input from the text field. If the
      * input is empty, shows a warning and clears the text field. If the input is
      * "admin", switches to the admin view. If the input matches an existing user,
-     * switches to their view. If the input does not match an existing user, creates
-     * a new user with the input as username and switches to their view.
+     * found through the UserApp's username index, loads that user and switches to
+     * their view. If the input does not match an existing user, creates a new
+     * user with the input as username and switches to their view. A background
+     * sweep then generates any missing or stale thumbnails of the user's photos.
      * 
      * @throws IOException            if the FXML file for the next view cannot be
-     *                                found or loaded.
+     *                                found or loaded, or the user cannot be
+     *                                loaded or stored.
      * @throws ClassNotFoundException if the User class cannot be found.
      */
     @FXML
@@ -83,20 +85,18 @@ public class loginController implements Initializable {
 
             switchToAdmin();
         } else {
-            int index = -1;
-            for (int i = 0; i < allUsers.size(); i++) {
-                if (usernameText.trim().equals(allUsers.get(i).getUsername())) {
-                    index = i;
-                    break;
-                }
-            }
-            if (index >= 0)
-                switchToThree(allUsers.get(index));
-            else {
-                User newUser = new User(usernameText.trim(), new ArrayList<Album>());
-                allUsers.add(newUser);
-                switchToThree(newUser);
+            String username = usernameText.trim();
+            User user = app.getUser(username);
+            if (user == null) {
+                user = new User(username, new ArrayList<Album>());
+                app.addUser(user);
             }
+            ArrayList<Photo> photos = new ArrayList<Photo>();
+            for (Album album : user.getAlbums())
+                photos.addAll(album.getAlbum());
+            BlobStore.getInstance().relink(photos);
+            ThumbnailStore.getInstance().sweep(photos);
+            switchToThree(user);
         }
     }
 
@@ -115,13 +115,13 @@ public class loginController implements Initializable {
     }
 
     /**
-     * This method returns an ArrayList of Strings containing all user names in the
+     * This method returns a List of Strings containing all user names in the
      * system.
      * 
-     * @return an ArrayList of Strings containing all user names in the system.
+     * @return a List of Strings containing all user names in the system.
      */
-    public ArrayList<User> getUserList() {
-        return allUsers;
+    public List<String> getUserList() {
+        return app.getUsernames();
     }
 
     /**
@@ -144,15 +144,15 @@ public class loginController implements Initializable {
 
     /**
      * Switches to the admin screen.
-     * Loads the admin.fxml file and sets the controller with the given list of
-     * users.
+     * Loads the admin.fxml file and sets the controller with the list of
+     * usernames.
      * Sets the root of the loader as the new scene for the current stage.
      * 
      * @throws IOException If there is an error loading the fxml file.
      */
     public void switchToAdmin() throws IOException {
         FXMLLoader loader = new FXMLLoader(getClass().getResource("/photopack/fxml files/admin.fxml"));
-        adminController admincontroller = new adminController(allUsers);
+        adminController admincontroller = new adminController(app.getUsernames());
         loader.setController(admincontroller);
         root = loader.load();
         Scene scene = new Scene(root);
@@ -1,14 +1,13 @@
 package photopack;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.net.URL;
+import java.text.ParseException;
 import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.HashSet;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.Future;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
@@ -37,13 +36,13 @@ import javafx.scene.input.MouseEvent;
  */
 public class sixController implements Initializable{
     /**
-     * User object for the current user of the application.
+     * The number of search results fetched at a time as the user scrolls.
      */
-    private User user; 
+    private static final int PAGE_SIZE = 100;
     /**
-     * Set of all photos owned by the current user.
+     * User object for the current user of the application.
      */
-    private HashSet<Photo> allPhotos = new HashSet<Photo>();
+    private User user; 
     /**
      *  Root node of the scene
      */
@@ -83,6 +82,12 @@ public class sixController implements Initializable{
      */
     @FXML
     private DatePicker to; 
+    /**
+     * JavaFX text field for a search query, such as (person=liz OR person=james) AND date&gt;=2022-01-01.
+     * When it is filled in, it takes precedence over the tag and date fields.
+     */
+    @FXML
+    private TextField query;
     /**
      * JavaFX text field for new album name input.
      */
@@ -93,6 +98,14 @@ public class sixController implements Initializable{
      */
     @FXML
     private ListView<Photo> listView = new ListView<Photo>();
+    /**
+     * Cursor over the results of the current search, or null if there is none.
+     */
+    private SearchCursor cursor;
+    /**
+     * Whether an album is being created from the matches of the search, which are still being collected.
+     */
+    private boolean creatingAlbum;
     /**
      * Constructs a new sixController object with the specified User.
      * @param user the user associated with this sixController
@@ -101,26 +114,13 @@ public class sixController implements Initializable{
         this.user = user; 
     }
     /**
-     * Initializes the controller by retrieving all photos from the user's albums and populating the choice boxes and the AND/OR choice box with options.
+     * Initializes the controller by populating the tag type choice boxes with the tag types in use in the user's photos and the AND/OR choice box with its options.
      * @param location The URL location of the FXML file.
      * @param resources The resources associated with the FXML file.
      */
     @Override
     public void initialize(URL location, ResourceBundle resources) {
-        ArrayList<Album> arr = user.getAlbums();
-        HashSet<String> set = new HashSet<String>();
-        for (int i = 0; i < arr.size(); i++){
-            Album album = arr.get(i); 
-            ArrayList<Photo> photoArr = album.getAlbum();
-            for(int j = 0; j < photoArr.size(); j++){
-                Photo photo = photoArr.get(j);
-                allPhotos.add(photo); 
-                ArrayList<String> TagArr = photo.getKeys();
-                for(int k = 0; k < TagArr.size(); k++){
-                    set.add(TagArr.get(k));
-                }
-            }
-        }
+        Set<String> set = user.getTagTypes();
         tagType1.getItems().add(null);
         tagType1.getItems().addAll(set);
         tagType2.getItems().add(null);
@@ -130,125 +130,114 @@ public class sixController implements Initializable{
         andOr.getSelectionModel().selectFirst();
     }
     /**
-     * Searches the set of all photos based on the selected tags and date range, and displays the results in the ListView.
-     * If any required fields are missing, an alert message is displayed.
+     * Searches the user's photos and displays the results in the ListView.
+     * A query typed in the query field is parsed and run as a PhotoQuery; otherwise a PhotoQuery is built from the selected tags and date range.
+     * With both dates selected the range is inclusive, and only the two selected days match if the end date is before the start date; with only the start date selected the photos must be from that day.
+     * The search runs in the background on the SearchExecutor and its results are shown a page at a time, the next page being fetched as the user scrolls near the end of the list.
+     * Starting a new search cancels the one still running.
+     * If the query is invalid or any required fields are missing, an alert message is displayed and the results are cleared.
      */
     public void search(){
-        ArrayList<Photo> selectedPhotos = new ArrayList<Photo>();
+        PhotoQuery photoQuery = null;
+        String text = query.getText();
+        if(text != null && !text.trim().equals("")){
+            try {
+                photoQuery = PhotoQuery.parse(text);
+            } catch (ParseException e) {
+                alert("Invalid query at position " + (e.getErrorOffset() + 1) + ": " + e.getMessage());
+            }
+        }
+        else {
+            photoQuery = buildQuery();
+        }
+        ObservableList<Photo> items = FXCollections.observableList(new ArrayList<Photo>());
+        listView.setItems(items);
+        resize();
+        if(photoQuery == null){
+            SearchExecutor.getInstance().cancel();
+            cursor = null;
+            return;
+        }
+        cursor = SearchExecutor.getInstance().open(photoQuery, user);
+        loadPage();
+    }
+
+    /**
+     * Fetches the next page of search results and appends it to the ListView, unless the search is exhausted or a page is already being fetched.
+     */
+    private void loadPage(){
+        if(cursor == null || cursor.isFetching() || !cursor.hasMore()) return;
+        ObservableList<Photo> items = listView.getItems();
+        cursor.fetch(PAGE_SIZE, page -> items.addAll(page));
+    }
+
+    /**
+     * Builds a PhotoQuery from the selected tags and date range.
+     * If any required fields are missing, an alert message is displayed.
+     * @return the query, or null if the fields are incomplete or nothing is selected
+     */
+    private PhotoQuery buildQuery(){
         LocalDate toDate = to.getValue(); 
         LocalDate fromDate = from.getValue(); 
-        Calendar toCal = Calendar.getInstance();
-        Calendar fromCal = Calendar.getInstance();
-        if(toDate != null){
-            toCal.set(toDate.getYear(), toDate.getMonthValue() - 1, toDate.getDayOfMonth());
-            toCal.set(Calendar.HOUR_OF_DAY, 0);
-            toCal.set(Calendar.MINUTE, 0);
-            toCal.set(Calendar.SECOND, 0);
-            toCal.set(Calendar.MILLISECOND, 0);
+        String tagT1 = tagType1.getValue();
+        String tagT2 = tagType2.getValue(); 
+        String tagV1 = tagVal1.getText();
+        String tagV2 = tagVal2.getText();
+        if((tagT1 != null && tagV1.equals("")) || (tagT2 != null && tagV2.equals(""))){
+            alert("Please select a tagValue or set TagType to nothing");
+            return null;
         }
-        if(fromDate != null){
-            fromCal.set(fromDate.getYear(), fromDate.getMonthValue() - 1, fromDate.getDayOfMonth());
-            fromCal.set(Calendar.HOUR_OF_DAY, 0);
-            fromCal.set(Calendar.MINUTE, 0);
-            fromCal.set(Calendar.SECOND, 0);
-            fromCal.set(Calendar.MILLISECOND, 0);
+        if(tagT1 == null && !tagV1.equals("")){
+            alert("Please select a tag for TagType1");
+            return null;
         }
-        for (Photo item : allPhotos) {
-            Calendar cal = (Calendar) item.getCal().clone(); 
-            cal.set(Calendar.HOUR_OF_DAY, 0);
-            cal.set(Calendar.MINUTE, 0);
-            cal.set(Calendar.SECOND, 0);
-            cal.set(Calendar.MILLISECOND, 0);
-            if(!(toDate == null || fromDate == null)){
-                int compare1 = cal.compareTo(toCal);
-                int compare2 = cal.compareTo(fromCal);
-                if(!(compare1 == 0 || compare2 == 0 || (compare2 > 0 && compare1 < 0))) continue;
-            }
-            else if(fromDate != null){
-                int compare = cal.compareTo(fromCal);
-                if(compare != 0) continue; 
-            }
-            String tagT1 = tagType1.getValue();
-            String tagT2 = tagType2.getValue(); 
-            String tagV1 = tagVal1.getText();
-            String tagV2 = tagVal2.getText();
-            if((tagT1 != null && tagV1.equals("")) || (tagT2 != null && tagV2.equals(""))){
-                alert("Please select a tagValue or set TagType to nothing");
-                break;
-            }
-            if(tagT1 == null && !tagV1.equals("")){
-                alert("Please select a tag for TagType1");
-                break;
-            }
-            if(tagT2 == null && !tagV2.equals("")){
-                alert("Please select a tag for TagType2");
-                break;
-            }
-            String ao = andOr.getValue(); 
-            if(ao.equals("AND")){
-                if(tagT1 != null){
-                    if(!item.containsTagValue(tagT1, tagV1)) continue;
-                }
-                if(tagT2 != null){
-                    if(!item.containsTagValue(tagT2, tagV2)) continue;
-                }
-                if(tagT1 != null && tagT2 != null){
-                    if(!item.containsTagValue(tagT1, tagV1) || !item.containsTagValue(tagT2, tagV2)) continue;
-                }
-            }
-            if(ao.equals("OR")){
-                if(tagT1 != null && tagT2 != null){
-                    if(!item.containsTagValue(tagT1, tagV1) && !item.containsTagValue(tagT2, tagV2)) continue;
-                }
-                else if(tagT1 != null){
-                    if(!item.containsTagValue(tagT1, tagV1)) continue;
-                }
-                else if(tagT2 != null){
-                    if(!item.containsTagValue(tagT2, tagV2)) continue;
-                }
-            }
-            if(fromDate == null && tagT1 == null && tagT2 == null) break; 
-            selectedPhotos.add(item);
+        if(tagT2 == null && !tagV2.equals("")){
+            alert("Please select a tag for TagType2");
+            return null;
         }
-        ObservableList<Photo> items = FXCollections.observableList(selectedPhotos);
-        listView.setItems(items);
-        resize();
+        PhotoQuery result = null;
+        if(tagT1 != null && tagT2 != null){
+            if(andOr.getValue().equals("AND")) result = PhotoQuery.tag(tagT1, tagV1).and(PhotoQuery.tag(tagT2, tagV2));
+            else result = PhotoQuery.tag(tagT1, tagV1).or(PhotoQuery.tag(tagT2, tagV2));
+        }
+        else if(tagT1 != null) result = PhotoQuery.tag(tagT1, tagV1);
+        else if(tagT2 != null) result = PhotoQuery.tag(tagT2, tagV2);
+        if(fromDate != null){
+            PhotoQuery dates;
+            if(toDate == null) dates = PhotoQuery.dateRange(fromDate, fromDate);
+            else if(!toDate.isBefore(fromDate)) dates = PhotoQuery.dateRange(fromDate, toDate);
+            else dates = PhotoQuery.dateRange(fromDate, fromDate).or(PhotoQuery.dateRange(toDate, toDate));
+            result = result == null ? dates : result.and(dates);
+        }
+        return result;
     }
 
     /**
      * Resizes the photos in the listView and sets up a custom cell factory that shows the image, caption, and sets the font size.
+     * Cells show the photo's persisted thumbnail from the ThumbnailStore, loaded in the background and kept in the shared ThumbnailCache.
+     * A cell showing one of the last photos of the loaded results fetches the next page of the search.
      */
     public void resize(){
         listView.setCellFactory(param -> new ListCell<Photo>() {
             private ImageView imageView = new ImageView();
+            private Future<Image> pending;
             @Override
             public void updateItem(Photo pic, boolean empty) {
                 super.updateItem(pic, empty);
+                ImageDecodeService.getInstance().cancel(pending);
+                pending = null;
                 if (empty) {
+                    ImageDecodeService.getInstance().unload(imageView);
                     setText(null);
                     setGraphic(null);
                 } else {
-                    try  {
-                        FileInputStream fileIn = new FileInputStream(pic.getPath());
-                        ObjectInputStream in = new ObjectInputStream(fileIn);
-                        SerializableImage serializableImage = (SerializableImage) in.readObject();
-                        in.close();
-                        fileIn.close();
-                        Image deserializedImage = serializableImage.getImage();
-                        
-                        imageView.setImage(deserializedImage);
-                    } catch (Exception e) {
-                        try {
-                            Image image = new Image(pic.getPath());
-                        imageView.setImage(image);
-                        } catch (Exception p) {   
-                        }
-                    }
+                    pending = ImageDecodeService.getInstance().loadThumbnailInto(imageView, pic.getPath());
                     imageView.setFitHeight(150);
                     imageView.setFitWidth(200);
                     setText(pic.getCaption());
                     setFont(Font.font(20));
                     setGraphic(imageView);
+                    if(getIndex() >= getListView().getItems().size() - PAGE_SIZE / 2) loadPage();
                 }
             }
         });
@@ -268,7 +257,8 @@ public class sixController implements Initializable{
      * Creates a new album with the name and photos specified in the UI input fields.
      * If the name field is empty or the list of photos is empty, an alert is displayed.
      * If an album with the same name already exists, an alert is displayed and the album is not created.
-     * Otherwise, a new album is created with the specified name and photos, and added to the user's list of albums.
+     * Otherwise, a new album is created with the specified name and every photo matching the search, including those not scrolled to yet, and added to the user's list of albums.
+     * The matches not scrolled to yet are collected on the SearchExecutor's pool, and the album is created once they arrive.
      */
     public void createAlbum(){
         if(albumName.getText().equals("")){
@@ -283,23 +273,39 @@ public class sixController implements Initializable{
             alert("Album name exist");
             return;
         }
-        ObservableList<Photo> observableList = listView.getItems();
-        ArrayList<Photo> arrayList = new ArrayList<>(observableList);
-        Album newAlbum = new Album(albumName.getText(), arrayList); 
-        if(user.duplicate(newAlbum.getName())){
+        if(creatingAlbum) return;
+        String name = albumName.getText();
+        if(cursor == null){
+            addAlbum(name, new ArrayList<>(listView.getItems()));
+            return;
+        }
+        creatingAlbum = true;
+        cursor.all(photos -> {
+            creatingAlbum = false;
+            addAlbum(name, new ArrayList<>(photos));
+        });
+    }
+    /**
+     * Adds a new album holding the given photos to the user's list of albums, unless an album with the same name was created in the meantime.
+     * @param name the name of the album
+     * @param photos the photos of the album
+     */
+    private void addAlbum(String name, ArrayList<Photo> photos){
+        if(user.duplicate(name)){
             alert("Name of album already exist");
-            return; 
+            return;
         }
-        user.addAlbum(newAlbum);
+        user.addAlbum(new Album(name, photos));
         alert("Album created");
-        albumName.setText("");
+        if(albumName.getText().equals(name)) albumName.setText("");
     }
     /**
-     * Switches to the "Three" view when the user clicks on a certain element.
+     * Switches to the "Three" view when the user clicks on a certain element, cancelling any search still running.
      * @param click MouseEvent object representing the user's click.
      * @throws IOException if the "Three" view FXML file cannot be loaded.
      */
     public void switchToThree(MouseEvent click) throws IOException {
+        SearchExecutor.getInstance().cancel();
         FXMLLoader loader = new FXMLLoader(getClass().getResource("/photopack/fxml files/three.fxml"));
         threeController threecontroller = new threeController(user);
         loader.setController(threecontroller);
@@ -1,8 +1,12 @@
 package photopack;
 
 import java.net.URL;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.concurrent.Future;
 
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
@@ -13,65 +17,168 @@ import javafx.scene.image.ImageView;
 /**
  * This class represents the controller for the slideshow view in the photo management application.
  * It implements the Initializable interface from JavaFX to initialize the view when it is loaded.
- * It contains methods for moving to the previous or next image in the slideshow, and a constructor for passing in the list of images to display.
- * The class utilizes an ImageView object to display the images, and keeps track of a counter to know which image to display next.
+ * It contains methods for moving to the previous or next image in the slideshow, and a constructor for passing in the list of photos to display.
+ * Only a sliding window of images around the current photo is kept decoded: images ahead in the direction of travel are prefetched in the background,
+ * and images that fall out of the window are released.
  */
 
 public class slideshowController implements Initializable{
+    /**
+     * The number of photos decoded ahead of the current one in the direction of travel.
+     */
+    public static final int WINDOW_AHEAD = 3;
+    /**
+     * The number of photos kept decoded behind the current one.
+     */
+    public static final int WINDOW_BEHIND = 1;
     /**
      * ImageView object for displaying the images in the slideshow.
      */
     @FXML ImageView imageView;
     /**
-     * ArrayList containing all the images to be displayed in the slideshow.
+     * List containing all the photos to be displayed in the slideshow.
      */
-    private ArrayList<Image> listOfImages;
+    private List<Photo> photos;
+    /**
+     * The decoded images of the current window, keyed by their position in the slideshow.
+     */
+    private HashMap<Integer, Image> window = new HashMap<Integer, Image>();
+    /**
+     * The decodes still in progress for the current window, keyed by their position in the slideshow.
+     */
+    private HashMap<Integer, Future<Image>> pending = new HashMap<Integer, Future<Image>>();
     /**
      *  Counter variable to keep track of the current image being displayed in the slideshow.
      */
-    private int counter = 0; 
+    private int counter = 0;
+    /**
+     * The direction of travel, 1 when moving right and -1 when moving left.
+     */
+    private int direction = 1;
     /**
      * Parent object representing the root of the FXML hierarchy of the slideshow view.
      */
     Parent root;
    /**
     * Initializes a new instance of the {@link slideshowController} class.
-    * @param listOfImages The list of images to display in the slideshow.
+    * @param photos The list of photos to display in the slideshow.
     */
-    public slideshowController(ArrayList<Image> listOfImages){
-        this.listOfImages = listOfImages; 
+    public slideshowController(List<Photo> photos){
+        this.photos = photos;
     }
 
     /**
-     * This method updates the image in the imageView by decrementing the counter and retrieving the previous image from the listOfImages.
-     * If an exception is caught, the counter is incremented to avoid an out of bounds exception.
+     * This method moves the slideshow to the previous photo, if there is one.
+     * The window then slides left and starts prefetching the photos before it.
      */
     public void left(){
-        try {
-            imageView.setImage(listOfImages.get(--counter));
-        } catch (Exception e) {
-            counter++;
-        }
+        if(counter <= 0) return;
+        counter--;
+        direction = -1;
+        show();
     }
     /**
-     * Moves the slideshow to the next image in the list of images, if possible.
-     * If not possible, the counter remains unchanged and the current image is displayed.
+     * Moves the slideshow to the next photo, if there is one.
+     * The window then slides right and starts prefetching the photos after it.
      */
     public void right(){
-        try {
-            imageView.setImage(listOfImages.get(++counter));
-        } catch (Exception e) {
-            counter--;
+        if(counter >= photos.size() - 1) return;
+        counter++;
+        direction = 1;
+        show();
+    }
+
+    /**
+     * Cancels every decode still in progress and releases the decoded images.
+     * Called when the slideshow window is closed.
+     */
+    public void close(){
+        for (Future<Image> future : pending.values()) ImageDecodeService.getInstance().cancel(future);
+        pending.clear();
+        imageView.setImage(null);
+        for (Image image : window.values()) PixelBufferPool.getInstance().release(image);
+        window.clear();
+    }
+
+    /**
+     * Displays the current photo, or the placeholder if it is still being decoded, and slides the window around it.
+     */
+    private void show(){
+        Image image = window.get(counter);
+        imageView.setImage(image != null ? image : ImageDecodeService.getPlaceholder());
+        slide();
+    }
+
+    /**
+     * Moves the window to the current photo. Images outside of it are released to the PixelBufferPool and decodes outside of it cancelled,
+     * and missing images inside of it are requested, the current photo first and then in the direction of travel.
+     */
+    private void slide(){
+        int ahead = direction > 0 ? WINDOW_AHEAD : WINDOW_BEHIND;
+        int behind = direction > 0 ? WINDOW_BEHIND : WINDOW_AHEAD;
+        int low = Math.max(0, counter - behind);
+        int high = Math.min(photos.size() - 1, counter + ahead);
+
+        Iterator<Map.Entry<Integer, Image>> images = window.entrySet().iterator();
+        while (images.hasNext()) {
+            Map.Entry<Integer, Image> entry = images.next();
+            if (entry.getKey() < low || entry.getKey() > high) {
+                PixelBufferPool.getInstance().release(entry.getValue());
+                images.remove();
+            }
+        }
+        Iterator<Map.Entry<Integer, Future<Image>>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Future<Image>> entry = it.next();
+            if (entry.getKey() < low || entry.getKey() > high) {
+                ImageDecodeService.getInstance().cancel(entry.getValue());
+                it.remove();
+            }
+        }
+
+        request(counter);
+        for (int i = 1; i <= WINDOW_AHEAD; i++) {
+            request(counter + direction * i);
+            if (i <= WINDOW_BEHIND) request(counter - direction * i);
+        }
+    }
+
+    /**
+     * Starts decoding the photo at the given position unless it is out of range, already decoded or already requested.
+     * The photo is decoded at the smallest size covering the image view.
+     * @param index the position of the photo in the slideshow
+     */
+    private void request(int index){
+        if(index < 0 || index >= photos.size()) return;
+        if(window.containsKey(index) || pending.containsKey(index)) return;
+        int width = (int) Math.ceil(imageView.getFitWidth());
+        int height = (int) Math.ceil(imageView.getFitHeight());
+        pending.put(index, ImageDecodeService.getInstance().submitUncached(photos.get(index).getPath(), width, height, image -> loaded(index, image)));
+    }
+
+    /**
+     * Stores a decoded image in the window and displays it if it belongs to the current photo.
+     * Images for positions that left the window in the meantime are released to the PixelBufferPool.
+     * A photo that could not be decoded keeps showing the placeholder, and is requested again the next time the window moves.
+     * @param index the position of the photo in the slideshow
+     * @param image the decoded image, or null if it could not be decoded
+     */
+    private void loaded(int index, Image image){
+        if(pending.remove(index) == null || image == null) {
+            PixelBufferPool.getInstance().release(image);
+            return;
         }
+        window.put(index, image);
+        if(index == counter) imageView.setImage(image);
     }
 
     /**
-     * Initializes the slideshow by setting the image in the {@code imageView} to the first image in the {@code listOfImages}.
+     * Initializes the slideshow by displaying the first photo and prefetching the ones after it.
      * @param location the location used to resolve relative paths for the root object, or null if the location is not known.
      * @param resources the resources used to localize the root object, or null if the root object was not localized.
      */
     @Override
     public void initialize(URL location, ResourceBundle resources) {
-        imageView.setImage(listOfImages.get(counter));
+        if(!photos.isEmpty()) show();
     }
 }
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.URL;
 
 import java.util.ResourceBundle;
+import javafx.beans.binding.Bindings;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.event.EventHandler;
@@ -13,6 +14,7 @@ import javafx.fxml.Initializable;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
+import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
 import javafx.scene.control.TextField;
 import javafx.scene.control.Alert.AlertType;
@@ -53,6 +55,7 @@ public class threeController implements Initializable{
     }
     /**
      * Initializes the controller by setting the list of albums to the ListView and setting up the double-click handler for each item.
+     * Each cell is bound to the album's photo count and date range properties, so it follows changes without the album being rescanned.
      */
     @Override
     public void initialize(URL location, ResourceBundle resources) {
@@ -70,7 +73,20 @@ public class threeController implements Initializable{
                 }
             }
         });
-        ObservableList<Album> items = FXCollections.observableList(user.getAlbums());
+        listView.setCellFactory(param -> new ListCell<Album>() {
+            @Override
+            public void updateItem(Album album, boolean empty) {
+                super.updateItem(album, empty);
+                textProperty().unbind();
+                if (empty || album == null) {
+                    setText(null);
+                } else {
+                    textProperty().bind(Bindings.createStringBinding(album::toString, album.photoCountProperty(),
+                            album.earliestDateProperty(), album.latestDateProperty()));
+                }
+            }
+        });
+        ObservableList<Album> items = FXCollections.observableArrayList(user.getAlbums());
         listView.setItems(items);
         
     }
@@ -83,14 +99,19 @@ public class threeController implements Initializable{
             alert("Album already exist");
             return;
         }
-        listView.getItems().add(new Album(name.getText()));
+        Album album = new Album(name.getText());
+        user.addAlbum(album);
+        listView.getItems().add(album);
         name.setText("");
     }
     /**
      * Deletes the selected album from the user's list of albums.
      */
     public void delete() {
-        listView.getItems().remove(listView.getSelectionModel().getSelectedItem());
+        Album album = listView.getSelectionModel().getSelectedItem();
+        if(album == null) return;
+        user.deleteAlbum(album);
+        listView.getItems().remove(album);
         listView.getSelectionModel().selectNext();
     }
     /**
@@ -134,13 +155,14 @@ public class threeController implements Initializable{
         stage.show();
     }
     /**
-     * Logs out the current user and loads the login screen.
+     * Logs out the current user, unloading it from the UserApp, and loads the login screen.
      * @throws IOException if there is an error loading the login screen FXML file
      * @throws ClassNotFoundException if the class of a serialized object cannot be found
      */
     public void logOut() throws IOException, ClassNotFoundException {
         FXMLLoader loader = new FXMLLoader(getClass().getResource("/photopack/fxml files/login.fxml"));
-        loginController login = new loginController(Photos.gapp.getUsers());
+        Photos.gapp.release(user);
+        loginController login = new loginController(Photos.gapp);
         loader.setController(login);
         root = loader.load();
         Scene scene = new Scene(root);